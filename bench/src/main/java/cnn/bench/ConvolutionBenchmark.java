@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2019 Elias Yilma
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cnn.bench;
+
+import UTIL.Tensor;
+import cnn.Convolution;
+import cnn.Im2ColConvolution;
+import cnn.WinogradConvolution;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ *
+ * @author Elias Yilma
+ *
+ * The forward and backward passes of every implementation of the convolution
+ * layer on [N] X [28] X [28] synthetic images with 8 3X3 filters.
+ *
+ * backprop uses a learning rate of 0, so the filters stay the same from one
+ * invocation to the next.
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConvolutionBenchmark {
+
+    /**
+     * the number of images per batch.
+     */
+    @Param({"1", "32"})
+    public int batch;
+
+    /**
+     * the implementation of the layer: Convolution, Im2ColConvolution or
+     * WinogradConvolution.
+     */
+    @Param({"direct", "im2col", "winograd"})
+    public String impl;
+
+    private Convolution conv;
+    private Tensor images, filters, d_L_d_out;
+
+    @Setup
+    public void setup() {
+        conv = create(impl, batch);
+        images = Tensor.random(batch, 28, 28);
+        filters = Tensor.random(8, 3, 3);
+        d_L_d_out = Tensor.random(batch, 8, 26, 26);
+        conv.forward_batch(images, filters);
+    }
+
+    /**
+     * @param impl direct, im2col or winograd.
+     * @param batch the largest number of images per batch.
+     * @return a new convolution layer of that implementation with a workspace
+     * for 28X28 images and 8 filters.
+     */
+    static Convolution create(String impl, int batch) {
+        switch (impl) {
+            case "direct":
+                return new Convolution(batch, 28, 28, 8);
+            case "im2col":
+                return new Im2ColConvolution(batch, 28, 28, 8);
+            case "winograd":
+                return new WinogradConvolution(batch, 28, 28, 8);
+            default:
+                throw new IllegalArgumentException("unknown convolution " + impl);
+        }
+    }
+
+    @Benchmark
+    public Tensor forward() {
+        return conv.forward_batch(images, filters);
+    }
+
+    @Benchmark
+    public Tensor backprop() {
+        conv.backprop_batch(d_L_d_out, 0);
+        return conv.d_L_d_filters;
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2019 Elias Yilma
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cnn.bench;
+
+import UTIL.Tensor;
+import cnn.ConvPool;
+import cnn.MaxPool;
+import cnn.SoftMax;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ *
+ * @author Elias Yilma
+ *
+ * The forward and backward passes of the maximum pooling layer, the softmax
+ * layer and the fused convolution and pooling layer on synthetic activations
+ * of the shapes they see in the network.
+ *
+ * backprop uses a learning rate of 0, so the parameters stay the same from
+ * one invocation to the next.
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LayerBenchmark {
+
+    /**
+     * the number of samples per batch.
+     */
+    @Param({"1", "32"})
+    public int batch;
+
+    private MaxPool pool;
+    private SoftMax softmax;
+    private ConvPool conv_pool;
+    private Tensor images, filters, convolved, pooled, d_L_d_pooled;
+    private int[] labels;
+
+    @Setup
+    public void setup() {
+        pool = new MaxPool(2, 2, batch, 8, 26, 26);
+        softmax = new SoftMax(13 * 13 * 8, 10, batch);
+        conv_pool = new ConvPool(batch, 28, 28, 8);
+        images = Tensor.random(batch, 28, 28);
+        filters = Tensor.random(8, 3, 3);
+        convolved = Tensor.random(batch, 8, 26, 26);
+        pooled = Tensor.random(batch, 8, 13, 13);
+        d_L_d_pooled = Tensor.random(batch, 8, 13, 13);
+        labels = new int[batch];
+        for (int n = 0; n < batch; n++) {
+            labels[n] = n % 10;
+        }
+        pool.forward_batch(convolved);
+        softmax.forward_batch(pooled);
+        conv_pool.forward_batch(images, filters);
+    }
+
+    @Benchmark
+    public Tensor maxpool_forward() {
+        return pool.forward_batch(convolved);
+    }
+
+    @Benchmark
+    public Tensor maxpool_backprop() {
+        return pool.backprop_batch(d_L_d_pooled);
+    }
+
+    @Benchmark
+    public Tensor softmax_forward() {
+        return softmax.forward_batch(pooled);
+    }
+
+    @Benchmark
+    public Tensor softmax_backprop() {
+        return softmax.backprop_labels(labels, 0, 0);
+    }
+
+    @Benchmark
+    public Tensor conv_pool_forward() {
+        return conv_pool.forward_batch(images, filters);
+    }
+
+    @Benchmark
+    public Tensor conv_pool_backprop() {
+        conv_pool.backprop_batch(d_L_d_pooled, 0);
+        return conv_pool.d_L_d_filters;
+    }
+}
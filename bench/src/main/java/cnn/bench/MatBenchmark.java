@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2019 Elias Yilma
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cnn.bench;
+
+import UTIL.Mat;
+import UTIL.Tensor;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ *
+ * @author Elias Yilma
+ *
+ * Matrix multiplication at the shapes the network actually uses:
+ *      -softmax forward:          [N] X [1352] * [1352] X [10]
+ *      -softmax input gradient:   [N] X [10] * [10] X [1352] (a transposed view)
+ *      -softmax weight gradient:  [1352] X [N] (a transposed view) * [N] X [10]
+ *      -im2col convolution:       [8] X [9] * [9] X [676]
+ *
+ * and the array kernels on a pooled sample (1352 elements), each next to the
+ * plain single-accumulator loop it replaced. Running them once more with
+ * -jvmArgsAppend -XX:-UseSuperWord shows how much of a kernel's speed comes
+ * from the JIT compiler's auto-vectorization.
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MatBenchmark {
+
+    /**
+     * the number of samples per batch.
+     */
+    @Param({"1", "32"})
+    public int batch;
+
+    private Tensor input, weights, totals, d_L_d_t, d_L_d_inputs, d_L_d_w;
+    private Tensor filters, columns, convolved;
+    private float[] x, y;
+
+    @Setup
+    public void setup() {
+        input = Tensor.random(batch, 1352);
+        weights = Tensor.random(1352, 10);
+        totals = new Tensor(batch, 10);
+        d_L_d_t = Tensor.random(batch, 10);
+        d_L_d_inputs = new Tensor(batch, 1352);
+        d_L_d_w = new Tensor(1352, 10);
+        filters = Tensor.random(8, 9);
+        columns = Tensor.random(9, 676);
+        convolved = new Tensor(8, 676);
+        x = Tensor.random(1352).data;
+        y = Tensor.random(1352).data;
+    }
+
+    @Benchmark
+    public Tensor mm_mult_softmax_forward() {
+        return Mat.mm_mult(input, weights);
+    }
+
+    @Benchmark
+    public Tensor mm_mult_into_softmax_forward() {
+        Mat.mm_mult_into(input, weights, totals);
+        return totals;
+    }
+
+    @Benchmark
+    public Tensor mm_mult_into_softmax_input_gradient() {
+        Mat.mm_mult_into(d_L_d_t, weights.transpose(), d_L_d_inputs);
+        return d_L_d_inputs;
+    }
+
+    @Benchmark
+    public Tensor mm_mult_into_softmax_weight_gradient() {
+        Mat.mm_mult_into(input.transpose(), d_L_d_t, d_L_d_w);
+        return d_L_d_w;
+    }
+
+    @Benchmark
+    public Tensor mm_mult_into_im2col() {
+        Mat.mm_mult_into(filters, columns, convolved);
+        return convolved;
+    }
+
+    @Benchmark
+    public float dot() {
+        return Mat.dot(x, 0, y, 0, x.length);
+    }
+
+    @Benchmark
+    public float dot_serial() {
+        float sum = 0;
+        for (int i = 0; i < x.length; i++) {
+            sum += x[i] * y[i];
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public float sum() {
+        return Mat.sum(x, 0, x.length);
+    }
+
+    @Benchmark
+    public float sum_serial() {
+        float sum = 0;
+        for (int i = 0; i < x.length; i++) {
+            sum += x[i];
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public float max() {
+        return Mat.max(x, 0, x.length);
+    }
+
+    @Benchmark
+    public float max_serial() {
+        float max = x[0];
+        for (int i = 1; i < x.length; i++) {
+            max = Math.max(max, x[i]);
+        }
+        return max;
+    }
+
+    @Benchmark
+    public float[] axpy() {
+        Mat.axpy(y.length, 1e-6f, x, 0, y, 0);
+        return y;
+    }
+}
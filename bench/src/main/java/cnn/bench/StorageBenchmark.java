@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2019 Elias Yilma
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cnn.bench;
+
+import UTIL.Tensor;
+import cnn.ConvPool;
+import cnn.Model;
+import cnn.OffHeapModel;
+import cnn.OffHeapTrainer;
+import cnn.SoftMax;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ *
+ * @author Elias Yilma
+ *
+ * The heap storage against the off-heap storage (direct buffers carved out of
+ * an Arena) on synthetic 28X28 images: inference with Model and OffHeapModel,
+ * and a mini-batch training step with ConvPool and SoftMax and with
+ * OffHeapTrainer.
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StorageBenchmark {
+
+    /**
+     * the number of images per batch.
+     */
+    @Param({"32"})
+    public int batch;
+
+    /**
+     * where the parameters (and, when training, the activations) are kept:
+     * "heap" or "off-heap".
+     */
+    @Param({"heap", "off-heap"})
+    public String storage;
+
+    private Model model;
+    private OffHeapModel off_heap_model;
+    private ConvPool conv;
+    private SoftMax softmax;
+    private OffHeapTrainer trainer;
+    private Tensor images, filters;
+    private int[] labels, predicted;
+
+    @Setup
+    public void setup() {
+        images = Tensor.random(batch, 28, 28);
+        filters = Tensor.random(8, 3, 3);
+        softmax = new SoftMax(13 * 13 * 8, 10, batch);
+        conv = new ConvPool(batch, 28, 28, 8);
+        model = new Model(filters, softmax.weights, softmax.bias, 28, 28);
+        off_heap_model = new OffHeapModel(filters, softmax.weights, softmax.bias);
+        trainer = new OffHeapTrainer(filters, softmax.weights, softmax.bias, batch, 28, 28);
+        labels = new int[batch];
+        predicted = new int[batch];
+        for (int n = 0; n < batch; n++) {
+            labels[n] = n % 10;
+        }
+    }
+
+    @TearDown
+    public void teardown() {
+        off_heap_model.close();
+        trainer.close();
+    }
+
+    @Benchmark
+    public int[] predict() {
+        if (storage.equals("heap")) {
+            model.predict(images.data, batch, predicted, null);
+        } else {
+            off_heap_model.predict(images.data, batch, predicted, null);
+        }
+        return predicted;
+    }
+
+    @Benchmark
+    public float step() {
+        if (storage.equals("off-heap")) {
+            trainer.step(images, labels, 0.005f);
+            return trainer.loss;
+        }
+        softmax.forward_batch(conv.forward_batch(images, filters));
+        float loss = 0;
+        for (int n = 0; n < batch; n++) {
+            loss += softmax.cross_entropy(n, labels[n]);
+        }
+        conv.backprop_batch(softmax.backprop_labels(labels, 0, 0.005f), 0.005f);
+        return loss;
+    }
+}
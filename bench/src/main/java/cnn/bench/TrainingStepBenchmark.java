@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2019 Elias Yilma
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cnn.bench;
+
+import UTIL.Tensor;
+import cnn.Convolution;
+import cnn.MaxPool;
+import cnn.SoftMax;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ *
+ * @author Elias Yilma
+ *
+ * One mini-batch step of CNN.train on synthetic 28X28 images: the forward
+ * pass through the convolution, pooling and softmax layers, the
+ * cross-entropy loss, and the backward pass with the parameter updates.
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TrainingStepBenchmark {
+
+    /**
+     * the number of images per batch.
+     */
+    @Param({"1", "32"})
+    public int batch;
+
+    /**
+     * the implementation of the convolution layer (see ConvolutionBenchmark).
+     */
+    @Param({"direct", "im2col", "winograd"})
+    public String impl;
+
+    private Convolution conv;
+    private MaxPool pool;
+    private SoftMax softmax;
+    private Tensor images, filters;
+    private int[] labels;
+
+    @Setup
+    public void setup() {
+        conv = ConvolutionBenchmark.create(impl, batch);
+        pool = new MaxPool(2, 2, batch, 8, 26, 26);
+        softmax = new SoftMax(13 * 13 * 8, 10, batch);
+        images = Tensor.random(batch, 28, 28);
+        filters = Tensor.random(8, 3, 3);
+        labels = new int[batch];
+        for (int n = 0; n < batch; n++) {
+            labels[n] = n % 10;
+        }
+    }
+
+    @Benchmark
+    public float step() {
+        Tensor out = conv.forward_batch(images, filters);
+        out = pool.forward_batch(out);
+        softmax.forward_batch(out);
+        float loss = 0;
+        for (int n = 0; n < batch; n++) {
+            loss += softmax.cross_entropy(n, labels[n]);
+        }
+        Tensor sm_gradient = softmax.backprop_labels(labels, 0, 0.005f);
+        Tensor mp_gradient = pool.backprop_batch(sm_gradient);
+        conv.backprop_batch(mp_gradient, 0.005f);
+        return loss;
+    }
+}
@@ -0,0 +1,258 @@
+/*
+ * Copyright (C) 2019 Elias Yilma
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package UTIL;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+
+/**
+ * A REGION OF OFF-HEAP MEMORY THAT FLOAT BUFFERS ARE CARVED OUT OF
+ *
+ * The arena reserves one direct buffer up front and hands out slices of it
+ * with a bump pointer, so allocating is an addition and the memory is never
+ * scanned or moved by the garbage collector. Every slice starts at an
+ * address that is a multiple of ALIGNMENT bytes (when the address of a direct
+ * buffer can be read, otherwise at a multiple of ALIGNMENT bytes from the
+ * start of the arena), so rows of floats line up with cache lines and vector
+ * registers.
+ *
+ * Slices are not freed one by one: reset makes the whole arena available
+ * again (all slices handed out before are invalid afterwards), and close
+ * frees the memory right away instead of waiting for the garbage collector.
+ * Reading or writing a slice after close may crash the JVM, so an arena must
+ * have a clear owner that closes it, such as OffHeapModel and OffHeapTrainer.
+ *
+ * An arena is not thread-safe: allocate, reset and close must not race with
+ * each other or with the use of a slice after close.
+ *
+ * @author Elias Yilma
+ */
+public class Arena implements AutoCloseable {
+
+    /**
+     * the alignment of every slice in bytes (a cache line).
+     */
+    public static final int ALIGNMENT = 64;
+
+    /*
+     * the direct buffer that was reserved, and the aligned part of it that
+     * the slices are carved out of.
+     */
+    private ByteBuffer reserved, memory;
+    private int position;
+
+    /**
+     * sun.misc.Unsafe, or null if it is not available.
+     */
+    private static final Object UNSAFE = unsafe();
+
+    /**
+     * frees the memory of a direct buffer: Unsafe.invokeCleaner on Java 9 and
+     * later, the cleaner of the buffer on Java 8, or null if neither is
+     * available (the memory is then freed by the garbage collector).
+     */
+    private static final MethodHandle FREE = free();
+
+    /**
+     * reads the address of a direct buffer (the address field of Buffer, read
+     * with Unsafe.getLong), or null if it is not available.
+     */
+    private static final MethodHandle ADDRESS = address();
+
+    private static Object unsafe() {
+        try {
+            Field instance = Class.forName("sun.misc.Unsafe").getDeclaredField("theUnsafe");
+            instance.setAccessible(true);
+            return instance.get(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static MethodHandle free() {
+        MethodType type = MethodType.methodType(void.class, ByteBuffer.class);
+        try {
+            return MethodHandles.lookup().findVirtual(UNSAFE.getClass(), "invokeCleaner", type).bindTo(UNSAFE);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            //Java 8: ((sun.nio.ch.DirectBuffer) buffer).cleaner().clean()
+        }
+        try {
+            Class<?> cleaner = Class.forName("sun.misc.Cleaner");
+            MethodHandle get = MethodHandles.lookup().unreflect(
+                    Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner"));
+            MethodHandle clean = MethodHandles.lookup().findVirtual(cleaner, "clean", MethodType.methodType(void.class));
+            return MethodHandles.filterReturnValue(get, clean).asType(type);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static MethodHandle address() {
+        try {
+            Class<?> unsafe = UNSAFE.getClass();
+            long offset = (Long) unsafe.getMethod("objectFieldOffset", Field.class)
+                    .invoke(UNSAFE, Buffer.class.getDeclaredField("address"));
+            MethodHandle get = MethodHandles.lookup().findVirtual(unsafe, "getLong",
+                    MethodType.methodType(long.class, Object.class, long.class)).bindTo(UNSAFE);
+            return MethodHandles.insertArguments(get, 1, offset)
+                    .asType(MethodType.methodType(long.class, Buffer.class));
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @param b a direct buffer.
+     * @return the address of the first element of b, or -1 if it cannot be read.
+     */
+    static long address(Buffer b) {
+        if (ADDRESS == null) {
+            return -1;
+        }
+        try {
+            return (long) ADDRESS.invokeExact(b);
+        } catch (Throwable e) {
+            return -1;
+        }
+    }
+
+    /**
+     * reserves off-heap memory.
+     * @param bytes the capacity of the arena in bytes.
+     */
+    public Arena(int bytes) {
+        //ALIGNMENT more bytes than needed, so that an aligned start fits.
+        reserved = ByteBuffer.allocateDirect(bytes + ALIGNMENT);
+        long address = address(reserved);
+        int start = address < 0 ? 0 : (int) ((ALIGNMENT - address % ALIGNMENT) % ALIGNMENT);
+        ByteBuffer aligned = reserved.duplicate();
+        aligned.position(start).limit(start + bytes);
+        memory = aligned.slice().order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * @param floats the number of floats (or ints).
+     * @return the number of bytes an arena needs to hold a slice of that many
+     * floats, including the padding for the alignment.
+     */
+    public static int bytes_of(int floats) {
+        return align(4 * floats);
+    }
+
+    private static int align(int bytes) {
+        return (bytes + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+    }
+
+    /**
+     * allocates a slice of the arena. the memory is zero when the arena is new,
+     * but holds the values of earlier slices after a reset.
+     * @param floats the number of floats.
+     * @return a buffer of that capacity, in the native byte order.
+     * @throws IllegalStateException if the arena is closed.
+     * @throws OutOfMemoryError if the arena has no room for the slice.
+     */
+    public FloatBuffer allocate(int floats) {
+        return slice(4 * floats).asFloatBuffer();
+    }
+
+    /**
+     * allocates a slice of the arena for ints, e.g. indices that belong with
+     * float slices. the memory is zero when the arena is new, but holds the
+     * values of earlier slices after a reset.
+     * @param ints the number of ints.
+     * @return a buffer of that capacity, in the native byte order.
+     * @throws IllegalStateException if the arena is closed.
+     * @throws OutOfMemoryError if the arena has no room for the slice.
+     */
+    public IntBuffer allocate_ints(int ints) {
+        return slice(4 * ints).asIntBuffer();
+    }
+
+    private ByteBuffer slice(int bytes) {
+        if (memory == null) {
+            throw new IllegalStateException("arena is closed");
+        }
+        if (bytes > memory.capacity() - position) {
+            throw new OutOfMemoryError("arena of " + memory.capacity() + " bytes has "
+                    + (memory.capacity() - position) + " bytes left, " + bytes + " requested");
+        }
+        ByteBuffer slice = memory.duplicate();
+        slice.position(position).limit(position + bytes);
+        position = Math.min(memory.capacity(), position + align(bytes));
+        return slice.slice().order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * allocates a slice of the arena and copies the elements of a tensor into it.
+     * @param t the tensor.
+     * @return a buffer holding the elements of t in row-major order.
+     */
+    public FloatBuffer allocate(Tensor t) {
+        FloatBuffer b = allocate(t.size());
+        Tensor c = t.is_contiguous() ? t : t.copy();
+        b.put(c.data, c.offset, c.size());
+        b.clear();
+        return b;
+    }
+
+    /**
+     * makes the whole arena available again. every slice allocated before must
+     * no longer be used.
+     */
+    public void reset() {
+        position = 0;
+    }
+
+    /**
+     * @return the number of bytes allocated since the last reset.
+     */
+    public int used() {
+        return position;
+    }
+
+    /**
+     * @return the capacity of the arena in bytes.
+     */
+    public int capacity() {
+        return memory == null ? 0 : memory.capacity();
+    }
+
+    /**
+     * frees the memory of the arena. every slice allocated before must no
+     * longer be used. closing an arena twice has no effect.
+     */
+    @Override
+    public void close() {
+        ByteBuffer m = reserved;
+        reserved = memory = null;
+        position = 0;
+        if (m != null && FREE != null) {
+            try {
+                FREE.invokeExact(m);
+            } catch (Throwable e) {
+                throw new IllegalStateException("cannot free the arena", e);
+            }
+        }
+    }
+}
@@ -18,11 +18,15 @@ package UTIL;
  * This was done to facilitate matrix operations between matrices and vectors
  * without the added hassle of creating two separate methods or an extra dimension.
  * 
+ * Every array operation used by the layers also has a Tensor counterpart that
+ * works on flat, contiguous storage (see Tensor.java).
+ * 
 **/
 public class Mat {
  
     /**
-     * performs naive matrix multiplication between two matrices of shape [k][l] and [l][m]
+     * performs matrix multiplication between two matrices of shape [k][l] and [l][m].
+     * the loops are ordered i-k-j so that the innermost loop walks along rows.
      * @param m1 a 2D array shape of [k][l]
      * @param m2 a 2D array shape of [l][m]
      * @return a 2D array of shape [k][m]
@@ -30,9 +34,12 @@ public class Mat {
     public static float[][] mm_mult(float[][] m1, float[][] m2) {
         float[][] result = new float[m1.length][m2[0].length];
         for (int i = 0; i < m1.length; i++) {//row index
-            for (int j = 0; j < m2[0].length; j++) {//column index
-                for (int k = 0; k < m1[0].length; k++) {
-                    result[i][j] += m1[i][k] * m2[k][j];
+            float[] r = result[i];
+            for (int k = 0; k < m1[0].length; k++) {
+                float a = m1[i][k];
+                float[] b = m2[k];
+                for (int j = 0; j < b.length; j++) {//column index
+                    r[j] += a * b[j];
                 }
             }
         }
@@ -48,9 +55,10 @@ public class Mat {
     public static float[][] mm_add(float[][] m1, float[][] m2) {
         float[][] result = new float[m1.length][m1[0].length];
         for (int i = 0; i < m1.length; i++) {
-            for(int j = 0; j < m1[0].length; j++){
-            result[i][j] = m1[i][j] + m2[i][j];
-        }
+            float[] r = result[i], a = m1[i], b = m2[i];
+            for (int j = 0; j < r.length; j++) {
+                r[j] = a[j] + b[j];
+            }
         }
         return result;
     }
@@ -118,8 +126,9 @@ public class Mat {
     public static float[][] m_scale(float[][] mat, float scale) {
         float[][] scl = new float[mat.length][mat[0].length];
         for (int i = 0; i < mat.length; i++) {
-            for (int j = 0; j < mat[0].length; j++) {
-                scl[i][j] = (float) mat[i][j] * scale;
+            float[] r = scl[i], a = mat[i];
+            for (int j = 0; j < r.length; j++) {
+                r[j] = a[j] * scale;
             }
         }
         return scl;
@@ -131,11 +140,7 @@ public class Mat {
      * @return the total floating sum.
      */
     public static float v_sum(float[][] v) {
-        float sum = 0;
-        for (int i = 0; i < v[0].length; i++) {
-            sum += v[0][i];
-        }
-        return sum;
+        return sum(v[0], 0, v[0].length);
     }
 
     /**
@@ -267,9 +272,7 @@ public class Mat {
     public static float mm_elsum(float[][] mat1, float[][] mat2) {
         float sum = 0;
         for (int i = 0; i < mat1.length; i++) {
-            for (int j = 0; j < mat2[0].length; j++) {
-                sum += mat1[i][j] * mat2[i][j];
-            }
+            sum += dot(mat1[i], 0, mat2[i], 0, mat2[0].length);
         }
         return sum;
     }
@@ -282,9 +285,7 @@ public class Mat {
     public static float m_max(float[][] mat) {
         float max = mat[0][0];
         for (int i = 0; i < mat.length; i++) {
-            for (int j = 0; j < mat[0].length; j++) {
-                max = max < mat[i][j] ? mat[i][j] : max;
-            }
+            max = Math.max(max, max(mat[i], 0, mat[0].length));
         }
         return max;
     }
@@ -416,6 +417,765 @@ public class Mat {
         return output;
     }
 
+    /*
+     * TENSOR VERSIONS
+     *
+     * The following methods mirror the array methods above for Tensor
+     * operands. Shape changing operations (m_transpose, m_flatten, reshape)
+     * return views of their input instead of copies.
+     */
+
+    /**
+     * performs matrix multiplication between two 2D tensors of shape [k][l] and [l][m]
+     * (see mm_mult_into).
+     * @param m1 a tensor of shape [k][l]
+     * @param m2 a tensor of shape [l][m]
+     * @return a tensor of shape [k][m]
+     */
+    public static Tensor mm_mult(Tensor m1, Tensor m2) {
+        Tensor result = new Tensor(m1.shape[0], m2.shape[1]);
+        mm_mult_into(m1, m2, result);
+        return result;
+    }
+
+    /**
+     * element-wise addition of two tensors of the same shape.
+     * @param m1 a tensor
+     * @param m2 another tensor
+     * @return a tensor with the shape of m1.
+     */
+    public static Tensor mm_add(Tensor m1, Tensor m2) {
+        Tensor result = new Tensor(m1.shape);
+        for (int i = 0; i < result.data.length; i++) {
+            result.data[i] = m1.data[m1.index(i)] + m2.data[m2.index(i)];
+        }
+        return result;
+    }
+
+    /**
+     * performs element-wise scaling on a tensor.
+     * @param mat the input tensor.
+     * @param scale the scaling factor.
+     * @return a tensor with the shape of mat.
+     */
+    public static Tensor m_scale(Tensor mat, float scale) {
+        Tensor result = new Tensor(mat.shape);
+        for (int i = 0; i < result.data.length; i++) {
+            result.data[i] = mat.data[mat.index(i)] * scale;
+        }
+        return result;
+    }
+
+    /**
+     * performs element-wise scaling on a vector.
+     * @param v the input vector of shape [1] X [n].
+     * @param scale the scaling factor.
+     * @return a tensor with the same shape as v.
+     */
+    public static Tensor v_scale(Tensor v, float scale) {
+        return m_scale(v, scale);
+    }
+
+    /**
+     * performs element-wise exponentiation on a vector.
+     * @param v the input vector of shape [1] X [n].
+     * @return a tensor with the same shape as v.
+     */
+    public static Tensor v_exp(Tensor v) {
+        Tensor exp = new Tensor(v.shape);
+        for (int i = 0; i < exp.data.length; i++) {
+            exp.data[i] = (float) Math.exp(v.data[v.index(i)]);
+        }
+        return exp;
+    }
+
+    /**
+     * sums all the elements with in a tensor.
+     * @param v the input tensor.
+     * @return the total floating sum.
+     */
+    public static float v_sum(Tensor v) {
+        int n = v.size();
+        if (v.is_contiguous()) {
+            return sum(v.data, v.offset, n);
+        }
+        float sum = 0;
+        for (int i = 0; i < n; i++) {
+            sum += v.data[v.index(i)];
+        }
+        return sum;
+    }
+
+    /**
+     * returns the transpose of a 2D tensor with a shape of [m][n].
+     * @param mat the input tensor.
+     * @return a view with a shape of [n][m].
+     */
+    public static Tensor m_transpose(Tensor mat) {
+        return mat.transpose();
+    }
+
+    /**
+     * performs element-wise multiplication between two 2D tensors and sums the result.
+     * @param mat1 the first input tensor.
+     * @param mat2 the second input tensor.
+     * @return the final sum of the product.
+     */
+    public static float mm_elsum(Tensor mat1, Tensor mat2) {
+        if (mat1.is_contiguous() && mat2.is_contiguous()) {
+            return dot(mat1.data, mat1.offset, mat2.data, mat2.offset, mat1.size());
+        }
+        float sum = 0;
+        for (int i = 0; i < mat1.shape[0]; i++) {
+            for (int j = 0; j < mat1.shape[1]; j++) {
+                sum += mat1.get(i, j) * mat2.get(i, j);
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * returns the maximum value from a 2D tensor.
+     * @param mat the input tensor.
+     * @return a floating value
+     */
+    public static float m_max(Tensor mat) {
+        if (mat.is_contiguous()) {
+            return max(mat.data, mat.offset, mat.size());
+        }
+        float max = mat.get(0, 0);
+        for (int i = 0; i < mat.shape[0]; i++) {
+            for (int j = 0; j < mat.shape[1]; j++) {
+                max = max < mat.get(i, j) ? mat.get(i, j) : max;
+            }
+        }
+        return max;
+    }
+
+    /**
+     * returns the index of the maximum value within a vector.
+     * @param vec the input vector of shape [1] X [n].
+     * @return an integer that corresponds to the index.
+     */
+    public static int v_argmax(Tensor vec) {
+        int arg = 0;
+        for (int i = 0; i < vec.shape[1]; i++) {
+            arg = vec.get(0, arg) < vec.get(0, i) ? i : arg;
+        }
+        return arg;
+    }
+
+    /**
+     * flattens a tensor of any shape into a row vector of shape [1][n].
+     * @param mat the input tensor.
+     * @return a view of shape [1][n] (a copy if mat is not contiguous).
+     */
+    public static Tensor m_flatten(Tensor mat) {
+        return mat.flatten();
+    }
+
+    /**
+     * reorganizes a tensor into the desired 3D shape of [d][h][w].
+     * the size of the input and d*h*w must be the equal.
+     * @param input the input tensor.
+     * @param d the depth of the reshaped tensor.
+     * @param h the row size of the reshaped tensor.
+     * @param w the column size of the reshaped tensor.
+     * @return a view of shape [d][h][w] (a copy if input is not contiguous).
+     */
+    public static Tensor reshape(Tensor input, int d, int h, int w) {
+        return input.reshape(d, h, w);
+    }
+
+    /*
+     * IN-PLACE VERSIONS
+     *
+     * The following methods write their result into a tensor supplied by the
+     * caller (out) instead of allocating a new one, so that the layers can
+     * reuse their buffers from one training step to the next.
+     *
+     * Aliasing: the element-wise kernels (mm_add_into, m_scale_into,
+     * v_exp_into and m_axpy) read every element before writing the element at
+     * the same position, so out (or y) may be the very same tensor as an
+     * input, e.g. m_scale_into(t, 2, t). it must not be a different view that
+     * partially overlaps an input. every other kernel (mm_mult_into, gemm_nn,
+     * gemm_nt, im2col, m_rank_update and the window kernels) reads inputs
+     * after it has started writing the result, so its output must not share
+     * data with any of its inputs.
+     */
+
+    /**
+     * matrix multiplication between two 2D tensors of shape [k][l] and [l][m]
+     * written into out. the kernel is chosen from the shapes and layouts of the
+     * operands:
+     *      [m] X [1] * [1] X [n]   outer product (ger)
+     *      [m] X [l] * [l] X [1]   matrix-vector product (gemv)
+     *      [1] X [l] * [l] X [n]   vector-matrix product (gevm)
+     *      [k] X [l] * [l] X [m]   cache-blocked, register-tiled product (gemm_nn)
+     *      [k] X [l] * ([m] X [l])^T  products of contiguous rows (gemm_nt)
+     *      ([l] X [k])^T * [l] X [m]  sum of outer products of rows (gemm_tn)
+     * strided views that fit none of these use a plain triple loop.
+     * @param m1 a tensor of shape [k][l]
+     * @param m2 a tensor of shape [l][m]
+     * @param out a tensor of shape [k][m], which must not share data with m1 or m2.
+     */
+    public static void mm_mult_into(Tensor m1, Tensor m2, Tensor out) {
+        if (m1.is_contiguous() && out.is_contiguous()) {
+            if (m2.is_contiguous()) {
+                if (m1.shape[1] == 1) {
+                    ger(m1, m2, out);
+                } else if (m2.shape[1] == 1) {
+                    gemv(m1, m2, out);
+                } else if (m1.shape[0] == 1) {
+                    gevm(m1, m2, out);
+                } else {
+                    gemm_nn(m1, m2, out);
+                }
+                return;
+            }
+            if (m2.stride[0] == 1 && m2.stride[1] == m2.shape[0]) {
+                //m2 is the transposed view of a contiguous matrix.
+                gemm_nt(m1, m2, out);
+                return;
+            }
+        } else if (m1.stride[0] == 1 && m1.stride[1] == m1.shape[0]
+                && m2.is_contiguous() && out.is_contiguous()) {
+            //m1 is the transposed view of a contiguous matrix.
+            gemm_tn(m1, m2, out);
+            return;
+        }
+        for (int i = 0; i < m1.shape[0]; i++) {//row index
+            for (int j = 0; j < m2.shape[1]; j++) {//column index
+                float sum = 0;
+                for (int k = 0; k < m1.shape[1]; k++) {
+                    sum += m1.get(i, k) * m2.get(k, j);
+                }
+                out.set(i, j, sum);
+            }
+        }
+    }
+
+    /**
+     * block sizes of the cache-blocked matrix multiplication. a [BLOCK_K] X [BLOCK_N]
+     * block of the right hand matrix (128 KB) is reused for every row of the
+     * left hand matrix while it is still in the L2 cache.
+     */
+    private static final int BLOCK_K = 128, BLOCK_N = 256;
+
+    /**
+     * outer product of a column vector [m] X [1] and a row vector [1] X [n].
+     */
+    private static void ger(Tensor m1, Tensor m2, Tensor out) {
+        int M = m1.shape[0], N = m2.shape[1];
+        float[] a = m1.data, b = m2.data, c = out.data;
+        for (int i = 0; i < M; i++) {
+            float a_i = a[m1.offset + i];
+            int c_row = out.offset + i * N;
+            for (int j = 0; j < N; j++) {
+                c[c_row + j] = a_i * b[m2.offset + j];
+            }
+        }
+    }
+
+    /**
+     * product of a matrix [m] X [l] and a column vector [l] X [1]. every output
+     * element is the dot product of a row of m1 with the vector.
+     */
+    private static void gemv(Tensor m1, Tensor m2, Tensor out) {
+        int M = m1.shape[0], K = m1.shape[1];
+        float[] a = m1.data, b = m2.data, c = out.data;
+        int b0 = m2.offset;
+        for (int i = 0; i < M; i++) {
+            c[out.offset + i] = dot(a, m1.offset + i * K, b, b0, K);
+        }
+    }
+
+    /**
+     * product of a row vector [1] X [l] and a matrix [l] X [n], computed as a
+     * sum of the rows of m2 scaled by the vector elements. zero elements of the
+     * vector (common after max pooling of sparse images) skip a whole row.
+     */
+    private static void gevm(Tensor m1, Tensor m2, Tensor out) {
+        int K = m1.shape[1], N = m2.shape[1];
+        float[] a = m1.data, b = m2.data, c = out.data;
+        int c0 = out.offset;
+        out.fill(0);
+        for (int k = 0; k < K; k++) {
+            float a_k = a[m1.offset + k];
+            if (a_k == 0) {
+                continue;
+            }
+            axpy(N, a_k, b, m2.offset + k * N, c, c0);
+        }
+    }
+
+    /**
+     * cache-blocked multiplication of two contiguous matrices. the loops are
+     * ordered i-k-j so that the innermost loop runs over contiguous rows of
+     * m2 and out, and four rows of m1 are processed together so that every
+     * element of m2 loaded from memory is used four times.
+     */
+    private static void gemm_nn(Tensor m1, Tensor m2, Tensor out) {
+        gemm_nn(m1.shape[0], m1.shape[1], m2.shape[1], m1.data, m1.offset, m2.data, m2.offset,
+                out.data, out.offset);
+    }
+
+    /**
+     * the product c = a * b of the contiguous row-major matrices a ([M] X [K])
+     * and b ([K] X [N]) written into the contiguous [M] X [N] matrix c, which
+     * must not overlap a or b (see gemm_nn above).
+     * @param M the number of rows of a and c.
+     * @param K the number of columns of a and rows of b.
+     * @param N the number of columns of b and c.
+     * @param a the array of the left hand matrix.
+     * @param a0 start index of a.
+     * @param b the array of the right hand matrix.
+     * @param b0 start index of b.
+     * @param c the array of the result.
+     * @param c0 start index of c.
+     */
+    public static void gemm_nn(int M, int K, int N, float[] a, int a0, float[] b, int b0, float[] c, int c0) {
+        java.util.Arrays.fill(c, c0, c0 + M * N, 0);
+        for (int kk = 0; kk < K; kk += BLOCK_K) {
+            int k_end = Math.min(kk + BLOCK_K, K);
+            for (int jj = 0; jj < N; jj += BLOCK_N) {
+                int j_end = Math.min(jj + BLOCK_N, N);
+                int i = 0;
+                for (; i + 3 < M; i += 4) {
+                    int c_r0 = c0 + i * N, c_r1 = c_r0 + N, c_r2 = c_r1 + N, c_r3 = c_r2 + N;
+                    int a_r0 = a0 + i * K, a_r1 = a_r0 + K, a_r2 = a_r1 + K, a_r3 = a_r2 + K;
+                    for (int k = kk; k < k_end; k++) {
+                        float x0 = a[a_r0 + k], x1 = a[a_r1 + k], x2 = a[a_r2 + k], x3 = a[a_r3 + k];
+                        int b_row = b0 + k * N;
+                        for (int j = jj; j < j_end; j++) {
+                            float b_kj = b[b_row + j];
+                            c[c_r0 + j] += x0 * b_kj;
+                            c[c_r1 + j] += x1 * b_kj;
+                            c[c_r2 + j] += x2 * b_kj;
+                            c[c_r3 + j] += x3 * b_kj;
+                        }
+                    }
+                }
+                for (; i < M; i++) {
+                    int c_row = c0 + i * N;
+                    for (int k = kk; k < k_end; k++) {
+                        float a_ik = a[a0 + i * K + k];
+                        if (a_ik == 0) {
+                            continue;
+                        }
+                        int b_row = b0 + k * N;
+                        for (int j = jj; j < j_end; j++) {
+                            c[c_row + j] += a_ik * b[b_row + j];
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * multiplication of a contiguous matrix m1 with m2, where m2 is the transposed
+     * view of a contiguous matrix. every element of the result is then a dot product
+     * between two contiguous rows; four rows of the underlying matrix are processed
+     * together so that every element of m1 is loaded once per four products.
+     */
+    private static void gemm_nt(Tensor m1, Tensor m2, Tensor out) {
+        gemm_nt(m1.shape[0], m1.shape[1], m2.shape[1], m1.data, m1.offset, m2.data, m2.offset,
+                out.data, out.offset);
+    }
+
+    /**
+     * the product c = a * b^T of the contiguous row-major matrices a ([M] X [K])
+     * and b ([N] X [K]) written into the contiguous [M] X [N] matrix c, which
+     * must not overlap a or b (see gemm_nt above).
+     * @param M the number of rows of a and c.
+     * @param K the number of columns of a and b.
+     * @param N the number of rows of b and columns of c.
+     * @param a the array of the left hand matrix.
+     * @param a0 start index of a.
+     * @param b the array of the matrix whose transpose is the right hand matrix.
+     * @param b0 start index of b.
+     * @param c the array of the result.
+     * @param c0 start index of c.
+     */
+    public static void gemm_nt(int M, int K, int N, float[] a, int a0, float[] b, int b0, float[] c, int c0) {
+        for (int i = 0; i < M; i++) {
+            int a_row = a0 + i * K;
+            int c_row = c0 + i * N;
+            int j = 0;
+            for (; j + 3 < N; j += 4) {
+                int b_r0 = b0 + j * K, b_r1 = b_r0 + K, b_r2 = b_r1 + K, b_r3 = b_r2 + K;
+                float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+                for (int k = 0; k < K; k++) {
+                    float a_ik = a[a_row + k];
+                    s0 += a_ik * b[b_r0 + k];
+                    s1 += a_ik * b[b_r1 + k];
+                    s2 += a_ik * b[b_r2 + k];
+                    s3 += a_ik * b[b_r3 + k];
+                }
+                c[c_row + j] = s0;
+                c[c_row + j + 1] = s1;
+                c[c_row + j + 2] = s2;
+                c[c_row + j + 3] = s3;
+            }
+            for (; j < N; j++) {
+                c[c_row + j] = dot(a, a_row, b, b0 + j * K, K);
+            }
+        }
+    }
+
+    /**
+     * multiplication of m1, the transposed view of a contiguous matrix A, with a
+     * contiguous matrix m2, computed as the sum of the outer products of the rows
+     * of A and m2. used for weight gradients of a batch, X^T * dY.
+     */
+    private static void gemm_tn(Tensor m1, Tensor m2, Tensor out) {
+        int M = m1.shape[0], L = m1.shape[1], N = m2.shape[1];
+        float[] a = m1.data, b = m2.data, c = out.data;
+        out.fill(0);
+        for (int l = 0; l < L; l++) {
+            int a_row = m1.offset + l * m1.stride[1];
+            int b_row = m2.offset + l * N;
+            for (int i = 0; i < M; i++) {
+                float a_li = a[a_row + i];
+                if (a_li == 0) {
+                    continue;
+                }
+                axpy(N, a_li, b, b_row, c, out.offset + i * N);
+            }
+        }
+    }
+
+    /**
+     * lowers a 2D image into a matrix of sliding windows (im2col) so that a
+     * convolution with any number of [fh] X [fw] filters becomes a single
+     * matrix multiplication. row (a*fw + b) of cols holds pixel (i+a, j+b) for
+     * every output position (i, j), i.e.
+     * cols[a*fw + b][i*ow + j] = img[i + a][j + b].
+     * @param img the input image of shape [h] X [w].
+     * @param fh the row size of the filters.
+     * @param fw the column size of the filters.
+     * @param cols a tensor of shape [fh*fw] X [(h-fh+1)*(w-fw+1)].
+     */
+    public static void im2col(Tensor img, int fh, int fw, Tensor cols) {
+        int oh = img.shape[0] - fh + 1, ow = img.shape[1] - fw + 1;
+        for (int a = 0; a < fh; a++) {
+            for (int b = 0; b < fw; b++) {
+                int col_row = cols.offset + (a * fw + b) * cols.stride[0];
+                for (int i = 0; i < oh; i++) {
+                    int img_row = img.offset + (i + a) * img.stride[0] + b * img.stride[1];
+                    int dst = col_row + i * ow * cols.stride[1];
+                    for (int j = 0; j < ow; j++) {
+                        cols.data[dst + j * cols.stride[1]] = img.data[img_row + j * img.stride[1]];
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * lowers the contiguous [h] X [w] image starting at img[img_off] into the
+     * contiguous matrix of sliding windows starting at cols[cols_off], laid out
+     * as by im2col above. cols must not overlap the image.
+     * @param img the array of the image.
+     * @param img_off start index of the image.
+     * @param h the row size of the image.
+     * @param w the column size of the image.
+     * @param fh the row size of the filters.
+     * @param fw the column size of the filters.
+     * @param cols the array of the [fh*fw] X [(h-fh+1)*(w-fw+1)] matrix.
+     * @param cols_off start index of the matrix.
+     */
+    public static void im2col(float[] img, int img_off, int h, int w, int fh, int fw, float[] cols, int cols_off) {
+        int oh = h - fh + 1, ow = w - fw + 1;
+        int dst = cols_off;
+        for (int a = 0; a < fh; a++) {
+            for (int b = 0; b < fw; b++) {
+                for (int i = 0; i < oh; i++, dst += ow) {
+                    System.arraycopy(img, img_off + (i + a) * w + b, cols, dst, ow);
+                }
+            }
+        }
+    }
+
+    /**
+     * element-wise addition of two tensors of the same shape written into out.
+     * @param m1 a tensor
+     * @param m2 another tensor
+     * @param out a tensor with the shape of m1.
+     */
+    public static void mm_add_into(Tensor m1, Tensor m2, Tensor out) {
+        int n = out.size();
+        if (m1.is_contiguous() && m2.is_contiguous() && out.is_contiguous()) {
+            for (int i = 0; i < n; i++) {
+                out.data[out.offset + i] = m1.data[m1.offset + i] + m2.data[m2.offset + i];
+            }
+            return;
+        }
+        for (int i = 0; i < n; i++) {
+            out.data[out.index(i)] = m1.data[m1.index(i)] + m2.data[m2.index(i)];
+        }
+    }
+
+    /**
+     * element-wise scaling of a tensor written into out.
+     * @param mat the input tensor.
+     * @param scale the scaling factor.
+     * @param out a tensor with the shape of mat.
+     */
+    public static void m_scale_into(Tensor mat, float scale, Tensor out) {
+        int n = out.size();
+        if (mat.is_contiguous() && out.is_contiguous()) {
+            for (int i = 0; i < n; i++) {
+                out.data[out.offset + i] = mat.data[mat.offset + i] * scale;
+            }
+            return;
+        }
+        for (int i = 0; i < n; i++) {
+            out.data[out.index(i)] = mat.data[mat.index(i)] * scale;
+        }
+    }
+
+    /**
+     * element-wise exponentiation of a vector written into out.
+     * @param v the input vector.
+     * @param out a tensor with the shape of v.
+     */
+    public static void v_exp_into(Tensor v, Tensor out) {
+        int n = out.size();
+        for (int i = 0; i < n; i++) {
+            out.data[out.index(i)] = (float) Math.exp(v.data[v.index(i)]);
+        }
+    }
+
+    /**
+     * scaled accumulation (the BLAS "axpy" operation) y = y + a * x.
+     * @param a the scaling factor applied to x.
+     * @param x the input tensor.
+     * @param y the tensor to be updated, with the shape of x.
+     */
+    public static void m_axpy(float a, Tensor x, Tensor y) {
+        int n = y.size();
+        if (x.is_contiguous() && y.is_contiguous()) {
+            axpy(n, a, x.data, x.offset, y.data, y.offset);
+            return;
+        }
+        for (int i = 0; i < n; i++) {
+            y.data[y.index(i)] += a * x.data[x.index(i)];
+        }
+    }
 
+    /**
+     * in-place rank-N update of a matrix with the outer products of the rows
+     * of x and y, i.e. a = a + alpha * x^T * y. for a single row (N = 1) this is
+     * the rank-1 update (the BLAS "ger" operation) used to apply a weight
+     * gradient without storing it.
+     * @param alpha the scaling factor.
+     * @param x a tensor of shape [N] X [m].
+     * @param y a tensor of shape [N] X [n].
+     * @param a the [m] X [n] matrix to be updated.
+     */
+    public static void m_rank_update(float alpha, Tensor x, Tensor y, Tensor a) {
+        int N = x.shape[0], M = x.shape[1], n = y.shape[1];
+        if (x.is_contiguous() && y.is_contiguous() && a.is_contiguous()) {
+            for (int r = 0; r < N; r++) {
+                int x_row = x.offset + r * M, y_row = y.offset + r * n;
+                for (int i = 0; i < M; i++) {
+                    float x_ri = x.data[x_row + i];
+                    if (x_ri == 0) {
+                        continue;
+                    }
+                    axpy(n, alpha * x_ri, y.data, y_row, a.data, a.offset + i * n);
+                }
+            }
+            return;
+        }
+        for (int r = 0; r < N; r++) {
+            for (int i = 0; i < M; i++) {
+                float x_ri = alpha * x.get(r, i);
+                for (int j = 0; j < n; j++) {
+                    a.set(i, j, a.get(i, j) + x_ri * y.get(r, j));
+                }
+            }
+        }
+    }
+
+    /**
+     * performs element-wise multiplication between the filter and the region of
+     * a 2D tensor whose top left corner is at (r, c), and sums the result.
+     * equivalent to mm_elsum(img.sub(r, r+fh-1, c, c+fw-1), filter) without
+     * creating the view.
+     * @param img the input tensor.
+     * @param r start row index of the region.
+     * @param c start column index of the region.
+     * @param filter a 2D tensor of shape [fh] X [fw].
+     * @return the final sum of the product.
+     */
+    public static float m_window_elsum(Tensor img, int r, int c, Tensor filter) {
+        float sum = 0;
+        for (int i = 0; i < filter.shape[0]; i++) {
+            int row = img.offset + (r + i) * img.stride[0] + c * img.stride[1];
+            int f_row = filter.offset + i * filter.stride[0];
+            for (int j = 0; j < filter.shape[1]; j++) {
+                sum += img.data[row + j * img.stride[1]] * filter.data[f_row + j * filter.stride[1]];
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * accumulates a scaled region of a 2D tensor, whose top left corner is at
+     * (r, c), into y. i.e. y = y + a * img.sub(r, r+h-1, c, c+w-1) where [h] X [w]
+     * is the shape of y.
+     * @param a the scaling factor.
+     * @param img the input tensor.
+     * @param r start row index of the region.
+     * @param c start column index of the region.
+     * @param y the 2D tensor to be updated.
+     */
+    public static void m_window_axpy(float a, Tensor img, int r, int c, Tensor y) {
+        for (int i = 0; i < y.shape[0]; i++) {
+            int row = img.offset + (r + i) * img.stride[0] + c * img.stride[1];
+            int y_row = y.offset + i * y.stride[0];
+            for (int j = 0; j < y.shape[1]; j++) {
+                y.data[y_row + j * y.stride[1]] += a * img.data[row + j * img.stride[1]];
+            }
+        }
+    }
+
+    /**
+     * returns the maximum value within the [h] X [w] region of a 2D tensor whose
+     * top left corner is at (r, c).
+     * @param img the input tensor.
+     * @param r start row index of the region.
+     * @param c start column index of the region.
+     * @param h row size of the region.
+     * @param w column size of the region.
+     * @return a floating value
+     */
+    public static float m_window_max(Tensor img, int r, int c, int h, int w) {
+        float max = img.get(r, c);
+        for (int i = r; i < r + h; i++) {
+            for (int j = c; j < c + w; j++) {
+                float v = img.get(i, j);
+                max = max < v ? v : max;
+            }
+        }
+        return max;
+    }
+
+    /*
+     * ARRAY KERNELS
+     *
+     * The loops below operate on contiguous ranges of float[] and are the
+     * building blocks of the Tensor methods above. dot and sum keep four
+     * independent partial sums, so the additions do not form a single
+     * dependency chain; the JIT compiler does not vectorize them, since that
+     * would change the order of the floating point additions. axpy and max
+     * are plain counted loops, which C2 (HotSpot's optimizing JIT) may compile
+     * to SIMD instructions; nothing here depends on it. MatBenchmark measures
+     * every kernel against a plain loop.
+     */
+
+    /**
+     * the dot product of a[a_off .. a_off+n-1] and b[b_off .. b_off+n-1].
+     * @param a the first array.
+     * @param a_off start index within a.
+     * @param b the second array.
+     * @param b_off start index within b.
+     * @param n the number of elements.
+     * @return the floating sum of the products.
+     */
+    public static float dot(float[] a, int a_off, float[] b, int b_off, int n) {
+        float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int i = 0;
+        for (; i + 3 < n; i += 4) {
+            s0 += a[a_off + i] * b[b_off + i];
+            s1 += a[a_off + i + 1] * b[b_off + i + 1];
+            s2 += a[a_off + i + 2] * b[b_off + i + 2];
+            s3 += a[a_off + i + 3] * b[b_off + i + 3];
+        }
+        for (; i < n; i++) {
+            s0 += a[a_off + i] * b[b_off + i];
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    /**
+     * the sum of a[off .. off+n-1].
+     * @param a the input array.
+     * @param off start index within a.
+     * @param n the number of elements.
+     * @return the floating sum.
+     */
+    public static float sum(float[] a, int off, int n) {
+        float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int i = 0;
+        for (; i + 3 < n; i += 4) {
+            s0 += a[off + i];
+            s1 += a[off + i + 1];
+            s2 += a[off + i + 2];
+            s3 += a[off + i + 3];
+        }
+        for (; i < n; i++) {
+            s0 += a[off + i];
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    /**
+     * the maximum of a[off .. off+n-1].
+     * @param a the input array.
+     * @param off start index within a.
+     * @param n the number of elements, at least 1.
+     * @return a floating value
+     */
+    public static float max(float[] a, int off, int n) {
+        float m0 = a[off], m1 = m0, m2 = m0, m3 = m0;
+        int i = 0;
+        for (; i + 3 < n; i += 4) {
+            m0 = Math.max(m0, a[off + i]);
+            m1 = Math.max(m1, a[off + i + 1]);
+            m2 = Math.max(m2, a[off + i + 2]);
+            m3 = Math.max(m3, a[off + i + 3]);
+        }
+        for (; i < n; i++) {
+            m0 = Math.max(m0, a[off + i]);
+        }
+        return Math.max(Math.max(m0, m1), Math.max(m2, m3));
+    }
+
+    /**
+     * the index of the maximum of a[off .. off+n-1], relative to off. the first
+     * of several equal maxima is returned.
+     * @param a the input array.
+     * @param off start index within a.
+     * @param n the number of elements, at least 1.
+     * @return an index between 0 and n-1.
+     */
+    public static int argmax(float[] a, int off, int n) {
+        int best = 0;
+        for (int i = 1; i < n; i++) {
+            if (a[off + i] > a[off + best]) {
+                best = i;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * y[y_off .. y_off+n-1] += alpha * x[x_off .. x_off+n-1].
+     * @param n the number of elements.
+     * @param alpha the scaling factor.
+     * @param x the input array.
+     * @param x_off start index within x.
+     * @param y the array to be updated.
+     * @param y_off start index within y.
+     */
+    public static void axpy(int n, float alpha, float[] x, int x_off, float[] y, int y_off) {
+        for (int i = 0; i < n; i++) {
+            y[y_off + i] += alpha * x[x_off + i];
+        }
+    }
 
 }
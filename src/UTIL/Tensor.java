@@ -0,0 +1,509 @@
+/*
+ * Copyright (C) 2019 Elias Yilma
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package UTIL;
+
+import java.util.Arrays;
+
+/**
+ * A FLAT N-DIMENSIONAL ARRAY FOR CNN OPERATIONS
+ *
+ * All elements are stored in a single float[] (data) and addressed through
+ * an offset and per-dimension strides, i.e. element [i][j][k] lives at
+ * data[offset + i*stride[0] + j*stride[1] + k*stride[2]].
+ *
+ * reshape, flatten, transpose and slice return views that share the same
+ * data array, so changing the shape of a tensor never copies its elements
+ * (unless a reshape is requested on a non-contiguous view).
+ *
+ * As in Mat, row vectors are tensors of shape [1] X [n] and column vectors
+ * are tensors of shape [m] X [1].
+ *
+ * @author Elias Yilma
+ */
+public class Tensor {
+
+    /**
+     * the backing array shared by this tensor and all of its views.
+     */
+    public final float[] data;
+
+    /**
+     * index of the first element of this tensor within data.
+     */
+    public final int offset;
+
+    /**
+     * the size of each dimension.
+     */
+    public final int[] shape;
+
+    /**
+     * the distance within data between two consecutive elements of each dimension.
+     */
+    public final int[] stride;
+
+    /**
+     * creates a zero-initialized, contiguous tensor of the specified shape.
+     * @param shape the size of each dimension e.g. (8, 26, 26).
+     */
+    public Tensor(int... shape) {
+        this(new float[size_of(shape)], 0, shape.clone(), strides_of(shape));
+    }
+
+    /**
+     * creates a view over an existing data array.
+     * @param data the backing array.
+     * @param offset index of the first element.
+     * @param shape the size of each dimension.
+     * @param stride the stride of each dimension.
+     */
+    public Tensor(float[] data, int offset, int[] shape, int[] stride) {
+        this.data = data;
+        this.offset = offset;
+        this.shape = shape;
+        this.stride = stride;
+    }
+
+    /**
+     * wraps an existing array as a contiguous tensor without copying it.
+     * the length of data must be equal to the product of the shape.
+     * @param data the backing array.
+     * @param shape the size of each dimension.
+     * @return a tensor sharing data.
+     */
+    public static Tensor wrap(float[] data, int... shape) {
+        if (data.length != size_of(shape)) {
+            throw new IllegalArgumentException("cannot wrap " + data.length
+                    + " elements as " + Arrays.toString(shape));
+        }
+        return new Tensor(data, 0, shape.clone(), strides_of(shape));
+    }
+
+    /**
+     * copies a 2D array of shape [m] X [n] into a new tensor of the same shape.
+     * @param mat the input matrix.
+     * @return a contiguous tensor of shape [m] X [n].
+     */
+    public static Tensor of(float[][] mat) {
+        Tensor t = new Tensor(mat.length, mat[0].length);
+        for (int i = 0; i < mat.length; i++) {
+            System.arraycopy(mat[i], 0, t.data, i * mat[0].length, mat[0].length);
+        }
+        return t;
+    }
+
+    /**
+     * copies a 3D array of shape [d] X [h] X [w] into a new tensor of the same shape.
+     * @param mat the input matrix.
+     * @return a contiguous tensor of shape [d] X [h] X [w].
+     */
+    public static Tensor of(float[][][] mat) {
+        int h = mat[0].length, w = mat[0][0].length;
+        Tensor t = new Tensor(mat.length, h, w);
+        for (int i = 0; i < mat.length; i++) {
+            for (int j = 0; j < h; j++) {
+                System.arraycopy(mat[i][j], 0, t.data, (i * h + j) * w, w);
+            }
+        }
+        return t;
+    }
+
+    /**
+     * creates a tensor of the specified shape and initializes it with random
+     * values between 0.0 and 1.0.
+     * @param shape the size of each dimension.
+     * @return a contiguous tensor of the specified shape.
+     */
+    public static Tensor random(int... shape) {
+        Tensor t = new Tensor(shape);
+        for (int i = 0; i < t.data.length; i++) {
+            t.data[i] = (float) Math.random();
+        }
+        return t;
+    }
+
+    /**
+     * returns buffer if it already has the requested shape, otherwise a new
+     * zero-initialized tensor of that shape. used by the layers to keep their
+     * buffers from one call to the next.
+     * @param buffer a previously allocated tensor, or null.
+     * @param shape the required shape.
+     * @return a tensor of the requested shape.
+     */
+    public static Tensor reuse(Tensor buffer, int... shape) {
+        if (buffer != null && Arrays.equals(buffer.shape, shape)) {
+            return buffer;
+        }
+        return new Tensor(shape);
+    }
+
+    /**
+     * returns a tensor of the requested shape that uses the array of buffer
+     * when it is large enough, otherwise a new zero-initialized tensor. unlike
+     * reuse, a smaller shape (e.g. the last, partial batch) is served from the
+     * same array, so a workspace sized once for the largest shape is never
+     * reallocated. the elements are not cleared.
+     * @param buffer a previously allocated tensor, or null.
+     * @param shape the required shape.
+     * @return a contiguous tensor of the requested shape.
+     */
+    public static Tensor reserve(Tensor buffer, int... shape) {
+        if (buffer != null && Arrays.equals(buffer.shape, shape)) {
+            return buffer;
+        }
+        if (buffer != null && buffer.offset == 0 && buffer.data.length >= size_of(shape)) {
+            return new Tensor(buffer.data, 0, shape.clone(), strides_of(shape));
+        }
+        return new Tensor(shape);
+    }
+
+    /**
+     * reserve for a 2D shape, which does not create the shape array when
+     * buffer already has the shape (the common case of a training step).
+     * @param buffer a previously allocated tensor, or null.
+     * @param d0 the size of the first dimension.
+     * @param d1 the size of the second dimension.
+     * @return a contiguous tensor of shape [d0] X [d1].
+     */
+    public static Tensor reserve(Tensor buffer, int d0, int d1) {
+        if (buffer != null && buffer.shape.length == 2 && buffer.shape[0] == d0 && buffer.shape[1] == d1) {
+            return buffer;
+        }
+        return reserve(buffer, new int[]{d0, d1});
+    }
+
+    /**
+     * reserve for a 3D shape, see reserve(buffer, d0, d1).
+     * @param buffer a previously allocated tensor, or null.
+     * @param d0 the size of the first dimension.
+     * @param d1 the size of the second dimension.
+     * @param d2 the size of the third dimension.
+     * @return a contiguous tensor of shape [d0] X [d1] X [d2].
+     */
+    public static Tensor reserve(Tensor buffer, int d0, int d1, int d2) {
+        if (buffer != null && buffer.shape.length == 3 && buffer.shape[0] == d0 && buffer.shape[1] == d1
+                && buffer.shape[2] == d2) {
+            return buffer;
+        }
+        return reserve(buffer, new int[]{d0, d1, d2});
+    }
+
+    /**
+     * reserve for a 4D shape, see reserve(buffer, d0, d1).
+     * @param buffer a previously allocated tensor, or null.
+     * @param d0 the size of the first dimension.
+     * @param d1 the size of the second dimension.
+     * @param d2 the size of the third dimension.
+     * @param d3 the size of the fourth dimension.
+     * @return a contiguous tensor of shape [d0] X [d1] X [d2] X [d3].
+     */
+    public static Tensor reserve(Tensor buffer, int d0, int d1, int d2, int d3) {
+        if (buffer != null && buffer.shape.length == 4 && buffer.shape[0] == d0 && buffer.shape[1] == d1
+                && buffer.shape[2] == d2 && buffer.shape[3] == d3) {
+            return buffer;
+        }
+        return reserve(buffer, new int[]{d0, d1, d2, d3});
+    }
+
+    /**
+     * returns the number of elements described by a shape.
+     * @param shape the size of each dimension.
+     * @return the product of all dimensions.
+     */
+    public static int size_of(int... shape) {
+        int size = 1;
+        for (int s : shape) {
+            size *= s;
+        }
+        return size;
+    }
+
+    /**
+     * computes the row-major (C order) strides of a shape.
+     * @param shape the size of each dimension.
+     * @return the stride of each dimension.
+     */
+    public static int[] strides_of(int... shape) {
+        int[] stride = new int[shape.length];
+        int s = 1;
+        for (int i = shape.length - 1; i >= 0; i--) {
+            stride[i] = s;
+            s *= shape[i];
+        }
+        return stride;
+    }
+
+    /**
+     * @return the number of dimensions.
+     */
+    public int rank() {
+        return shape.length;
+    }
+
+    /**
+     * @return the total number of elements.
+     */
+    public int size() {
+        return size_of(shape);
+    }
+
+    /**
+     * @param i the dimension index.
+     * @return the size of the ith dimension.
+     */
+    public int dim(int i) {
+        return shape[i];
+    }
+
+    /**
+     * checks whether the elements of this tensor occupy a single unbroken,
+     * row-major range of data.
+     * @return true if the tensor is contiguous.
+     */
+    public boolean is_contiguous() {
+        int s = 1;
+        for (int i = shape.length - 1; i >= 0; i--) {
+            if (shape[i] != 1 && stride[i] != s) {
+                return false;
+            }
+            s *= shape[i];
+        }
+        return true;
+    }
+
+    public float get(int i) {
+        return data[offset + i * stride[0]];
+    }
+
+    public float get(int i, int j) {
+        return data[offset + i * stride[0] + j * stride[1]];
+    }
+
+    public float get(int i, int j, int k) {
+        return data[offset + i * stride[0] + j * stride[1] + k * stride[2]];
+    }
+
+    public void set(int i, float value) {
+        data[offset + i * stride[0]] = value;
+    }
+
+    public void set(int i, int j, float value) {
+        data[offset + i * stride[0] + j * stride[1]] = value;
+    }
+
+    public void set(int i, int j, int k, float value) {
+        data[offset + i * stride[0] + j * stride[1] + k * stride[2]] = value;
+    }
+
+    /**
+     * returns a view of the ith entry along the first dimension, e.g. the
+     * kth [26] X [26] image of an [8] X [26] X [26] tensor.
+     * @param i the index along the first dimension.
+     * @return a tensor of rank()-1 dimensions sharing data.
+     */
+    public Tensor slice(int i) {
+        return new Tensor(data, offset + i * stride[0],
+                Arrays.copyOfRange(shape, 1, shape.length),
+                Arrays.copyOfRange(stride, 1, stride.length));
+    }
+
+    /**
+     * slice(i) that returns view itself when it is already that slice, so that
+     * a layer called again with the same tensors creates no new view.
+     * @param i the index along the first dimension.
+     * @param view a view returned by an earlier call, or null.
+     * @return a tensor of rank()-1 dimensions sharing data.
+     */
+    public Tensor slice(int i, Tensor view) {
+        return view != null && view.data == data && view.offset == offset + i * stride[0]
+                && same_layout(view, 0, this, 1) ? view : slice(i);
+    }
+
+    /**
+     * returns a view of the entries start ... end-1 along the first dimension,
+     * e.g. the first n images of a batch.
+     * @param start the first index (inclusive).
+     * @param end the last index (exclusive).
+     * @return a tensor of the same rank sharing data.
+     */
+    public Tensor slice(int start, int end) {
+        int[] s = shape.clone();
+        s[0] = end - start;
+        return new Tensor(data, offset + start * stride[0], s, stride.clone());
+    }
+
+    /**
+     * returns a view of a rectangular region of a 2D tensor, the zero-copy
+     * counterpart of Mat.m_sub. both end indices are inclusive.
+     * @param r_s start row index.
+     * @param r_e end row index.
+     * @param c_s start column index.
+     * @param c_e end column index.
+     * @return a view of shape [r_e-r_s+1] X [c_e-c_s+1].
+     */
+    public Tensor sub(int r_s, int r_e, int c_s, int c_e) {
+        return new Tensor(data, offset + r_s * stride[0] + c_s * stride[1],
+                new int[]{r_e - r_s + 1, c_e - c_s + 1}, new int[]{stride[0], stride[1]});
+    }
+
+    /**
+     * returns a tensor with the same elements and a new shape. contiguous
+     * tensors are reshaped without copying; other views are copied first.
+     * @param new_shape the desired shape, whose size must match size().
+     * @return a tensor of shape new_shape.
+     */
+    public Tensor reshape(int... new_shape) {
+        if (size_of(new_shape) != size()) {
+            throw new IllegalArgumentException("cannot reshape " + Arrays.toString(shape)
+                    + " to " + Arrays.toString(new_shape));
+        }
+        Tensor src = is_contiguous() ? this : copy();
+        return new Tensor(src.data, src.offset, new_shape.clone(), strides_of(new_shape));
+    }
+
+    /**
+     * returns a view of this tensor as a batch of one sample, i.e. with an
+     * extra leading dimension of size 1: [8] X [26] X [26] ---> [1] X [8] X [26] X [26].
+     * @return a view of rank()+1 dimensions sharing data.
+     */
+    public Tensor as_batch() {
+        int[] s = new int[shape.length + 1], st = new int[shape.length + 1];
+        s[0] = 1;
+        st[0] = size();
+        System.arraycopy(shape, 0, s, 1, shape.length);
+        System.arraycopy(stride, 0, st, 1, stride.length);
+        return new Tensor(data, offset, s, st);
+    }
+
+    /**
+     * as_batch() that returns view itself when it is already the batch view
+     * of this tensor, see slice(i, view).
+     * @param view a view returned by an earlier call, or null.
+     * @return a view of rank()+1 dimensions sharing data.
+     */
+    public Tensor as_batch(Tensor view) {
+        return view != null && view.data == data && view.offset == offset && view.shape.length == shape.length + 1
+                && view.shape[0] == 1 && same_layout(view, 1, this, 0) ? view : as_batch();
+    }
+
+    /**
+     * @return true if the dimensions of a from index a_from on have the same
+     * sizes and strides as those of b from index b_from on.
+     */
+    private static boolean same_layout(Tensor a, int a_from, Tensor b, int b_from) {
+        if (a.shape.length - a_from != b.shape.length - b_from) {
+            return false;
+        }
+        for (int d = 0; d < a.shape.length - a_from; d++) {
+            if (a.shape[a_from + d] != b.shape[b_from + d] || a.stride[a_from + d] != b.stride[b_from + d]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * flattens this tensor into a row vector of shape [1] X [size()].
+     * @return a view of shape [1] X [size()].
+     */
+    public Tensor flatten() {
+        return reshape(1, size());
+    }
+
+    /**
+     * returns the transpose of a 2D tensor by swapping its strides.
+     * @return a view of shape [n] X [m].
+     */
+    public Tensor transpose() {
+        return new Tensor(data, offset, new int[]{shape[1], shape[0]},
+                new int[]{stride[1], stride[0]});
+    }
+
+    /**
+     * copies the elements of this tensor into a new contiguous tensor.
+     * @return a contiguous tensor of the same shape.
+     */
+    public Tensor copy() {
+        Tensor t = new Tensor(shape);
+        copy_to(t);
+        return t;
+    }
+
+    /**
+     * copies the elements of this tensor into dst, which must have the same size.
+     * elements are visited in row-major order on both sides.
+     * @param dst the destination tensor.
+     */
+    public void copy_to(Tensor dst) {
+        if (is_contiguous() && dst.is_contiguous()) {
+            System.arraycopy(data, offset, dst.data, dst.offset, size());
+            return;
+        }
+        int n = size();
+        for (int i = 0; i < n; i++) {
+            dst.data[dst.index(i)] = data[index(i)];
+        }
+    }
+
+    /**
+     * assigns the same value to every element.
+     * @param value the value to be assigned.
+     */
+    public void fill(float value) {
+        if (is_contiguous()) {
+            Arrays.fill(data, offset, offset + size(), value);
+            return;
+        }
+        int n = size();
+        for (int i = 0; i < n; i++) {
+            data[index(i)] = value;
+        }
+    }
+
+    /**
+     * translates a row-major element number into an index of data.
+     * @param flat the position of the element in row-major order.
+     * @return the index of the element within data.
+     */
+    public int index(int flat) {
+        int idx = offset;
+        for (int d = shape.length - 1; d >= 0; d--) {
+            idx += (flat % shape[d]) * stride[d];
+            flat /= shape[d];
+        }
+        return idx;
+    }
+
+    /**
+     * copies a 2D tensor into a 2D java array.
+     * @return a 2D array of shape [m] X [n].
+     */
+    public float[][] to_array2() {
+        float[][] mat = new float[shape[0]][shape[1]];
+        for (int i = 0; i < shape[0]; i++) {
+            for (int j = 0; j < shape[1]; j++) {
+                mat[i][j] = get(i, j);
+            }
+        }
+        return mat;
+    }
+
+    @Override
+    public String toString() {
+        return "Tensor" + Arrays.toString(shape);
+    }
+}
@@ -17,10 +17,11 @@
 package cnn;
 
 import UTIL.Mat;
+import UTIL.Tensor;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
-import java.util.Random;
+import java.util.Arrays;
 import javax.imageio.ImageIO;
 
 /**
@@ -45,138 +46,435 @@ import javax.imageio.ImageIO;
  */
 public class CNN {
 
+    /**
+     * the number of batches between two checkpoints written during training.
+     */
+    public static final int CHECKPOINT_INTERVAL = 500;
+
     /** Loads image from file and returns a bufferedImage.
      * @param src Absolute file path to image
      * @return BufferedImage loaded from file. 
-     * @throws java.io.IOException 
+     * @throws java.io.IOException if the file cannot be read or is not an
+     * image in a format ImageIO supports; the message names the file.
     **/
     public static BufferedImage load_image(String src) throws IOException {
-        return ImageIO.read(new File(src));
+        BufferedImage image;
+        try {
+            image = ImageIO.read(new File(src));
+        } catch (IOException e) {
+            throw new IOException("cannot read " + src, e);
+        }
+        //ImageIO returns null when no reader recognizes the file.
+        if (image == null) {
+            throw new IOException("not a supported image: " + src);
+        }
+        return image;
     }
 
 
     /**
      * converts a BufferedImage into a pixel array and normalizes it. 
      * @param imageToPixelate the source image to be converted.
-     * @return 2D array with normalized pixel values between 0.0 and 1.0
+     * @return [h] X [w] tensor with normalized pixel values between 0.0 and 1.0
+     */
+    public static Tensor img_to_mat(BufferedImage imageToPixelate) {
+        Tensor dta = new Tensor(imageToPixelate.getHeight(), imageToPixelate.getWidth());
+        img_to_mat(imageToPixelate, dta);
+        return dta;
+    }
+
+    /**
+     * converts a BufferedImage into normalized pixel values written into an
+     * existing tensor, e.g. one image of a batch.
+     * @param imageToPixelate the source image to be converted.
+     * @param dta a contiguous [h] X [w] tensor that receives the pixel values.
      */
-    public static float[][] img_to_mat(BufferedImage imageToPixelate) {
+    public static void img_to_mat(BufferedImage imageToPixelate, Tensor dta) {
         int w = imageToPixelate.getWidth(), h = imageToPixelate.getHeight();
         int[] pixels = imageToPixelate.getRGB(0, 0, w, h, null, 0, w);
-        float[][] dta = new float[w][h];
-
-        for (int pixel = 0, row = 0, col = 0; pixel < pixels.length; pixel++) {
-            dta[row][col] = (((int) pixels[pixel] >> 16 & 0xff)) / 255.0f;
-            col++;
-            if (col == w) {
-                col = 0;
-                row++;
-            }
+        //getRGB returns the pixels in row-major order, the same layout as the tensor.
+        for (int pixel = 0; pixel < pixels.length; pixel++) {
+            dta.data[dta.offset + pixel] = (((int) pixels[pixel] >> 16 & 0xff)) / 255.0f;
         }
-        return dta;
     }
 
     /**
      * creates 3X3 convolution filters with random initial weights.
      * @param size number of 3X3 filters to be randomly initialized
-     * @return a [size] X [3] X [3] 3d array with size filters
+     * @return a [size] X [3] X [3] tensor with size filters
+     */
+    public static Tensor init_filters(int size) {
+        return Tensor.random(size, 3, 3);
+    }
+
+    /**
+     * opens the MNIST training set. the first of the following that exists is used:
+     *      -the memory-mapped cache data/mnist/train.cache (see MappedDataset)
+     *      -the IDX files data/mnist/train-images-idx3-ubyte and
+     *       data/mnist/train-labels-idx1-ubyte (see IdxDataset)
+     *      -the PNG images under data/mnist_png/mnist_png/training (see PngDataset)
+     * @return the training images.
+     * @throws IOException if none of the forms of the database can be read.
      */
-    public static float[][][] init_filters(int size) {
-        float[][][] result = new float[size][3][3];
-        for (int k = 0; k < size; k++) {
-            result[k] = Mat.m_random(3, 3);
+    public static Dataset training_data() throws IOException {
+        if (MappedDataset.TRAINING_CACHE.exists()) {
+            return new MappedDataset(MappedDataset.TRAINING_CACHE);
         }
-        return result;
+        return training_source();
     }
 
     /**
-     * loads a random image from a specific digit folder in the MNIST database.
-     * @param label the folder label (ranges between 0 and 9)
-     * @return a BufferedImage of the digit.
-     * @throws IOException if the image file isn't found.
+     * opens the original form of the MNIST training set, ignoring the cache:
+     * the IDX files data/mnist/train-images-idx3-ubyte and
+     * data/mnist/train-labels-idx1-ubyte if they exist, otherwise the PNG
+     * images under data/mnist_png/mnist_png/training. the cache is built from it.
+     * @return the training images.
+     * @throws IOException if neither form of the training set can be read.
      */
-    public static BufferedImage mnist_load_random(int label) throws IOException {
-        String mnist_path = "data\\mnist_png\\mnist_png\\training";
-        File dir = new File(mnist_path + "\\" + label);
-        String[] files = dir.list();
-        int random_index = new Random().nextInt(files.length);
-        String final_path = mnist_path + "\\" + label + "\\" + files[random_index];
-        BufferedImage bi = load_image(final_path);
-        return bi;
+    public static Dataset training_source() throws IOException {
+        File idx_images = new File("data/mnist/train-images-idx3-ubyte");
+        File idx_labels = new File("data/mnist/train-labels-idx1-ubyte");
+        if (idx_images.exists() && idx_labels.exists()) {
+            return new IdxDataset(idx_images, idx_labels);
+        }
+        return new PngDataset(new File("data/mnist_png/mnist_png/training"));
     }
-    
+
+    /**
+     * opens the MNIST testing set: the IDX files data/mnist/t10k-images-idx3-ubyte
+     * and data/mnist/t10k-labels-idx1-ubyte if they exist, otherwise the PNG
+     * images under data/mnist_png/mnist_png/testing.
+     * @return the testing images.
+     * @throws IOException if neither form of the testing set can be read.
+     */
+    public static Dataset testing_data() throws IOException {
+        File idx_images = new File("data/mnist/t10k-images-idx3-ubyte");
+        File idx_labels = new File("data/mnist/t10k-labels-idx1-ubyte");
+        if (idx_images.exists() && idx_labels.exists()) {
+            return new IdxDataset(idx_images, idx_labels);
+        }
+        return new PngDataset(new File("data/mnist_png/mnist_png/testing"));
+    }
+
     /**
      * performs both the forward and back-propagation passes of the CNN.
      * @param training_size the number of images used for training the CNN.
+     * @return the trained network.
+     * @throws IOException if image cannot be found.
+     */
+    public static Model train(int training_size) throws IOException {
+        return train(training_size, new Convolution(1, 28, 28, 8));
+    }
+
+    /**
+     * performs both the forward and back-propagation passes of the CNN using
+     * the specified implementation of the convolution layer.
+     * @param training_size the number of images used for training the CNN.
+     * @param conv the convolution layer e.g. Convolution or Im2ColConvolution.
+     * @return the trained network.
+     * @throws IOException if image cannot be found.
+     */
+    public static Model train(int training_size, Convolution conv) throws IOException {
+        return train(training_size, 1, conv);
+    }
+
+    /**
+     * performs both the forward and back-propagation passes of the CNN with
+     * mini-batch gradient descent: the gradients of batch_size images are
+     * averaged before every update of the weights. a batch_size of 1 is the
+     * per-sample stochastic gradient descent of train(training_size).
+     * @param training_size the number of images used for training the CNN.
+     * @param batch_size the number of images per weight update.
+     * @param conv the convolution layer e.g. Convolution or Im2ColConvolution.
+     * @return the trained network.
      * @throws IOException if image cannot be found.
      */
-    public static void train(int training_size) throws IOException {
-        float[][][] filters = init_filters(8);
-        int label_counter = 0;
+    public static Model train(int training_size, int batch_size, Convolution conv) throws IOException {
+        return train(training_data(), training_size, batch_size, conv);
+    }
+
+    /**
+     * performs mini-batch gradient descent as train(training_size, batch_size, conv)
+     * on the images of the specified dataset, in a new random order every epoch.
+     * the batches are prepared on a background thread (see DataPipeline).
+     * @param data the training images.
+     * @param training_size the number of images used for training the CNN.
+     * @param batch_size the number of images per weight update.
+     * @param conv the convolution layer e.g. Convolution or Im2ColConvolution.
+     * @return the trained network.
+     * @throws IOException if image cannot be read.
+     */
+    public static Model train(Dataset data, int training_size, int batch_size, Convolution conv) throws IOException {
+        return train(data, training_size, batch_size, conv, null);
+    }
+
+    /**
+     * performs mini-batch gradient descent as train(data, training_size, batch_size, conv)
+     * and saves a checkpoint of the parameters every CHECKPOINT_INTERVAL batches
+     * (on a background thread) and once more at the end.
+     * @param data the training images.
+     * @param training_size the number of images used for training the CNN.
+     * @param batch_size the number of images per weight update.
+     * @param conv the convolution layer e.g. Convolution or Im2ColConvolution.
+     * @param checkpoint the checkpoint file, or null to disable checkpointing.
+     * @return the trained network.
+     * @throws IOException if image cannot be read or the checkpoint cannot be written.
+     */
+    public static Model train(Dataset data, int training_size, int batch_size, Convolution conv,
+            File checkpoint) throws IOException {
+        return train(data, training_size, batch_size, conv, checkpoint, false);
+    }
+
+    /**
+     * performs mini-batch gradient descent as train(data, training_size, batch_size, conv, checkpoint),
+     * optionally on randomly shifted and rotated copies of the images.
+     * @param data the training images.
+     * @param training_size the number of images used for training the CNN.
+     * @param batch_size the number of images per weight update.
+     * @param conv the convolution layer e.g. Convolution or Im2ColConvolution.
+     * @param checkpoint the checkpoint file, or null to disable checkpointing.
+     * @param augment whether to augment every image (see DataPipeline).
+     * @return the trained network.
+     * @throws IOException if image cannot be read or the checkpoint cannot be written.
+     */
+    public static Model train(Dataset data, int training_size, int batch_size, Convolution conv,
+            File checkpoint, boolean augment) throws IOException {
+        Tensor filters = init_filters(8);
         float ce_loss=0;
         int accuracy=0;
         float acc_sum=0.0f;
         float learn_rate=0.005f;
         
-        //initialize layers
-        Convolution conv=new Convolution();
-        MaxPool pool=new MaxPool();
-        SoftMax softmax=new SoftMax(13*13*8,10);
-
-        float[][] out_l = new float[1][10];    
-        for (int i = 0; i < training_size; i++) {
-            //grab a random image from database.
-            BufferedImage bi = mnist_load_random(label_counter);
-            int correct_label = label_counter;
-            if(label_counter==9){
-                label_counter=0;
-            }else{
-                label_counter++;
-            }
+        //initialize layers with workspaces for batch_size images, so that
+        //training allocates no activation or gradient buffers after this point.
+        int c_rows = data.rows() - 2, c_columns = data.columns() - 2;
+        MaxPool pool=new MaxPool(2, 2, batch_size, filters.shape[0], c_rows, c_columns);
+        SoftMax softmax=new SoftMax(filters.shape[0]*pool.pooled(c_rows)*pool.pooled(c_columns),10,batch_size);
+
+        Tensor out_l;
+        //a null writer is skipped when the resources are closed. a failure
+        //while closing is added to the exception of the training loop, if any.
+        try (Checkpoint.Writer writer = checkpoint == null ? null : new Checkpoint.Writer(checkpoint, CHECKPOINT_INTERVAL);
+                DataPipeline pipeline = new DataPipeline(data, batch_size, 4, 1, augment, System.nanoTime());
+                Metrics.Reporter reporter = new Metrics.Reporter()) {
+            for (int i = 0; i < training_size; i += batch_size) {
+                //the last batch may be smaller than batch_size.
+                int n = Math.min(batch_size, training_size - i);
+                long t = Metrics.start();
+                DataPipeline.Batch next = take(pipeline);
+                Metrics.stop(Metrics.Stage.WAIT, t, n);
+                int[] labels = next.labels;
+                Tensor batch = n == batch_size ? next.images : next.images.slice(0, n);
             
-            //FORWARD PROPAGATION
+                //FORWARD PROPAGATION
             
-            //convert to pixel array
-            float[][] pxl = img_to_mat(bi);
-            // perform convolution 28*28 --> 8x26x26
-            float[][][] out = conv.forward(pxl, filters);
+                // perform convolution Nx28*28 --> Nx8x26x26
+                t = Metrics.start();
+                Tensor out = conv.forward_batch(batch, filters);
+                Metrics.stop(Metrics.Stage.CONVOLUTION, t, n);
 
-            // perform maximum pooling  8x26x26 --> 8x13x13
-            out = pool.forward(out);
+                // perform maximum pooling  Nx8x26x26 --> Nx8x13x13
+                t = Metrics.start();
+                out = pool.forward_batch(out);
+                Metrics.stop(Metrics.Stage.POOLING, t, n);
             
-            // perform softmax operation  8*13*13 --> 10
-            out_l = softmax.forward(out); 
+                // perform softmax operation  Nx8*13*13 --> Nx10
+                t = Metrics.start();
+                out_l = softmax.forward_batch(out); 
+                Metrics.stop(Metrics.Stage.SOFTMAX, t, n);
             
-            // compute cross-entropy loss
-            ce_loss += (float) -Math.log(out_l[0][correct_label]);
-            accuracy += correct_label == Mat.v_argmax(out_l) ? 1 : 0;
+                for (int b = 0; b < n; b++) {
+                    int correct_label = labels[b];
+                    // compute cross-entropy loss
+                    ce_loss += softmax.cross_entropy(b, correct_label);
+                    accuracy += correct_label == Mat.argmax(out_l.data, out_l.offset + b * 10, 10) ? 1 : 0;
+                    if((i + b) % 100 == 99){
+                        reporter.report(i + b, i + b + 1, ce_loss / 100.0, accuracy / 100.0, pipeline.depth());
+                        ce_loss=0;
+                        acc_sum+=accuracy;
+                        accuracy=0;
+                    }
+                }
             
-            //BACKWARD PROPAGATION --- STOCHASTIC GRADIENT DESCENT
-            //gradient of the cross entropy loss
-            float[][] gradient=Mat.v_zeros(10);
-            gradient[0][correct_label]=-1/out_l[0][correct_label];
-            float[][][] sm_gradient=softmax.backprop(gradient,learn_rate);
-            float[][][] mp_gradient=pool.backprop(sm_gradient);
-            conv.backprop(mp_gradient, learn_rate);
-            if(i % 100 == 99){
-                System.out.println(" step: "+ i+ " loss: "+ce_loss/100.0+" accuracy: "+accuracy);
-                ce_loss=0;
-                acc_sum+=accuracy;
-                accuracy=0;
+                //BACKWARD PROPAGATION --- MINI-BATCH GRADIENT DESCENT
+                //the cross-entropy loss and the softmax are differentiated together.
+                t = Metrics.start();
+                Tensor sm_gradient=softmax.backprop_labels(labels,0,learn_rate);
+                Metrics.stop(Metrics.Stage.SOFTMAX_BACKWARD, t, n);
+                t = Metrics.start();
+                Tensor mp_gradient=pool.backprop_batch(sm_gradient);
+                Metrics.stop(Metrics.Stage.POOLING_BACKWARD, t, n);
+                t = Metrics.start();
+                conv.backprop_batch(mp_gradient, learn_rate);
+                Metrics.stop(Metrics.Stage.CONVOLUTION_BACKWARD, t, n);
+                pipeline.release(next);
+                if (writer != null) {
+                    writer.step(i / batch_size + 1, filters, softmax.weights, softmax.bias);
+                }
             }
         }
-        System.out.println("average accuracy:- "+acc_sum/training_size+"%");
+        if (checkpoint != null) {
+            new Checkpoint(filters, softmax.weights, softmax.bias).save(checkpoint);
+        }
+        System.out.println("average accuracy:- "+acc_sum*100/training_size+"%");
+        return new Model(filters, softmax.weights, softmax.bias, data.rows(), data.columns());
     }
 
     
       
+    /**
+     * trains the CNN with mini-batch gradient descent on several threads (see
+     * ParallelTrainer).
+     * @param training_size the number of images used for training the CNN.
+     * @param batch_size the number of images per weight update.
+     * @param threads the number of worker threads.
+     * @return the trained network.
+     * @throws IOException if image cannot be found.
+     */
+    public static Model train_parallel(int training_size, int batch_size, int threads) throws IOException {
+        return train_parallel(training_size, batch_size, threads, false);
+    }
+
+    /**
+     * trains the CNN as train_parallel(training_size, batch_size, threads),
+     * optionally on randomly shifted and rotated copies of the images.
+     * @param training_size the number of images used for training the CNN.
+     * @param batch_size the number of images per weight update.
+     * @param threads the number of worker threads.
+     * @param augment whether to augment every image (see DataPipeline).
+     * @return the trained network.
+     * @throws IOException if image cannot be found.
+     */
+    public static Model train_parallel(int training_size, int batch_size, int threads, boolean augment)
+            throws IOException {
+        Dataset data = training_data();
+        ParallelTrainer trainer = new ParallelTrainer(threads, batch_size, data.rows(), data.columns(),
+                Im2ColConvolution::new, (batch, rows, columns, channels) -> new MaxPool(2, 2, batch, channels, rows, columns));
+        float ce_loss = 0;
+        int accuracy = 0, counted = 0;
+        float acc_sum = 0.0f;
+        float learn_rate = 0.005f;
+        try (DataPipeline pipeline = new DataPipeline(data, batch_size, 2 * threads, threads, augment, System.nanoTime());
+                Metrics.Reporter reporter = new Metrics.Reporter()) {
+            for (int i = 0; i < training_size; i += batch_size) {
+                int n = Math.min(batch_size, training_size - i);
+                long t = Metrics.start();
+                DataPipeline.Batch next = take(pipeline);
+                Metrics.stop(Metrics.Stage.WAIT, t, n);
+                Tensor batch = n == batch_size ? next.images : next.images.slice(0, n);
+                trainer.step(batch, next.labels, learn_rate);
+                pipeline.release(next);
+                ce_loss += trainer.loss;
+                accuracy += trainer.correct;
+                counted += n;
+                if ((i + n) / 100 > i / 100) {
+                    reporter.report(i + n - 1, i + n, ce_loss / counted, (double) accuracy / counted,
+                            pipeline.depth());
+                    acc_sum += accuracy;
+                    ce_loss = 0;
+                    accuracy = 0;
+                    counted = 0;
+                }
+            }
+        } finally {
+            trainer.shutdown();
+        }
+        System.out.println("average accuracy:- " + acc_sum * 100 / training_size + "%");
+        return trainer.model();
+    }
+
+    /**
+     * performs mini-batch gradient descent as train(data, training_size, batch_size, conv, null, augment)
+     * with the fused convolution and pooling, in the off-heap storage mode:
+     * the parameters, activations and gradients are kept in arenas outside
+     * the Java heap (see OffHeapTrainer).
+     * @param data the training images.
+     * @param training_size the number of images used for training the CNN.
+     * @param batch_size the number of images per weight update.
+     * @param augment whether to augment every image (see DataPipeline).
+     * @return the trained network.
+     * @throws IOException if image cannot be read.
+     */
+    public static Model train_off_heap(Dataset data, int training_size, int batch_size, boolean augment)
+            throws IOException {
+        float ce_loss = 0;
+        int accuracy = 0, counted = 0;
+        float acc_sum = 0.0f;
+        float learn_rate = 0.005f;
+        try (OffHeapTrainer trainer = new OffHeapTrainer(batch_size, data.rows(), data.columns());
+                DataPipeline pipeline = new DataPipeline(data, batch_size, 4, 1, augment, System.nanoTime());
+                Metrics.Reporter reporter = new Metrics.Reporter()) {
+            for (int i = 0; i < training_size; i += batch_size) {
+                int n = Math.min(batch_size, training_size - i);
+                long t = Metrics.start();
+                DataPipeline.Batch next = take(pipeline);
+                Metrics.stop(Metrics.Stage.WAIT, t, n);
+                Tensor batch = n == batch_size ? next.images : next.images.slice(0, n);
+                trainer.step(batch, next.labels, learn_rate);
+                pipeline.release(next);
+                ce_loss += trainer.loss;
+                accuracy += trainer.correct;
+                counted += n;
+                if ((i + n) / 100 > i / 100) {
+                    reporter.report(i + n - 1, i + n, ce_loss / counted, (double) accuracy / counted,
+                            pipeline.depth());
+                    acc_sum += accuracy;
+                    ce_loss = 0;
+                    accuracy = 0;
+                    counted = 0;
+                }
+            }
+            System.out.println("average accuracy:- " + acc_sum * 100 / training_size + "%");
+            return trainer.model();
+        }
+    }
+
+    /**
+     * trains the CNN with lock-free asynchronous SGD on several threads (see
+     * HogwildTrainer) and prints the throughput and the final loss and accuracy.
+     * @param training_size the number of images used for training the CNN.
+     * @param threads the number of threads; 1 gives the single-threaded baseline.
+     * @return the trained network.
+     * @throws IOException if image cannot be found.
+     */
+    public static Model train_hogwild(int training_size, int threads) throws IOException {
+        Dataset data = training_data();
+        HogwildTrainer trainer = new HogwildTrainer(data.rows(), data.columns(), Convolution::new,
+                (batch, rows, columns, channels) -> new MaxPool(2, 2, batch, channels, rows, columns));
+        trainer.train(data, training_size, threads, 0.005f, 1000);
+        System.out.println("hogwild threads: " + threads + " samples/s: " + trainer.samples_per_second
+                + " loss: " + trainer.loss + " accuracy: " + trainer.accuracy + "%");
+        return trainer.model();
+    }
+
+    /**
+     * waits for the next batch of a pipeline.
+     * @param pipeline the pipeline.
+     * @return the batch, to be released once it has been used.
+     * @throws IOException if image cannot be read.
+     */
+    static DataPipeline.Batch take(DataPipeline pipeline) throws IOException {
+        try {
+            return pipeline.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("training interrupted", e);
+        }
+    }
+
     /**
      * Test method.
-     * @param args
+     * @param args optionally --augment, to train on randomly shifted and
+     * rotated copies of the images, and --off-heap, to keep the parameters and
+     * activations off the Java heap (see train_off_heap).
      * @throws IOException
      */
     public static void main(String[] args) throws IOException {      
-        train(30000);
+        boolean augment = Arrays.asList(args).contains("--augment");
+        Model model = Arrays.asList(args).contains("--off-heap")
+                ? train_off_heap(training_data(), 30000, 1, augment)
+                : train(training_data(), 30000, 1, new Convolution(1, 28, 28, 8), null, augment);
+        System.out.print(Evaluation.evaluate(model, testing_data()));
     }
 
 }
@@ -0,0 +1,291 @@
+/*
+ * Copyright (C) 2019 Elias Yilma
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cnn;
+
+import UTIL.Tensor;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+
+/**
+ *
+ * @author Elias Yilma
+ *
+ * The trained parameters of the network saved to, or loaded from, a binary
+ * checkpoint file.
+ *
+ * Checkpoint layout (all values are little-endian):
+ *      [MAGIC] [VERSION] [tensor count]
+ *      for every tensor (filters, weights, bias): [rank] [size of each dimension]
+ *      the elements of every tensor as contiguous 32-bit floats, in row-major order
+ *      [CRC32 of all preceding bytes]
+ *
+ * Files are written to a temporary file and then renamed, so a reader never
+ * sees a partially written checkpoint. load memory-maps the file and copies
+ * the floats out in bulk, so a serving process starts without parsing.
+ *
+ */
+public class Checkpoint {
+
+    private static final int MAGIC = 0x4b4e4e43; // "CNNK"
+    private static final int VERSION = 1;
+
+    /**
+     * the convolution filters, the softmax weights and the softmax bias.
+     */
+        public final Tensor filters, weights, bias;
+
+    /**
+     * @param filters the convolution filters. [8] X [3] X [3]
+     * @param weights the weight matrix of the softmax layer. [8*13*13] X [10]
+     * @param bias the bias vector of the softmax layer. [1] X [10]
+     */
+    public Checkpoint(Tensor filters, Tensor weights, Tensor bias) {
+        this.filters = filters;
+        this.weights = weights;
+        this.bias = bias;
+    }
+
+    /**
+     * @return an inference-only model of these parameters.
+     */
+    public Model model() {
+        return new Model(filters, weights, bias);
+    }
+
+    /**
+     * writes the parameters to a checkpoint file.
+     * @param file the checkpoint file.
+     * @throws IOException if the file cannot be written.
+     */
+    public void save(File file) throws IOException {
+        Tensor[] tensors = {filters, weights, bias};
+        int header = 3 * 4, data = 0;
+        for (Tensor t : tensors) {
+            header += 4 + 4 * t.rank();
+            data += 4 * t.size();
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(header + data + 4).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(tensors.length);
+        for (Tensor t : tensors) {
+            buffer.putInt(t.rank());
+            for (int d : t.shape) {
+                buffer.putInt(d);
+            }
+        }
+        for (Tensor t : tensors) {
+            Tensor c = t.is_contiguous() ? t : t.copy();
+            buffer.asFloatBuffer().put(c.data, c.offset, c.size());
+            buffer.position(buffer.position() + 4 * c.size());
+        }
+        CRC32 crc = new CRC32();
+        buffer.flip();
+        crc.update(buffer.duplicate());
+        buffer.limit(buffer.capacity());
+        buffer.position(header + data);
+        buffer.putInt((int) crc.getValue());
+        buffer.flip();
+
+        File tmp = new File(file.getPath() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * memory-maps and verifies a checkpoint file.
+     * @param file the checkpoint file.
+     * @return the parameters stored in the file.
+     * @throws IOException if the file cannot be read, is not a checkpoint of a
+     * supported version, fails the checksum or its length does not match the
+     * shapes in its header.
+     */
+    public static Checkpoint load(File file) throws IOException {
+        MappedByteBuffer mapped;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        ByteBuffer buffer = mapped.order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.limit() < 16 || buffer.getInt(0) != MAGIC) {
+            throw new IOException("not a checkpoint: " + file);
+        }
+        if (buffer.getInt(4) != VERSION) {
+            throw new IOException(file + " has unsupported version " + buffer.getInt(4));
+        }
+        CRC32 crc = new CRC32();
+        ByteBuffer body = buffer.duplicate();
+        body.limit(buffer.limit() - 4);
+        crc.update(body);
+        if ((int) crc.getValue() != buffer.getInt(buffer.limit() - 4)) {
+            throw new IOException(file + " is corrupt (checksum mismatch)");
+        }
+        int count = buffer.getInt(8);
+        if (count != 3) {
+            throw new IOException(file + " holds " + count + " tensors instead of 3");
+        }
+        //the header is checked against the file length before anything is
+        //read, so a damaged header fails here rather than with a BufferUnderflowException.
+        buffer.position(12);
+        int[][] shapes = new int[count][];
+        long expected = 12 + 4;
+        for (int i = 0; i < count; i++) {
+            int rank = buffer.remaining() >= 4 ? buffer.getInt() : -1;
+            if (rank < 1 || rank > 4 || buffer.remaining() < 4 * rank) {
+                throw new IOException(file + " has a damaged header");
+            }
+            shapes[i] = new int[rank];
+            long size = 1;
+            for (int d = 0; d < rank; d++) {
+                shapes[i][d] = buffer.getInt();
+                size *= shapes[i][d];
+                if (shapes[i][d] < 1 || size > Integer.MAX_VALUE) {
+                    throw new IOException(file + " has a damaged header");
+                }
+            }
+            expected += 4 + 4 * rank + 4 * size;
+        }
+        if (expected != buffer.limit()) {
+            throw new IOException(file + " is " + buffer.limit() + " bytes long, but its header describes "
+                    + expected + " bytes");
+        }
+        Tensor[] tensors = new Tensor[count];
+        for (int i = 0; i < count; i++) {
+            tensors[i] = new Tensor(shapes[i]);
+            buffer.asFloatBuffer().get(tensors[i].data);
+            buffer.position(buffer.position() + 4 * tensors[i].data.length);
+        }
+        return new Checkpoint(tensors[0], tensors[1], tensors[2]);
+    }
+
+    /**
+     * periodic checkpointing off the training thread. every interval steps the
+     * parameters are copied into a snapshot (a plain array copy on the
+     * training thread) and written to the file by a background thread. if the
+     * previous snapshot is still being written the step is skipped rather
+     * than stalling training.
+     */
+    public static class Writer implements AutoCloseable {
+
+        private final File file;
+        private final int interval;
+        private final ExecutorService executor;
+        private Checkpoint snapshot;
+        private Future<?> pending;
+
+        /**
+         * @param file the checkpoint file.
+         * @param interval the number of steps between two checkpoints.
+         */
+        public Writer(File file, int interval) {
+            this.file = file;
+            this.interval = interval;
+            executor = Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, "cnn-checkpoint");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+
+        /**
+         * called by the training loop after every step.
+         * @param step the number of the step.
+         * @param filters the current convolution filters.
+         * @param weights the current softmax weights.
+         * @param bias the current softmax bias.
+         * @throws IOException if writing the previous checkpoint failed.
+         */
+        public void step(int step, Tensor filters, Tensor weights, Tensor bias) throws IOException {
+            if (step % interval != 0 || !done()) {
+                return;
+            }
+            if (snapshot == null) {
+                snapshot = new Checkpoint(new Tensor(filters.shape), new Tensor(weights.shape),
+                        new Tensor(bias.shape));
+            }
+            filters.copy_to(snapshot.filters);
+            weights.copy_to(snapshot.weights);
+            bias.copy_to(snapshot.bias);
+            Checkpoint s = snapshot;
+            pending = executor.submit(() -> {
+                s.save(file);
+                return null;
+            });
+        }
+
+        /**
+         * @return true if no checkpoint is being written, after rethrowing
+         * any failure of the last one.
+         */
+        private boolean done() throws IOException {
+            if (pending == null) {
+                return true;
+            }
+            if (!pending.isDone()) {
+                return false;
+            }
+            await();
+            return true;
+        }
+
+        private void await() throws IOException {
+            try {
+                pending.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("checkpoint interrupted", e);
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof IOException ? (IOException) e.getCause()
+                        : new IOException("checkpoint failed", e.getCause());
+            } finally {
+                pending = null;
+            }
+        }
+
+        /**
+         * waits for the checkpoint being written, if any, and stops the
+         * background thread.
+         * @throws IOException if writing the last checkpoint failed.
+         */
+        @Override
+        public void close() throws IOException {
+            try {
+                if (pending != null) {
+                    await();
+                }
+            } finally {
+                executor.shutdown();
+            }
+        }
+    }
+}
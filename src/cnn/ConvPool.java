@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2019 Elias Yilma
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cnn;
+
+import UTIL.Mat;
+import UTIL.Tensor;
+
+/**
+ *
+ * @author Elias Yilma
+ *
+ * The convolution layer and the 2X2 maximum pooling layer fused into one.
+ *
+ * Equivalent to Convolution followed by MaxPool, but the [N] X [8] X [26] X [26]
+ * convolved images are never stored: every 2X2 block of convolution outputs
+ * is computed, reduced to its maximum right away and only the pooled
+ * [N] X [8] X [13] X [13] output is written, together with the position of
+ * each maximum. Backprop only needs those positions, since the gradient of
+ * every other convolution output is 0.
+ *
+ * The pooled output, the positions and the filter gradient are sized once
+ * for the largest batch and reused; the output returned by forward is
+ * overwritten by the next forward pass.
+ *
+ */
+public class ConvPool {
+
+    /**
+     * caches the input data (the images) for use in the back-propagation phase.
+     */
+        public Tensor input; // shape --> [N] X [28] X [28]
+
+    /**
+     * caches the filters that were used in the forward pass. [8] X [3] X [3]
+     */
+        public Tensor filters;
+
+    /**
+     * the pooled output of the last forward pass. the buffer is reused by the
+     * next call to forward.
+     */
+        public Tensor output; // shape --> [N] X [8] X [13] X [13]
+
+    /**
+     * the gradient of the loss w.r.t. the filters, summed over the last batch.
+     * reused between backprop calls.
+     */
+        public Tensor d_L_d_filters; // shape --> [8] X [3] X [3]
+
+    /**
+     * for every element of output, the position (row * 26 + column) of the
+     * convolution output that was its maximum.
+     */
+    private int[] argmax;
+
+    /*
+     * the batch views of the last single-sample input and gradient and the
+     * sample views of the results, reused while the caller passes the same
+     * tensors (see Tensor.as_batch(view) and Tensor.slice(i, view)).
+     */
+    private Tensor sample_in, sample_out, sample_grad;
+
+    /**
+     * creates a layer whose workspace is allocated by the first forward pass.
+     */
+    public ConvPool() {
+    }
+
+    /**
+     * creates a layer with a workspace for batches of up to batch images.
+     * @param batch the largest number of images per batch.
+     * @param rows the row size of the images.
+     * @param columns the column size of the images.
+     * @param filters the number of 3X3 filters.
+     */
+    public ConvPool(int batch, int rows, int columns, int filters) {
+        output = new Tensor(batch, filters, (rows - 2) / 2, (columns - 2) / 2);
+        argmax = new int[output.size()];
+        d_L_d_filters = new Tensor(filters, 3, 3);
+    }
+
+    /**
+     * the fused forward pass for a single image.
+     * @param image the input image matrix. [28] X [28]
+     * @param filter the 3X3 filters. [8] X [3] X [3]
+     * @return the pooled images. [8] X [13] X [13], a view of output.
+     */
+    public Tensor forward(Tensor image, Tensor filter) {
+        sample_in = image.as_batch(sample_in);
+        return sample_out = forward_batch(sample_in, filter).slice(0, sample_out);
+    }
+
+    /**
+     * the fused forward pass for a batch: convolution with every filter
+     * followed by 2X2 maximum pooling.
+     * @param images the input images. [N] X [28] X [28]
+     * @param filter the 3X3 filters. [8] X [3] X [3]
+     * @return the pooled images. [N] X [8] X [13] X [13]. the buffer is owned by
+     * the layer and reused by the next call to forward.
+     */
+    public Tensor forward_batch(Tensor images, Tensor filter) {
+        if (filter.shape[1] != 3 || filter.shape[2] != 3) {
+            throw new IllegalArgumentException("ConvPool needs 3X3 filters, got " + filter);
+        }
+        filters = filter;
+        Tensor f_c = filter.is_contiguous() ? filter : filter.copy();
+        input = images.is_contiguous() ? images : images.copy();
+        int N = images.shape[0], K = filters.shape[0];
+        int h = images.shape[1], w = images.shape[2];
+        int p_h = (h - 2) / 2, p_w = (w - 2) / 2;
+        output = Tensor.reserve(output, N, K, p_h, p_w);
+        if (argmax == null || argmax.length < output.size()) {
+            argmax = new int[output.size()];
+        }
+        conv_pool(input.data, input.offset, N, h, w, f_c.data, f_c.offset, K, output.data, argmax);
+        return output;
+    }
+
+    /**
+     * the fused convolution and 2X2 maximum pooling kernel shared by forward_batch,
+     * Model and OffHeapModel.
+     * @param img the contiguous input images. [N] X [h] X [w]
+     * @param img_off the index of the first pixel within img.
+     * @param f the contiguous 3X3 filters. [K] X [3] X [3]
+     * @param f_off the index of the first filter weight within f.
+     * @param out receives the pooled images, from index 0. [N] X [K] X [(h-2)/2] X [(w-2)/2]
+     * @param argmax receives the position of every maximum, or null if it is not needed.
+     */
+    static void conv_pool(float[] img, int img_off, int N, int h, int w, float[] f, int f_off, int K,
+            float[] out, int[] argmax) {
+        int c_w = w - 2, p_h = (h - 2) / 2, p_w = (w - 2) / 2;
+        int o = 0;
+        for (int n = 0; n < N; n++) {
+            int base = img_off + n * h * w;
+            for (int k = 0; k < K; k++) {
+                int fo = f_off + k * 9;
+                float f0 = f[fo], f1 = f[fo + 1], f2 = f[fo + 2];
+                float f3 = f[fo + 3], f4 = f[fo + 4], f5 = f[fo + 5];
+                float f6 = f[fo + 6], f7 = f[fo + 7], f8 = f[fo + 8];
+                for (int pi = 0; pi < p_h; pi++) {
+                    for (int pj = 0; pj < p_w; pj++, o++) {
+                        float max = Float.NEGATIVE_INFINITY;
+                        int best = 0;
+                        //the 2X2 block of convolution outputs (2pi+u, 2pj+v).
+                        for (int u = 0; u < 2; u++) {
+                            for (int v = 0; v < 2; v++) {
+                                int r = 2 * pi + u, c = 2 * pj + v;
+                                int p = base + r * w + c;
+                                float s = f0 * img[p] + f1 * img[p + 1] + f2 * img[p + 2]
+                                        + f3 * img[p + w] + f4 * img[p + w + 1] + f5 * img[p + w + 2]
+                                        + f6 * img[p + 2 * w] + f7 * img[p + 2 * w + 1] + f8 * img[p + 2 * w + 2];
+                                if (s > max) {
+                                    max = s;
+                                    best = r * c_w + c;
+                                }
+                            }
+                        }
+                        out[o] = max;
+                        if (argmax != null) {
+                            argmax[o] = best;
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * the back-propagation phase for a single image.
+     * @param d_L_d_out the gradient w.r.t. the pooled output. [8] X [13] X [13]
+     * @param learning_rate the learning rate factor used in the neural network.
+     */
+    public void backprop(Tensor d_L_d_out, float learning_rate) {
+        sample_grad = d_L_d_out.as_batch(sample_grad);
+        backprop_batch(sample_grad, learning_rate);
+    }
+
+    /**
+     * the back-propagation phase for a batch. the filters are updated in place
+     * once with the average gradient of the batch.
+     * @param d_L_d_out the gradient w.r.t. the pooled output. [N] X [8] X [13] X [13]
+     * @param learning_rate the learning rate factor used in the neural network.
+     */
+    public void backprop_batch(Tensor d_L_d_out, float learning_rate) {
+        gradient_batch(d_L_d_out);
+        Mat.m_axpy(-learning_rate / d_L_d_out.shape[0], d_L_d_filters, filters);
+    }
+
+    /**
+     * computes the gradient of the loss w.r.t. the filters, summed over the
+     * batch, into d_L_d_filters without updating the filters. only the
+     * convolution outputs that were selected by the pooling contribute.
+     * @param d_L_d_out the gradient w.r.t. the pooled output. [N] X [8] X [13] X [13]
+     */
+    public void gradient_batch(Tensor d_L_d_out) {
+        d_L_d_filters = Tensor.reserve(d_L_d_filters, filters.shape);
+        d_L_d_filters.fill(0);
+        Tensor d_out = d_L_d_out.is_contiguous() ? d_L_d_out : d_L_d_out.copy();
+        int N = output.shape[0], K = output.shape[1], pooled = output.shape[2] * output.shape[3];
+        int h = input.shape[1], w = input.shape[2], c_w = w - 2;
+        float[] img = input.data, g = d_L_d_filters.data;
+        int o = 0;
+        for (int n = 0; n < N; n++) {
+            int base = input.offset + n * h * w;
+            for (int k = 0; k < K; k++) {
+                int go = k * 9;
+                for (int q = 0; q < pooled; q++, o++) {
+                    float grad = d_out.data[d_out.offset + o];
+                    if (grad == 0) {
+                        continue;
+                    }
+                    // d_L_d_filter(k) += grad * image(3,3) at the selected position
+                    int r = argmax[o] / c_w, c = argmax[o] % c_w;
+                    int p = base + r * w + c;
+                    for (int a = 0; a < 3; a++) {
+                        int row = p + a * w;
+                        g[go + a * 3] += grad * img[row];
+                        g[go + a * 3 + 1] += grad * img[row + 1];
+                        g[go + a * 3 + 2] += grad * img[row + 2];
+                    }
+                }
+            }
+        }
+    }
+}
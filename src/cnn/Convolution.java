@@ -17,6 +17,7 @@
 package cnn;
 
 import UTIL.Mat;
+import UTIL.Tensor;
 
 /**
  *
@@ -25,38 +26,94 @@ import UTIL.Mat;
  * The Convolution layer of the neural network.
  * Performs the convolution operation using different filters without padding. 
  * 
+ * Workspace: output and d_L_d_filters are allocated once for the largest
+ * batch (by the constructor when the shapes are given, otherwise by the
+ * first call) and reused by every later call; a smaller batch uses a view of
+ * the same memory. The layer owns them: the tensors returned by forward are
+ * overwritten by the next forward pass, so callers that need to keep an
+ * output must copy it.
+ * 
  */
 public class Convolution {
     //
 
     /**
-     * caches the input data (the image) for use in the back-propagation phase.
+     * caches the input data (the images) for use in the back-propagation phase.
      */
-        public float[][] input; // shape --> [28] X [28]
+        public Tensor input; // shape --> [N] X [28] X [28]
     //
 
     /**
      * caches filters that were used in the convolution phase for use in the 
      * back-propagation phase.
      */
-        public float[][][] filters; // shape --> [3] X [8] X [8]
+        public Tensor filters; // shape --> [8] X [3] X [3]
+
+    /**
+     * the output of the last forward pass. the buffer is reused by the next
+     * call to forward, so callers that need to keep it must copy it.
+     */
+        public Tensor output; // shape --> [N] X [8] X [26] X [26]
+
+    /**
+     * the gradient of the loss w.r.t. the filters, summed over the last batch.
+     * reused between backprop calls.
+     */
+        public Tensor d_L_d_filters; // shape --> [8] X [3] X [3]
+
+    /*
+     * the batch views of the last single-sample input and gradient and the
+     * sample views of the results, reused while the caller passes the same
+     * tensors (see Tensor.as_batch(view) and Tensor.slice(i, view)).
+     */
+    private Tensor sample_in, sample_out, sample_grad;
+
+    /**
+     * creates a convolution layer whose workspace is allocated by the first
+     * forward pass.
+     */
+    public Convolution() {
+    }
+
+    /**
+     * creates a convolution layer with a workspace for batches of up to
+     * batch images.
+     * @param batch the largest number of images per batch.
+     * @param rows the row size of the images.
+     * @param columns the column size of the images.
+     * @param filters the number of 3X3 filters.
+     */
+    public Convolution(int batch, int rows, int columns, int filters) {
+        output = new Tensor(batch, filters, rows - 2, columns - 2);
+        d_L_d_filters = new Tensor(filters, 3, 3);
+    }
+
     /**
      * Convolves the image with respect to a 3X3 filter
      * @param image the image matrix with shape [28] X [28]
      * @param filter a 3X3 filter used in the convolution process.
      * @return a 2D matrix with shape [26] X [26].
      */
-    public float[][] convolve3x3(float[][] image, float[][] filter) {
-        input=image;
-        float[][] result = new float[image.length - 2][image[0].length - 2];
-        //loop through
-        for (int i = 1; i < image.length - 2; i++) {
-            for (int j = 1; j < image[0].length - 2; j++) {
-                float[][] conv_region = Mat.m_sub(image, i - 1, i + 1, j - 1, j + 1);
-                result[i][j] = Mat.mm_elsum(conv_region, filter);
+    public Tensor convolve3x3(Tensor image, Tensor filter) {
+        Tensor result = new Tensor(image.shape[0] - 2, image.shape[1] - 2);
+        convolve3x3(image, filter, result);
+        return result;
+    }
+
+    /**
+     * Convolves the image with respect to a 3X3 filter and writes the result
+     * into an existing tensor (e.g. a slice of the forward output).
+     * @param image the image matrix with shape [28] X [28]
+     * @param filter a 3X3 filter used in the convolution process.
+     * @param result a [26] X [26] tensor that receives the convolved image.
+     */
+    public void convolve3x3(Tensor image, Tensor filter, Tensor result) {
+        //loop through every valid 3X3 region; region (i,j) starts at pixel (i,j).
+        for (int i = 0; i < result.shape[0]; i++) {
+            for (int j = 0; j < result.shape[1]; j++) {
+                result.set(i, j, Mat.m_window_elsum(image, i, j, filter));
             }
         }
-        return result;
     }
 
     /**
@@ -66,16 +123,71 @@ public class Convolution {
      * @param image the input image matrix. [28] X [28]
      * @param filter a 3D matrix containing an array of 3X3 filters ([8]X[3]X[3])
      * @return a 3D array containing an array of the convolved images w.r.t.
-     * each filter. [8] X [26] X [26]
+     * each filter. [8] X [26] X [26]. the returned tensor is a view of output.
      */
-    public float[][][] forward(float[][] image, float[][][] filter) {
+    public Tensor forward(Tensor image, Tensor filter) {
+        sample_in = image.as_batch(sample_in);
+        return sample_out = forward_batch(sample_in, filter).slice(0, sample_out);
+    }
+
+    /**
+     * the forward convolution pass for a batch of images.
+     * @param images the input images. [N] X [28] X [28]
+     * @param filter a 3D matrix containing an array of 3X3 filters ([8]X[3]X[3])
+     * @return the convolved images w.r.t. each filter. [N] X [8] X [26] X [26].
+     * the returned tensor is owned by the layer (see output).
+     */
+    public Tensor forward_batch(Tensor images, Tensor filter) {
         filters=filter; // 8 X 3 X 3
-        float[][][] result = new float[8][26][26];
-        for (int k = 0; k < filters.length; k++) {
-            float[][] res = convolve3x3(image, filters[k]);
-            result[k] = res;
+        //the images of a batch are read at raw offsets, so a strided view is copied once.
+        input=images.is_contiguous() ? images : images.copy();
+        output = Tensor.reserve(output, images.shape[0], filters.shape[0],
+                images.shape[1] - filters.shape[1] + 1, images.shape[2] - filters.shape[2] + 1);
+        for (int n = 0; n < images.shape[0]; n++) {
+            forward_image(n);
         }
-        return result;
+        return output;
+    }
+
+    /**
+     * convolves the nth image of input with every filter into the nth entry of output.
+     * @param n the index of the image within the batch.
+     */
+    protected void forward_image(int n) {
+        int oh = output.shape[2], ow = output.shape[3];
+        int o = output.offset + n * output.stride[0];
+        for (int k = 0; k < filters.shape[0]; k++) {
+            //loop through every valid 3X3 region; region (i,j) starts at pixel (i,j).
+            for (int i = 0; i < oh; i++) {
+                for (int j = 0; j < ow; j++, o++) {
+                    output.data[o] = window_elsum(n, k, i, j);
+                }
+            }
+        }
+    }
+
+    /**
+     * performs element-wise multiplication between the kth filter and the
+     * region of the nth input image whose top left corner is at (i, j), and
+     * sums the result. the same as Mat.m_window_elsum(input.slice(n), i, j,
+     * filters.slice(k)) without creating the views.
+     * @param n the index of the image within the batch.
+     * @param k the index of the filter.
+     * @param i start row index of the region.
+     * @param j start column index of the region.
+     * @return the final sum of the product.
+     */
+    protected float window_elsum(int n, int k, int i, int j) {
+        int w = input.shape[2], fh = filters.shape[1], fw = filters.shape[2];
+        int img = input.offset + n * input.stride[0] + i * w + j;
+        int f = filters.offset + k * filters.stride[0];
+        float sum = 0;
+        for (int a = 0; a < fh; a++) {
+            for (int b = 0; b < fw; b++) {
+                sum += input.data[img + a * w + b] * filters.data[f + a * filters.stride[1] + b * filters.stride[2]];
+            }
+        }
+        return sum;
     }
     
     /**
@@ -84,30 +196,83 @@ public class Convolution {
      *  phase of the maximum pooling stage. shape = [8] X [26] X [26]
      * @param learning_rate the learning rate factor used in the neural network.
      */
-    public void backprop(float[][][] d_L_d_out,float learning_rate){
+    public void backprop(Tensor d_L_d_out,float learning_rate){
+        sample_grad = d_L_d_out.as_batch(sample_grad);
+        backprop_batch(sample_grad, learning_rate);
+    }
+
+    /**
+     * the back-propagation phase for a batch. the filter gradients of all images
+     * are accumulated and the filters are updated once with their average.
+     * @param d_L_d_out the input gradient matrix retrieved from the back-propagation
+     *  phase of the maximum pooling stage. shape = [N] X [8] X [26] X [26]
+     * @param learning_rate the learning rate factor used in the neural network.
+     */
+    public void backprop_batch(Tensor d_L_d_out, float learning_rate) {
+        gradient_batch(d_L_d_out);
+        //update the filter matrix with the gradient matrix obtained above.
+        // [8] X [3] X [3]  =   [8] X [3] X [3] + -lr/N * [8] X [3] X [3]
+        //the filters are updated in place since the caller owns the filter tensor.
+        Mat.m_axpy(-learning_rate / d_L_d_out.shape[0], d_L_d_filters, filters);
+        filters_changed();
+    }
+
+    /**
+     * computes the gradient of the loss w.r.t. the filters, summed over the
+     * batch, into d_L_d_filters without updating the filters.
+     * @param d_L_d_out the input gradient matrix retrieved from the back-propagation
+     *  phase of the maximum pooling stage. shape = [N] X [8] X [26] X [26]
+     */
+    public void gradient_batch(Tensor d_L_d_out) {
         //the output gradient which is dL/dfilter= (dL/dout)*(dout/dfilter)
-        float[][][] d_L_d_filters= new float[filters.length][filters[0].length][filters[0][0].length];
+        d_L_d_filters = Tensor.reserve(d_L_d_filters, filters.shape);
+        d_L_d_filters.fill(0);
+        //the gradient is read at raw offsets, so a strided view is copied once.
+        Tensor d_out = d_L_d_out.is_contiguous() ? d_L_d_out : d_L_d_out.copy();
+        for (int n = 0; n < d_out.shape[0]; n++) {
+            backprop_image(n, d_out);
+        }
+    }
+
+    /**
+     * notifies the layer that the values of the filter tensor have changed.
+     * backprop_batch calls this after every update; callers that modify the
+     * filters themselves must call it before the next forward pass. layers
+     * that cache data derived from the filters override it.
+     */
+    public void filters_changed() {
+    }
+
+    /**
+     * accumulates the filter gradient of the nth image of input into d_L_d_filters.
+     * @param n the index of the image within the batch.
+     * @param d_L_d_out the gradient w.r.t. the output of the whole batch, a
+     * contiguous [N] X [8] X [26] X [26] tensor.
+     */
+    protected void backprop_image(int n, Tensor d_L_d_out) {
+        int w = input.shape[2], fh = filters.shape[1], fw = filters.shape[2];
+        int oh = d_L_d_out.shape[2], ow = d_L_d_out.shape[3];
+        int image = input.offset + n * input.stride[0];
+        int d_out = d_L_d_out.offset + n * d_L_d_out.stride[0];
+        float[] g = d_L_d_filters.data;
         //reverses the convolution phase by creating a 3X3 gradient filter 
         //and assigning its elements with the input gradient values scaled by
         //the corresponding pixels of the image.
-        for(int i=1;i<input.length-2;i++){
-            for(int j=1;j<input[0].length-2;j++){
-                for(int k=0;k<filters.length;k++){
-                    //get a 3X3 region of the matrix
-                    float[][] region=Mat.m_sub(input,  i - 1, i + 1, j - 1, j + 1);
+        for(int k=0;k<filters.shape[0];k++){
+            int d_L_d_filter = d_L_d_filters.offset + k * fh * fw;
+            for(int i=0;i<oh;i++){
+                for(int j=0;j<ow;j++){
                     //for each 3X3 region in the input image i,j
                     // d_L_d_filter(kth filter) = d_L_d_filter(kth filter)+ d_L_d_out(k,i,j)* sub_image(3,3)i,j
                     //       [3] X [3]          =       [3] X [3]         +     gradient    *      [3] X [3]
                     //see article as to how this gradient is computed.
-                    d_L_d_filters[k]=Mat.mm_add(d_L_d_filters[k], Mat.m_scale(region,d_L_d_out[k][i-1][j-1]));
+                    float d = d_L_d_out.data[d_out++];
+                    int region = image + i * w + j;
+                    for (int a = 0; a < fh; a++) {
+                        Mat.axpy(fw, d, input.data, region + a * w, g, d_L_d_filter + a * fw);
+                    }
                 }
             }
         }
-        
-        //update the filter matrix with the gradient matrix obtained above.
-        for(int m=0;m<filters.length;m++){
-          // [3] X [3]  =   [3] X [3] + -lr * [3] X [3]   
-            filters[m]= Mat.mm_add(filters[m], Mat.m_scale(d_L_d_filters[m],-learning_rate));
-        }  
     }
 }
@@ -0,0 +1,293 @@
+/*
+ * Copyright (C) 2019 Elias Yilma
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cnn;
+
+import UTIL.Tensor;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *
+ * @author Elias Yilma
+ *
+ * An asynchronous input pipeline that prepares mini-batches on background
+ * threads while the network trains on the previous ones.
+ *
+ *      shuffle ---> load ---> augment (optional) ---> ring of ready batches ---> take
+ *
+ * The images are visited in a new random order every epoch. A fixed ring of
+ * pre-allocated batches circulates between two bounded queues: loader threads
+ * take an empty batch, fill it and hand it over as ready; the trainer takes a
+ * ready batch and gives it back with release once it is done with it. The
+ * trainer therefore only blocks when no batch is ready, and depth() shows
+ * whether training is waiting for the input (a depth that stays near 0).
+ *
+ */
+public class DataPipeline implements AutoCloseable {
+
+    /**
+     * a mini-batch of images and their labels. owned by the pipeline and
+     * reused once it is released.
+     */
+    public static class Batch {
+
+        /**
+         * the images. [N] X [rows] X [columns]
+         */
+            public final Tensor images;
+
+        /**
+         * the label of every image.
+         */
+            public final int[] labels;
+
+        Batch(int batch_size, int rows, int columns) {
+            images = new Tensor(batch_size, rows, columns);
+            labels = new int[batch_size];
+        }
+    }
+
+    /**
+     * the largest shift (in pixels) and rotation (in radians) applied by the
+     * augmentation stage.
+     */
+    private static final int MAX_SHIFT = 2;
+    private static final double MAX_ROTATION = Math.toRadians(10);
+
+    /**
+     * how long close waits for the loader threads to stop, in milliseconds.
+     */
+    private static final long CLOSE_TIMEOUT = 10000;
+
+    private final Dataset data;
+    private final boolean augment;
+    private final BlockingQueue<Batch> free, ready;
+    private final Thread[] loaders;
+
+    /*
+     * the shuffled order of the current epoch, shared by the loader threads.
+     */
+    private final int[] order;
+    private int position;
+    private final Random shuffle;
+
+    private volatile boolean closed;
+    /**
+     * the first exception thrown on a loader thread, rethrown by take.
+     */
+    private volatile Throwable failure;
+
+    /**
+     * creates a pipeline and starts its loader threads.
+     * @param data the source of the images.
+     * @param batch_size the number of images per batch.
+     * @param capacity the number of batches in the ring, i.e. how far the
+     * loaders may run ahead of the trainer.
+     * @param threads the number of loader threads.
+     * @param augment whether to apply a random shift and rotation to every image.
+     * @param seed the seed of the shuffling and augmentation.
+     */
+    public DataPipeline(Dataset data, int batch_size, int capacity, int threads, boolean augment, long seed) {
+        this.data = data;
+        this.augment = augment;
+        free = new ArrayBlockingQueue<>(capacity);
+        ready = new ArrayBlockingQueue<>(capacity);
+        for (int i = 0; i < capacity; i++) {
+            free.add(new Batch(batch_size, data.rows(), data.columns()));
+        }
+        order = new int[data.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        shuffle = new Random(seed);
+        position = order.length;
+        loaders = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            Random random = new Random(seed + 1 + t);
+            loaders[t] = new Thread(() -> load(random), "cnn-loader-" + t);
+            loaders[t].setDaemon(true);
+            loaders[t].start();
+        }
+    }
+
+    /**
+     * waits for the next ready batch. the batch must be given back with
+     * release once it is no longer needed.
+     * @return a batch of images and labels.
+     * @throws IOException if a loader thread failed to read an image.
+     * @throws IllegalStateException if a loader thread failed with any other
+     * exception or error (the cause), or the pipeline is closed.
+     * @throws InterruptedException if the calling thread is interrupted.
+     */
+    public Batch take() throws IOException, InterruptedException {
+        while (true) {
+            Batch batch = ready.poll(100, TimeUnit.MILLISECONDS);
+            if (batch != null) {
+                return batch;
+            }
+            Throwable cause = failure;
+            if (cause instanceof IOException) {
+                throw new IOException("loading a batch failed", cause);
+            }
+            if (cause != null) {
+                throw new IllegalStateException("loading a batch failed", cause);
+            }
+            if (closed) {
+                throw new IllegalStateException("pipeline is closed");
+            }
+        }
+    }
+
+    /**
+     * returns a batch obtained from take to the pipeline to be refilled.
+     * @param batch the batch.
+     */
+    public void release(Batch batch) {
+        free.add(batch);
+    }
+
+    /**
+     * @return the number of batches that are ready to be taken.
+     */
+    public int depth() {
+        return ready.size();
+    }
+
+    /**
+     * stops the loader threads and waits for them to end, so that no batch is
+     * written to after close returns. a loader stops after the image it is
+     * reading.
+     * @throws IllegalStateException if a loader has not stopped within
+     * CLOSE_TIMEOUT milliseconds, e.g. because a read of the dataset hangs.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        for (Thread t : loaders) {
+            t.interrupt();
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(CLOSE_TIMEOUT);
+        try {
+            for (Thread t : loaders) {
+                long left = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (left > 0) {
+                    t.join(left);
+                }
+                if (t.isAlive()) {
+                    throw new IllegalStateException(t.getName() + " did not stop within " + CLOSE_TIMEOUT + " ms");
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while waiting for the loader threads", e);
+        }
+    }
+
+    /**
+     * the loop of one loader thread.
+     */
+    private void load(Random random) {
+        int[] indices = null;
+        Tensor scratch = augment ? new Tensor(data.rows(), data.columns()) : null;
+        try {
+            while (!closed) {
+                Batch batch = free.take();
+                int n = batch.labels.length;
+                if (indices == null) {
+                    indices = new int[n];
+                }
+                next_indices(indices);
+                for (int b = 0; b < n; b++) {
+                    if (closed) {
+                        return;
+                    }
+                    batch.labels[b] = data.label(indices[b]);
+                    //the datasets time their own load and decode stages.
+                    if (augment) {
+                        data.image(indices[b], scratch);
+                        long t = Metrics.start();
+                        augment(scratch, batch.images.slice(b), random);
+                        Metrics.stop(Metrics.Stage.AUGMENT, t, 1);
+                    } else {
+                        data.image(indices[b], batch.images.slice(b));
+                    }
+                }
+                ready.put(batch);
+            }
+        } catch (InterruptedException e) {
+            //closed
+        } catch (Throwable e) {
+            //anything else ends this loader, so take must not wait for it forever.
+            failure = e;
+        }
+    }
+
+    /**
+     * claims the next indices of the shuffled order, starting a new epoch
+     * (and a new order) whenever the current one is used up.
+     */
+    private synchronized void next_indices(int[] indices) {
+        for (int i = 0; i < indices.length; i++) {
+            if (position == order.length) {
+                //Fisher-Yates shuffle
+                for (int j = order.length - 1; j > 0; j--) {
+                    int k = shuffle.nextInt(j + 1), tmp = order[j];
+                    order[j] = order[k];
+                    order[k] = tmp;
+                }
+                position = 0;
+            }
+            indices[i] = order[position++];
+        }
+    }
+
+    /**
+     * writes a randomly shifted and rotated copy of an image into dst. every
+     * pixel of dst is sampled from img with bilinear interpolation; pixels
+     * that fall outside img are 0.
+     * @param img the source image. [h] X [w]
+     * @param dst the contiguous [h] X [w] tensor that receives the result.
+     * @param random the source of the shift and the angle.
+     */
+    public static void augment(Tensor img, Tensor dst, Random random) {
+        int h = img.shape[0], w = img.shape[1];
+        float dy = random.nextInt(2 * MAX_SHIFT + 1) - MAX_SHIFT;
+        float dx = random.nextInt(2 * MAX_SHIFT + 1) - MAX_SHIFT;
+        double angle = (random.nextDouble() * 2 - 1) * MAX_ROTATION;
+        float cos = (float) Math.cos(angle), sin = (float) Math.sin(angle);
+        float cy = (h - 1) / 2.0f, cx = (w - 1) / 2.0f;
+        for (int i = 0; i < h; i++) {
+            for (int j = 0; j < w; j++) {
+                //inverse mapping: undo the shift, then rotate back around the centre.
+                float y = i - dy - cy, x = j - dx - cx;
+                float sy = cos * y - sin * x + cy, sx = sin * y + cos * x + cx;
+                int y0 = (int) Math.floor(sy), x0 = (int) Math.floor(sx);
+                float fy = sy - y0, fx = sx - x0;
+                float v = (1 - fy) * ((1 - fx) * pixel(img, y0, x0) + fx * pixel(img, y0, x0 + 1))
+                        + fy * ((1 - fx) * pixel(img, y0 + 1, x0) + fx * pixel(img, y0 + 1, x0 + 1));
+                dst.data[dst.offset + i * w + j] = v;
+            }
+        }
+    }
+
+    private static float pixel(Tensor img, int i, int j) {
+        return i < 0 || j < 0 || i >= img.shape[0] || j >= img.shape[1] ? 0 : img.get(i, j);
+    }
+}
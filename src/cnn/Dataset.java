@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2019 Elias Yilma
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cnn;
+
+import UTIL.Tensor;
+import java.io.IOException;
+
+/**
+ *
+ * @author Elias Yilma
+ *
+ * A source of labelled training or test images, e.g. the MNIST IDX files
+ * (IdxDataset) or the MNIST PNG directories (PngDataset).
+ *
+ * Images are addressed by an index between 0 and size()-1 and are returned
+ * with pixel values normalized to between 0.0 and 1.0. Implementations must
+ * allow concurrent calls from several threads.
+ *
+ */
+public interface Dataset {
+
+    /**
+     * @return the number of images.
+     */
+    int size();
+
+    /**
+     * @return the row size of every image.
+     */
+    int rows();
+
+    /**
+     * @return the column size of every image.
+     */
+    int columns();
+
+    /**
+     * @param index the index of the image.
+     * @return the label (the digit) of the image.
+     */
+    int label(int index);
+
+    /**
+     * writes the normalized pixel values of an image into dst.
+     * @param index the index of the image.
+     * @param dst a contiguous [rows()] X [columns()] tensor.
+     * @throws IOException if the image cannot be read.
+     */
+    void image(int index, Tensor dst) throws IOException;
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2019 Elias Yilma
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cnn;
+
+import UTIL.Tensor;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Locale;
+import java.util.stream.IntStream;
+
+/**
+ *
+ * @author Elias Yilma
+ *
+ * The accuracy, per-class precision and recall, and confusion matrix of a
+ * model on a whole dataset, e.g. the MNIST testing set.
+ *
+ * evaluate runs the forward pass only. The dataset is split into chunks of
+ * CHUNK images that are classified in parallel on the common fork-join pool
+ * (a parallel stream). Every worker thread reads its chunk into its own image
+ * buffer, Model keeps per-thread scratch buffers of its own, and each chunk
+ * counts into a small confusion matrix of its own. Those matrices are summed
+ * at the end, so the workers share nothing but the read-only parameters.
+ *
+ */
+public class Evaluation {
+
+    /**
+     * the number of images classified by one task.
+     */
+    public static final int CHUNK = 256;
+
+    /**
+     * the number of images that were classified as j while being labelled i,
+     * at confusion[i][j].
+     */
+        public final int[][] confusion;
+
+    /**
+     * the number of images and the number of correctly classified images.
+     */
+        public final int total, correct;
+
+    /**
+     * the time taken by evaluate, in nanoseconds.
+     */
+        public final long nanos;
+
+    private static final ThreadLocal<Tensor> images = new ThreadLocal<>();
+
+    private Evaluation(int[][] confusion, long nanos) {
+        this.confusion = confusion;
+        this.nanos = nanos;
+        int t = 0, c = 0;
+        for (int i = 0; i < confusion.length; i++) {
+            for (int j = 0; j < confusion.length; j++) {
+                t += confusion[i][j];
+            }
+            c += confusion[i][i];
+        }
+        total = t;
+        correct = c;
+    }
+
+    /**
+     * classifies every image of a dataset in parallel.
+     * @param model the trained network.
+     * @param data the images, e.g. the MNIST testing set.
+     * @return the results.
+     * @throws IOException if an image cannot be read.
+     */
+    public static Evaluation evaluate(Model model, Dataset data) throws IOException {
+        long start = System.nanoTime();
+        int n = data.size(), classes = model.classes;
+        int[] counts;
+        try {
+            counts = IntStream.range(0, (n + CHUNK - 1) / CHUNK).parallel()
+                    .mapToObj(chunk -> classify(model, data, chunk * CHUNK, Math.min(n, (chunk + 1) * CHUNK)))
+                    .reduce(new int[classes * classes], (a, b) -> {
+                        int[] sum = new int[a.length];
+                        for (int i = 0; i < sum.length; i++) {
+                            sum[i] = a[i] + b[i];
+                        }
+                        return sum;
+                    });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        int[][] confusion = new int[classes][classes];
+        for (int i = 0; i < classes; i++) {
+            System.arraycopy(counts, i * classes, confusion[i], 0, classes);
+        }
+        return new Evaluation(confusion, System.nanoTime() - start);
+    }
+
+    /**
+     * classifies the images first to end-1 on the calling worker thread.
+     * @return the [classes] X [classes] confusion counts of the chunk, flattened.
+     */
+    private static int[] classify(Model model, Dataset data, int first, int end) {
+        Tensor batch = images.get();
+        if (batch == null) {
+            batch = new Tensor(CHUNK, data.rows(), data.columns());
+            images.set(batch);
+        }
+        int m = end - first, classes = model.classes;
+        int[] labels = new int[m], counts = new int[classes * classes];
+        try {
+            for (int b = 0; b < m; b++) {
+                data.image(first + b, batch.slice(b));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        model.predict(batch.data, m, labels, null);
+        for (int b = 0; b < m; b++) {
+            counts[data.label(first + b) * classes + labels[b]]++;
+        }
+        return counts;
+    }
+
+    /**
+     * @return the fraction of correctly classified images.
+     */
+    public double accuracy() {
+        return total == 0 ? 0 : (double) correct / total;
+    }
+
+    /**
+     * @param c a class.
+     * @return the fraction of the images classified as c that are labelled c.
+     */
+    public double precision(int c) {
+        int predicted = 0;
+        for (int[] row : confusion) {
+            predicted += row[c];
+        }
+        return predicted == 0 ? 0 : (double) confusion[c][c] / predicted;
+    }
+
+    /**
+     * @param c a class.
+     * @return the fraction of the images labelled c that are classified as c.
+     */
+    public double recall(int c) {
+        int actual = 0;
+        for (int count : confusion[c]) {
+            actual += count;
+        }
+        return actual == 0 ? 0 : (double) confusion[c][c] / actual;
+    }
+
+    /**
+     * @return the accuracy, the precision and recall of every class and the
+     * confusion matrix (rows are labels, columns are predictions).
+     */
+    @Override
+    public String toString() {
+        StringBuilder b = new StringBuilder();
+        b.append(String.format(Locale.ROOT, "accuracy: %.2f%% (%d/%d) in %.1f ms%n",
+                100 * accuracy(), correct, total, nanos / 1e6));
+        b.append("class  precision   recall ");
+        for (int j = 0; j < confusion.length; j++) {
+            b.append(String.format(Locale.ROOT, "%6d", j));
+        }
+        b.append(String.format("%n"));
+        for (int i = 0; i < confusion.length; i++) {
+            b.append(String.format(Locale.ROOT, "%5d  %8.2f%%  %6.2f%% ", i, 100 * precision(i), 100 * recall(i)));
+            for (int j = 0; j < confusion.length; j++) {
+                b.append(String.format(Locale.ROOT, "%6d", confusion[i][j]));
+            }
+            b.append(String.format("%n"));
+        }
+        return b.toString();
+    }
+
+    /**
+     * evaluates the model of a checkpoint on the MNIST testing set.
+     * @param args optionally the checkpoint file (model.ckpt by default).
+     * @throws IOException if the checkpoint or the testing set cannot be read.
+     */
+    public static void main(String[] args) throws IOException {
+        File file = new File(args.length > 0 ? args[0] : "model.ckpt");
+        Model model = Checkpoint.load(file).model();
+        Dataset data = CNN.testing_data();
+        //the first evaluation warms up the JIT.
+        evaluate(model, data);
+        System.out.print(evaluate(model, data));
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2019 Elias Yilma
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cnn;
+
+import UTIL.Mat;
+import UTIL.Tensor;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ *
+ * @author Elias Yilma
+ *
+ * Asynchronous ("Hogwild") stochastic gradient descent.
+ *
+ * Several threads each run the per-sample loop of CNN.train with their own
+ * layers, and apply their updates directly to the shared filters, weights and
+ * bias without any locking. Updates of different threads may interleave or
+ * occasionally overwrite each other; for sparse, small per-sample updates like
+ * these the effect on convergence is negligible and the threads never wait
+ * for each other.
+ *
+ */
+public class HogwildTrainer {
+
+    /**
+     * the shared 3X3 convolution filters. [8] X [3] X [3]
+     */
+        public final Tensor filters;
+
+    /**
+     * the shared weight matrix and bias vector of the softmax layer.
+     */
+        public final Tensor weights, bias;
+
+    /**
+     * results of the last call to train: the number of images processed per
+     * second, and the average loss and the accuracy (in %) over the last
+     * window of images of every thread.
+     */
+        public float samples_per_second, loss, accuracy;
+
+    /**
+     * the row and column size of the training images.
+     */
+        public final int rows, columns;
+
+    private final ParallelTrainer.LayerFactory<Convolution> conv_factory;
+    private final ParallelTrainer.LayerFactory<MaxPool> pool_factory;
+
+    /**
+     * creates a trainer with randomly initialized parameters. every thread
+     * gets its own single-image layers from the factories.
+     * @param rows the row size of the training images.
+     * @param columns the column size of the training images.
+     * @param conv_factory creates the convolution layer of every thread, e.g.
+     * Convolution::new.
+     * @param pool_factory creates the maximum pooling layer of every thread. it
+     * must create 2X2 pools with a stride of 2, the only pooling that Model
+     * (and therefore model(), Checkpoint and the inference classes) supports.
+     * @throws IllegalArgumentException if the factory creates another pool.
+     */
+    public HogwildTrainer(int rows, int columns, ParallelTrainer.LayerFactory<Convolution> conv_factory,
+            ParallelTrainer.LayerFactory<MaxPool> pool_factory) {
+        this.rows = rows;
+        this.columns = columns;
+        this.conv_factory = conv_factory;
+        this.pool_factory = pool_factory;
+        filters = CNN.init_filters(8);
+        //the softmax input is the pooled output of the configured pool.
+        MaxPool pool = pool_factory.create(1, rows - 2, columns - 2, filters.shape[0]);
+        if (pool.size != 2 || pool.stride != 2) {
+            throw new IllegalArgumentException("the trained model supports 2X2 pools with a stride of 2 only, got "
+                    + pool.size + "X" + pool.size + " with a stride of " + pool.stride);
+        }
+        SoftMax softmax = new SoftMax(filters.shape[0] * pool.pooled(rows - 2) * pool.pooled(columns - 2), 10);
+        weights = softmax.weights;
+        bias = softmax.bias;
+    }
+
+    /**
+     * trains the shared parameters on training_size images split evenly
+     * between the threads. every thread draws its images at random from data.
+     * @param data the training images.
+     * @param training_size the total number of images.
+     * @param threads the number of threads.
+     * @param learning_rate the learning rate of the neural network.
+     * @param window the number of final images of every thread that the
+     * reported loss and accuracy are computed over.
+     * @throws IOException if image cannot be found.
+     */
+    public void train(Dataset data, int training_size, int threads, float learning_rate, int window) throws IOException {
+        if (data.rows() != rows || data.columns() != columns) {
+            throw new IllegalArgumentException("the trainer takes " + rows + "X" + columns + " images, got "
+                    + data.rows() + "X" + data.columns());
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Callable<float[]>> tasks = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int count = (t + 1) * training_size / threads - t * training_size / threads;
+            tasks.add(() -> run(data, count, learning_rate, window));
+        }
+        long start = System.nanoTime();
+        float loss_sum = 0, correct = 0, counted = 0;
+        try {
+            for (Future<float[]> f : executor.invokeAll(tasks)) {
+                float[] r = f.get();
+                loss_sum += r[0];
+                correct += r[1];
+                counted += r[2];
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("training interrupted", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IllegalStateException("training failed", e.getCause());
+        } finally {
+            executor.shutdown();
+        }
+        samples_per_second = training_size / ((System.nanoTime() - start) / 1e9f);
+        loss = loss_sum / counted;
+        accuracy = correct * 100 / counted;
+    }
+
+    /**
+     * @return an inference-only copy of the current parameters.
+     */
+    public Model model() {
+        return new Model(filters, weights, bias, rows, columns);
+    }
+
+    /**
+     * the per-sample training loop of one thread.
+     * @return the summed loss, the number of correct predictions and the number
+     * of images within the final window.
+     */
+    private float[] run(Dataset data, int count, float learning_rate, int window) throws IOException {
+        Convolution conv = conv_factory.create(1, rows, columns, filters.shape[0]);
+        MaxPool pool = pool_factory.create(1, rows - 2, columns - 2, filters.shape[0]);
+        SoftMax softmax = new SoftMax(weights, bias, 1);
+        Tensor pxl = new Tensor(rows, columns);
+        float[] result = new float[3];
+        for (int i = 0; i < count; i++) {
+            int index = ThreadLocalRandom.current().nextInt(data.size());
+            int correct_label = data.label(index);
+            data.image(index, pxl);
+
+            Tensor out_l = softmax.forward(pool.forward(conv.forward(pxl, filters)));
+            if (i >= count - window) {
+                result[0] += softmax.cross_entropy(0, correct_label);
+                result[1] += correct_label == Mat.argmax(out_l.data, out_l.offset, out_l.size()) ? 1 : 0;
+                result[2]++;
+            }
+            //the updates are written straight into the shared parameters.
+            Tensor sm_gradient = softmax.backprop_label(correct_label, learning_rate);
+            conv.backprop(pool.backprop(sm_gradient), learning_rate);
+        }
+        return result;
+    }
+}
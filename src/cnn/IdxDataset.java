@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2019 Elias Yilma
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cnn;
+
+import UTIL.Tensor;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+
+/**
+ *
+ * @author Elias Yilma
+ *
+ * The MNIST database in its original binary IDX format, e.g.
+ * train-images-idx3-ubyte and train-labels-idx1-ubyte (optionally gzipped).
+ *
+ * The whole set is decoded once into a single contiguous tensor of
+ * normalized pixels, so reading an image afterwards is a plain array copy.
+ *
+ * IDX layout (all integers are big-endian):
+ *      images: [0x00000803] [count] [rows] [columns] [count*rows*columns unsigned bytes]
+ *      labels: [0x00000801] [count] [count unsigned bytes]
+ *
+ */
+public class IdxDataset implements Dataset {
+
+    private static final int IMAGE_MAGIC = 0x00000803, LABEL_MAGIC = 0x00000801;
+
+    /**
+     * all images with pixel values between 0.0 and 1.0. [N] X [28] X [28]
+     */
+        public final Tensor images;
+
+    /**
+     * the label of every image.
+     */
+        public final byte[] labels;
+
+    /**
+     * reads an IDX image file and the matching label file. files whose name
+     * ends with .gz are decompressed while reading.
+     * @param image_file the IDX3 image file.
+     * @param label_file the IDX1 label file.
+     * @throws IOException if the files cannot be read or are not valid IDX files.
+     */
+    public IdxDataset(File image_file, File label_file) throws IOException {
+        try (DataInputStream in = open(image_file)) {
+            if (in.readInt() != IMAGE_MAGIC) {
+                throw new IOException("not an IDX image file: " + image_file);
+            }
+            int count = in.readInt(), rows = in.readInt(), columns = in.readInt();
+            images = new Tensor(count, rows, columns);
+            byte[] pixels = new byte[rows * columns];
+            for (int i = 0; i < count; i++) {
+                in.readFully(pixels);
+                int offset = i * pixels.length;
+                for (int p = 0; p < pixels.length; p++) {
+                    images.data[offset + p] = (pixels[p] & 0xff) / 255.0f;
+                }
+            }
+        }
+        try (DataInputStream in = open(label_file)) {
+            if (in.readInt() != LABEL_MAGIC) {
+                throw new IOException("not an IDX label file: " + label_file);
+            }
+            int count = in.readInt();
+            if (count != images.shape[0]) {
+                throw new IOException(label_file + " has " + count + " labels for "
+                        + images.shape[0] + " images");
+            }
+            labels = new byte[count];
+            in.readFully(labels);
+        }
+    }
+
+    private static DataInputStream open(File file) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(file), 1 << 16);
+        if (file.getName().endsWith(".gz")) {
+            in = new GZIPInputStream(in, 1 << 16);
+        }
+        return new DataInputStream(in);
+    }
+
+    @Override
+    public int size() {
+        return images.shape[0];
+    }
+
+    @Override
+    public int rows() {
+        return images.shape[1];
+    }
+
+    @Override
+    public int columns() {
+        return images.shape[2];
+    }
+
+    @Override
+    public int label(int index) {
+        return labels[index] & 0xff;
+    }
+
+    @Override
+    public void image(int index, Tensor dst) {
+        long t = Metrics.start();
+        images.slice(index).copy_to(dst);
+        Metrics.stop(Metrics.Stage.LOAD, t, 1);
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2019 Elias Yilma
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cnn;
+
+import UTIL.Mat;
+import UTIL.Tensor;
+
+/**
+ *
+ * @author Elias Yilma
+ *
+ * A convolution layer that computes the same result as Convolution by lowering
+ * the image into a matrix of sliding windows (im2col) once per image.
+ * The forward pass of all filters then becomes a single matrix multiplication
+ * [8] X [9] * [9] X [26*26] per image, and the filter gradient another one
+ * [8] X [26*26] * [26*26] X [9].
+ *
+ */
+public class Im2ColConvolution extends Convolution {
+
+    /**
+     * caches the lowered input images for use in the back-propagation phase.
+     */
+        public Tensor columns; // shape --> [N] X [9] X [26*26]
+
+    /**
+     * the filter gradient of a single image, reused between backprop calls.
+     */
+    private Tensor d_L_d_filter_n;
+
+    /**
+     * creates a layer whose workspace is allocated by the first forward pass.
+     */
+    public Im2ColConvolution() {
+    }
+
+    /**
+     * creates a layer with a workspace, including the lowered images, for
+     * batches of up to batch images.
+     * @param batch the largest number of images per batch.
+     * @param rows the row size of the images.
+     * @param columns the column size of the images.
+     * @param filters the number of 3X3 filters.
+     */
+    public Im2ColConvolution(int batch, int rows, int columns, int filters) {
+        super(batch, rows, columns, filters);
+        this.columns = new Tensor(batch, 9, (rows - 2) * (columns - 2));
+        d_L_d_filter_n = new Tensor(filters, 9);
+    }
+
+    /**
+     * the forward convolution pass for a batch of images, one matrix
+     * multiplication per image.
+     * @param images the input images. [N] X [28] X [28]
+     * @param filter a 3D matrix containing an array of filters ([8]X[3]X[3])
+     * @return the convolved images w.r.t. each filter. [N] X [8] X [26] X [26].
+     * the returned tensor is owned by the layer (see output).
+     */
+    @Override
+    public Tensor forward_batch(Tensor images, Tensor filter) {
+        int fh = filter.shape[1], fw = filter.shape[2];
+        columns = Tensor.reserve(columns, images.shape[0], fh * fw,
+                (images.shape[1] - fh + 1) * (images.shape[2] - fw + 1));
+        return super.forward_batch(images, filter);
+    }
+
+    @Override
+    protected void forward_image(int n) {
+        int n_f = filters.shape[0], k = filters.shape[1] * filters.shape[2];
+        int h = input.shape[1], w = input.shape[2], p = columns.shape[2];
+        int cols = columns.offset + n * columns.stride[0];
+        Mat.im2col(input.data, input.offset + n * input.stride[0], h, w, filters.shape[1], filters.shape[2],
+                columns.data, cols);
+        // [8] X [26*26] = [8] X [9] * [9] X [26*26]
+        //strided filters (not produced by this package) are copied.
+        Tensor f = filters.is_contiguous() ? filters : filters.copy();
+        Mat.gemm_nn(n_f, k, p, f.data, f.offset, columns.data, cols,
+                output.data, output.offset + n * output.stride[0]);
+    }
+
+    @Override
+    protected void backprop_image(int n, Tensor d_L_d_out) {
+        int n_f = filters.shape[0], k = filters.shape[1] * filters.shape[2], p = columns.shape[2];
+        d_L_d_filter_n = Tensor.reserve(d_L_d_filter_n, n_f, k);
+        // [8] X [9] = [8] X [26*26] * ([9] X [26*26])^T
+        Mat.gemm_nt(n_f, p, k, d_L_d_out.data, d_L_d_out.offset + n * d_L_d_out.stride[0],
+                columns.data, columns.offset + n * columns.stride[0], d_L_d_filter_n.data, d_L_d_filter_n.offset);
+        Mat.m_axpy(1, d_L_d_filter_n, d_L_d_filters);
+    }
+}
@@ -0,0 +1,417 @@
+/*
+ * Copyright (C) 2019 Elias Yilma
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cnn;
+
+import UTIL.Tensor;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import javax.imageio.ImageIO;
+
+/**
+ *
+ * @author Elias Yilma
+ *
+ * An embedded HTTP server that classifies digits with a Model.
+ *
+ *      POST /predict   the body holds one or more images, either a PNG file or
+ *                      rows*columns unsigned bytes (0-255) per image. the
+ *                      response lists the label and the class probabilities
+ *                      of every image as JSON.
+ *      GET  /stats     throughput, batch size and p50/p99 latency as JSON.
+ *
+ * Concurrent requests are collected into micro-batches: a single batching
+ * thread waits for the first pending request, keeps adding requests until
+ * the batch is full or max_wait has passed since that first request, and
+ * then classifies the whole batch with one call to Model.predict.
+ *
+ * stop fails every request that has not been classified yet, whether still
+ * queued or already taken by the batching thread, and /predict answers them
+ * with 503.
+ *
+ */
+public class InferenceServer {
+
+    private static final byte[] PNG_SIGNATURE = {(byte) 0x89, 'P', 'N', 'G'};
+
+    /**
+     * the number of most recent request latencies that the percentiles are
+     * computed over.
+     */
+    private static final int LATENCY_WINDOW = 4096;
+
+    private final Model model;
+    private final int max_batch;
+    private final long max_wait_nanos;
+    private final HttpServer server;
+    private final ExecutorService handlers;
+    private final Thread batcher;
+    private final BlockingQueue<Request> pending = new ArrayBlockingQueue<>(1024);
+    private volatile boolean running = true;
+
+    /*
+     * counters, guarded by this.
+     */
+    private final long[] latencies = new long[LATENCY_WINDOW];
+    private long requests, images, batches;
+    private final long started = System.nanoTime();
+
+    /**
+     * a request waiting for its batch.
+     */
+    private static final class Request {
+
+        final float[] pixels;
+        final int n;
+        final long arrival = System.nanoTime();
+        final CompletableFuture<float[]> result = new CompletableFuture<>();
+
+        Request(float[] pixels, int n) {
+            this.pixels = pixels;
+            this.n = n;
+        }
+    }
+
+    /**
+     * creates and starts a server on localhost.
+     * @param model the model used for classification.
+     * @param port the TCP port, or 0 for any free port.
+     * @param max_batch the largest number of images per batch.
+     * @param max_wait_micros how long the first request of a batch may wait for
+     * more requests, in microseconds.
+     * @param threads the number of threads that handle HTTP connections.
+     * @throws IOException if the server socket cannot be opened.
+     */
+    public InferenceServer(Model model, int port, int max_batch, long max_wait_micros, int threads) throws IOException {
+        this.model = model;
+        this.max_batch = max_batch;
+        this.max_wait_nanos = max_wait_micros * 1000;
+        server = HttpServer.create(new InetSocketAddress("localhost", port), 128);
+        server.createContext("/predict", this::predict);
+        server.createContext("/stats", this::stats);
+        handlers = Executors.newFixedThreadPool(threads);
+        server.setExecutor(handlers);
+        batcher = new Thread(this::batch_loop, "cnn-batcher");
+        batcher.setDaemon(true);
+        batcher.start();
+        server.start();
+    }
+
+    /**
+     * @return the port the server listens on.
+     */
+    public int port() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * stops the server and the batching thread. requests that have not been
+     * classified yet fail with a RejectedExecutionException (503).
+     */
+    public void stop() {
+        running = false;
+        batcher.interrupt();
+        try {
+            batcher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        reject_pending();
+        //gives the handlers up to a second to send their 503 responses.
+        server.stop(1);
+        handlers.shutdown();
+    }
+
+    /**
+     * fails every request in the queue.
+     */
+    private void reject_pending() {
+        for (Request r; (r = pending.poll()) != null;) {
+            reject(r);
+        }
+    }
+
+    private static void reject(Request r) {
+        r.result.completeExceptionally(new RejectedExecutionException("the server is stopping"));
+    }
+
+    /**
+     * classifies the images of a request through the batching thread.
+     * @param pixels n images with normalized pixel values.
+     * @param n the number of images.
+     * @return the [n] X [classes] probabilities.
+     * @throws InterruptedException if the calling thread is interrupted.
+     * @throws RejectedExecutionException if the server is stopped before the
+     * images are classified.
+     */
+    public float[] classify(float[] pixels, int n) throws InterruptedException {
+        if (n > max_batch) {
+            throw new IllegalArgumentException(n + " images exceed the batch size " + max_batch);
+        }
+        if (!running) {
+            throw new RejectedExecutionException("the server is stopping");
+        }
+        Request r = new Request(pixels, n);
+        pending.put(r);
+        if (!running) {
+            //stop may have drained the queue before r was added.
+            reject_pending();
+        }
+        try {
+            return r.result.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RejectedExecutionException) {
+                throw (RejectedExecutionException) e.getCause();
+            }
+            throw new IllegalStateException("classification failed", e.getCause());
+        }
+    }
+
+    /**
+     * the loop of the batching thread.
+     */
+    private void batch_loop() {
+        int size = model.rows * model.columns;
+        float[] batch = new float[max_batch * size];
+        float[] probabilities = new float[max_batch * model.classes];
+        int[] labels = new int[max_batch];
+        List<Request> members = new ArrayList<>();
+        Request carry = null;
+        while (running) {
+            try {
+                Request first = carry != null ? carry : pending.take();
+                carry = null;
+                members.clear();
+                members.add(first);
+                int n = first.n;
+                long deadline = first.arrival + max_wait_nanos;
+                while (n < max_batch) {
+                    long wait = deadline - System.nanoTime();
+                    Request r = wait > 0 ? pending.poll(wait, TimeUnit.NANOSECONDS) : pending.poll();
+                    if (r == null) {
+                        break;
+                    }
+                    if (n + r.n > max_batch) {
+                        //starts the next batch.
+                        carry = r;
+                        break;
+                    }
+                    members.add(r);
+                    n += r.n;
+                }
+                int at = 0;
+                for (Request r : members) {
+                    System.arraycopy(r.pixels, 0, batch, at * size, r.n * size);
+                    at += r.n;
+                }
+                try {
+                    model.predict(batch, n, labels, probabilities);
+                } catch (RuntimeException e) {
+                    for (Request r : members) {
+                        r.result.completeExceptionally(e);
+                    }
+                    continue;
+                }
+                //counted first, so that /stats includes a request once it is answered.
+                record(members, n);
+                at = 0;
+                for (Request r : members) {
+                    r.result.complete(Arrays.copyOfRange(probabilities, at * model.classes,
+                            (at + r.n) * model.classes));
+                    at += r.n;
+                }
+            } catch (InterruptedException e) {
+                //stopped: the requests taken from the queue are failed here.
+                for (Request r : members) {
+                    reject(r);
+                }
+                break;
+            }
+        }
+        if (carry != null) {
+            reject(carry);
+        }
+    }
+
+    private synchronized void record(List<Request> members, int n) {
+        long now = System.nanoTime();
+        for (Request r : members) {
+            latencies[(int) (requests++ % LATENCY_WINDOW)] = now - r.arrival;
+        }
+        images += n;
+        batches++;
+    }
+
+    /**
+     * handles POST /predict.
+     */
+    private void predict(HttpExchange exchange) throws IOException {
+        try {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                respond(exchange, 405, "{\"error\":\"use POST\"}");
+                return;
+            }
+            int n, size = model.rows * model.columns;
+            //room for a full batch of raw images, or for one PNG with its metadata.
+            int limit = Math.max(max_batch, 16) * size;
+            String length = exchange.getRequestHeaders().getFirst("Content-Length");
+            byte[] body = length != null && length.matches("\\d+") && Long.parseLong(length) > limit ? null
+                    : read(exchange.getRequestBody(), limit);
+            if (body == null) {
+                respond(exchange, 413, "{\"error\":\"the request is larger than " + limit + " bytes\"}");
+                return;
+            }
+            float[] pixels;
+            if (body.length >= 4 && Arrays.equals(Arrays.copyOf(body, 4), PNG_SIGNATURE)) {
+                BufferedImage image = ImageIO.read(new ByteArrayInputStream(body));
+                if (image == null || image.getHeight() != model.rows || image.getWidth() != model.columns) {
+                    respond(exchange, 400, "{\"error\":\"expected a " + model.rows + "x" + model.columns + " PNG\"}");
+                    return;
+                }
+                n = 1;
+                pixels = new float[size];
+                CNN.img_to_mat(image, Tensor.wrap(pixels, model.rows, model.columns));
+            } else {
+                if (body.length == 0 || body.length % size != 0 || body.length / size > max_batch) {
+                    respond(exchange, 400, "{\"error\":\"expected 1 to " + max_batch + " images of "
+                            + size + " bytes\"}");
+                    return;
+                }
+                n = body.length / size;
+                pixels = new float[body.length];
+                for (int i = 0; i < body.length; i++) {
+                    pixels[i] = (body[i] & 0xff) / 255.0f;
+                }
+            }
+            float[] probabilities = classify(pixels, n);
+            StringBuilder json = new StringBuilder("{\"predictions\":[");
+            for (int i = 0; i < n; i++) {
+                int label = 0;
+                for (int c = 1; c < model.classes; c++) {
+                    if (probabilities[i * model.classes + c] > probabilities[i * model.classes + label]) {
+                        label = c;
+                    }
+                }
+                json.append(i == 0 ? "" : ",").append("{\"label\":").append(label).append(",\"probabilities\":[");
+                for (int c = 0; c < model.classes; c++) {
+                    json.append(c == 0 ? "" : ",").append(probabilities[i * model.classes + c]);
+                }
+                json.append("]}");
+            }
+            respond(exchange, 200, json.append("]}").toString());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            respond(exchange, 503, "{\"error\":\"interrupted\"}");
+        } catch (RejectedExecutionException e) {
+            respond(exchange, 503, "{\"error\":\"the server is stopping\"}");
+        } catch (RuntimeException e) {
+            respond(exchange, 500, "{\"error\":\"" + e.getClass().getSimpleName() + "\"}");
+        }
+    }
+
+    /**
+     * handles GET /stats.
+     */
+    private void stats(HttpExchange exchange) throws IOException {
+        respond(exchange, 200, stats_json());
+    }
+
+    /**
+     * @return the request, image and batch counters, the throughput since
+     * the server started and the p50/p99 latency (in microseconds) of the
+     * most recent requests as a JSON object.
+     */
+    public synchronized String stats_json() {
+        int count = (int) Math.min(requests, LATENCY_WINDOW);
+        long[] sorted = Arrays.copyOf(latencies, count);
+        Arrays.sort(sorted);
+        double seconds = (System.nanoTime() - started) / 1e9;
+        return "{\"requests\":" + requests + ",\"images\":" + images + ",\"batches\":" + batches
+                + ",\"images_per_second\":" + images / seconds
+                + ",\"mean_batch\":" + (batches == 0 ? 0 : (double) images / batches)
+                + ",\"p50_us\":" + percentile(sorted, 0.50) / 1000
+                + ",\"p99_us\":" + percentile(sorted, 0.99) / 1000 + "}";
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        return sorted.length == 0 ? 0 : sorted[(int) Math.min(sorted.length - 1, Math.floor(p * sorted.length))];
+    }
+
+    /**
+     * reads a request body of at most limit bytes.
+     * @return the body, or null if it is longer than limit. the rest of a
+     * longer body is not read.
+     */
+    private static byte[] read(InputStream in, int limit) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        for (int r; (r = in.read(buffer, 0, Math.min(buffer.length, limit + 1 - out.size()))) > 0;) {
+            out.write(buffer, 0, r);
+            if (out.size() > limit) {
+                return null;
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static void respond(HttpExchange exchange, int status, String json) throws IOException {
+        byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * serves the model of a checkpoint file. if the file does not exist yet, a
+     * model is first trained on the MNIST training set and saved to it.
+     * @param args optionally the port (8080 by default), the checkpoint file
+     * (model.ckpt by default) and the number of training images (10000 by default).
+     * @throws IOException if the data cannot be read or the port cannot be opened.
+     */
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 8080;
+        File checkpoint = new File(args.length > 1 ? args[1] : "model.ckpt");
+        int training_size = args.length > 2 ? Integer.parseInt(args[2]) : 10000;
+        if (!checkpoint.exists()) {
+            CNN.train(CNN.training_data(), training_size, 32, new Im2ColConvolution(), checkpoint);
+        }
+        Model model = Checkpoint.load(checkpoint).model();
+        InferenceServer server = new InferenceServer(model, port, 64, 2000, 8);
+        System.out.println("serving " + checkpoint + " on http://localhost:" + server.port() + "/predict");
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2019 Elias Yilma
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cnn;
+
+import UTIL.Tensor;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ *
+ * @author Elias Yilma
+ *
+ * A dataset stored in a compact binary cache file that is memory-mapped
+ * rather than read. The cache is written once from any other Dataset (see
+ * write and main); afterwards opening it only maps the file, so training
+ * starts without decoding anything and several processes on the same host
+ * share the pages of the file through the operating system's page cache.
+ *
+ * Cache layout (all integers are big-endian):
+ *      [MAGIC] [VERSION] [count] [rows] [columns]
+ *      [count label bytes]
+ *      [count*rows*columns unsigned pixel bytes, one image after the other]
+ *
+ */
+public class MappedDataset implements Dataset {
+
+    private static final int MAGIC = 0x434e4e43; // "CNNC"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 5 * 4;
+
+    /**
+     * the default location of the cache of the MNIST training set.
+     */
+    public static final File TRAINING_CACHE = new File("data/mnist/train.cache");
+
+    private final MappedByteBuffer buffer;
+    private final int count, rows, columns, pixels_offset;
+
+    /**
+     * maps a cache file written by write.
+     * @param cache the cache file.
+     * @throws IOException if the file cannot be mapped or is not a valid cache.
+     */
+    public MappedDataset(File cache) throws IOException {
+        try (FileChannel channel = FileChannel.open(cache.toPath(), StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException(cache + " is too large to be mapped");
+            }
+            //the mapping stays valid after the channel is closed.
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            throw new IOException("not a dataset cache: " + cache);
+        }
+        if (buffer.getInt(4) != VERSION) {
+            throw new IOException(cache + " has unsupported version " + buffer.getInt(4));
+        }
+        count = buffer.getInt(8);
+        rows = buffer.getInt(12);
+        columns = buffer.getInt(16);
+        pixels_offset = HEADER_SIZE + count;
+        if (buffer.limit() != pixels_offset + (long) count * rows * columns) {
+            throw new IOException(cache + " is truncated");
+        }
+    }
+
+    /**
+     * converts a dataset into a cache file. pixel values are stored as
+     * unsigned bytes, i.e. rounded to multiples of 1/255.
+     * @param data the source dataset e.g. an IdxDataset or a PngDataset.
+     * @param cache the cache file to be written.
+     * @throws IOException if an image cannot be read or the file cannot be written.
+     */
+    public static void write(Dataset data, File cache) throws IOException {
+        int n = data.size(), rows = data.rows(), columns = data.columns();
+        Tensor img = new Tensor(rows, columns);
+        byte[] pixels = new byte[rows * columns];
+        File dir = cache.getAbsoluteFile().getParentFile();
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("cannot create " + dir);
+        }
+        //write to a temporary file first so readers never map a half-written cache.
+        File tmp = new File(cache.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(n);
+            out.writeInt(rows);
+            out.writeInt(columns);
+            for (int i = 0; i < n; i++) {
+                out.writeByte(data.label(i));
+            }
+            for (int i = 0; i < n; i++) {
+                data.image(i, img);
+                for (int p = 0; p < pixels.length; p++) {
+                    pixels[p] = (byte) Math.round(img.data[p] * 255);
+                }
+                out.write(pixels);
+            }
+        }
+        if (!tmp.renameTo(cache) && !(cache.delete() && tmp.renameTo(cache))) {
+            throw new IOException("cannot rename " + tmp + " to " + cache);
+        }
+    }
+
+    @Override
+    public int size() {
+        return count;
+    }
+
+    @Override
+    public int rows() {
+        return rows;
+    }
+
+    @Override
+    public int columns() {
+        return columns;
+    }
+
+    @Override
+    public int label(int index) {
+        return buffer.get(HEADER_SIZE + index) & 0xff;
+    }
+
+    /**
+     * returns the raw pixels of an image without copying them.
+     * @param index the index of the image.
+     * @return a read-only view of rows()*columns() unsigned bytes.
+     */
+    public ByteBuffer pixels(int index) {
+        ByteBuffer view = buffer.duplicate();
+        int start = pixels_offset + index * rows * columns;
+        view.position(start);
+        view.limit(start + rows * columns);
+        return view.slice();
+    }
+
+    @Override
+    public void image(int index, Tensor dst) {
+        long t = Metrics.start();
+        //absolute gets leave the shared buffer untouched, so threads need no locking.
+        int start = pixels_offset + index * rows * columns, n = rows * columns;
+        for (int p = 0; p < n; p++) {
+            dst.data[dst.offset + p] = (buffer.get(start + p) & 0xff) / 255.0f;
+        }
+        Metrics.stop(Metrics.Stage.LOAD, t, 1);
+    }
+
+    /**
+     * the conversion tool: writes the MNIST training set returned by
+     * CNN.training_source() (the IDX or PNG files, never an existing cache)
+     * into a cache file.
+     * @param args optionally the path of the cache file (data/mnist/train.cache by default).
+     * @throws IOException if the dataset cannot be read or the cache cannot be written.
+     */
+    public static void main(String[] args) throws IOException {
+        File cache = args.length > 0 ? new File(args[0]) : TRAINING_CACHE;
+        long start = System.nanoTime();
+        Dataset data = CNN.training_source();
+        write(data, cache);
+        System.out.println("wrote " + data.size() + " images to " + cache + " in "
+                + (System.nanoTime() - start) / 1000000 + " ms");
+    }
+}
@@ -17,6 +17,7 @@
 package cnn;
 
 import UTIL.Mat;
+import UTIL.Tensor;
 
 /**
  *
@@ -24,88 +25,195 @@ import UTIL.Mat;
  * 
  * The maximum pooling layer of the convolutional neural network.
  * 
+ * The output, the positions of the maxima and the input gradient live in a
+ * workspace that is sized once for the largest batch and reused afterwards.
+ * forward returns a view of output and backprop a view of the input
+ * gradient; both are overwritten by the next call to the same method.
  * 
  */
 public class MaxPool {
 
+    /**
+     * the side length of the square pooling window and the distance between
+     * two consecutive windows.
+     */
+        public final int size, stride;
 
     /**
-     * caches the input data (the image) for use in the back-propagation phase.
+     * caches the input data (the images) for use in the back-propagation phase.
      */
-        public float[][][] input;  // [8] X [26] X [26]
+        public Tensor input;  // [N] X [8] X [26] X [26]
     
 
     /**
      * caches the output data (the image) for use in the back-propagation phase.
      */
-        public float[][][] output;
+        public Tensor output; // [N] X [8] X [13] X [13]
+
+    /**
+     * for every element of output, the row-major position within input of the
+     * element that was selected as the maximum. recorded by forward and used
+     * by backprop to route the gradient without searching the windows again.
+     */
+    private int[] argmax;
+
+    /**
+     * the gradient w.r.t. the input, reused between backprop calls.
+     */
+    private Tensor d_L_d_input;
+
+    /*
+     * the batch views of the last single-sample input and gradient and the
+     * sample views of the results, reused while the caller passes the same
+     * tensors (see Tensor.as_batch(view) and Tensor.slice(i, view)).
+     */
+    private Tensor sample_in, sample_out, sample_grad, sample_d_in;
+
+    /**
+     * creates a 2X2 maximum pooling layer with a stride of 2, which halves the
+     * size of the images.
+     */
+    public MaxPool() {
+        this(2, 2);
+    }
+
+    /**
+     * creates a maximum pooling layer.
+     * @param size the side length of the square pooling window.
+     * @param stride the distance between two consecutive windows.
+     */
+    public MaxPool(int size, int stride) {
+        this.size = size;
+        this.stride = stride;
+    }
+
+    /**
+     * creates a maximum pooling layer with a workspace for batches of up to
+     * batch inputs.
+     * @param size the side length of the square pooling window.
+     * @param stride the distance between two consecutive windows.
+     * @param batch the largest number of samples per batch.
+     * @param channels the number of images per sample (the number of filters).
+     * @param rows the row size of the images.
+     * @param columns the column size of the images.
+     */
+    public MaxPool(int size, int stride, int batch, int channels, int rows, int columns) {
+        this(size, stride);
+        output = new Tensor(batch, channels, pooled(rows), pooled(columns));
+        argmax = new int[output.size()];
+        d_L_d_input = new Tensor(batch, channels, rows, columns);
+    }
+
+    /**
+     * the number of windows along a dimension of the specified length.
+     * @param length the number of rows or columns of the input.
+     * @return the number of rows or columns of the output.
+     */
+    public int pooled(int length) {
+        return (length - size) / stride + 1;
+    }
 
     /**
-     * performs a 2X2 maximum pooling operation which computes the maximum value
-     * contained in each 2X2 sub-region of the input matrix, consequently reducing the
-     * size of the input array by half.
+     * performs a maximum pooling operation which computes the maximum value
+     * contained in each sub-region of the input matrix; with the default 2X2
+     * window and stride of 2 this halves the size of the input array.
      * for example, if A is the max value, then
      * | X Y | ---> | A |
      * | Z A |  
      * @param img the input image matrix. [26] X [26]
-     * @return a [13] X [13] 2D array. 
+     * @param pool the [13] X [13] tensor that receives the pooled image.
      */
-    public float[][] max_pool(float[][] img) {
-        //final array shape is half of the original input shape
-        float[][] pool = new float[img.length / 2][img[0].length / 2];
-        for (int i = 0; i < pool.length - 1; i++) {
-            for (int j = 0; j < pool[0].length - 1; j++) {
-                //get the maximum value from the (i,j)th 2X2 sub-region of the input. 
-                pool[i][j] = Mat.m_max(Mat.m_sub(img, i * 2, i * 2 + 1, j * 2, j * 2 + 1));
+    public void max_pool(Tensor img, Tensor pool) {
+        for (int i = 0; i < pool.shape[0]; i++) {
+            for (int j = 0; j < pool.shape[1]; j++) {
+                //get the maximum value from the (i,j)th sub-region of the input. 
+                pool.set(i, j, Mat.m_window_max(img, i * stride, j * stride, size, size));
             }
         }
-        return pool;
     }
 
     /**
      * performs max pooling for each convolved images (8 in this cases)
      * @param dta the array of convolved images [8] X [26] X [26]
-     * @return a [8] X [13] X [13] array
+     * @return a [8] X [13] X [13] array, a view of output.
      */
-    public float[][][] forward(float[][][] dta) {
-        input = dta;
-        float[][][] result = new float[dta.length][dta[0].length][dta[0][0].length];
-        for (int k = 0; k < dta.length; k++) {
-            float[][] res = max_pool(dta[k]);
-            result[k] = res;
-        }
-        output = result;
-        return result;
+    public Tensor forward(Tensor dta) {
+        sample_in = dta.as_batch(sample_in);
+        return sample_out = forward_batch(sample_in).slice(0, sample_out);
     }
 
     /**
-     * performs the back-propagation phase of maximum pooling where
-     * @param d_L_d_out the input gradient matrix obtained from the softmax layer.
-     * @return an [8] X [26] X [26] array.
+     * performs max pooling for each convolved image of a batch and records the
+     * position of every maximum for backprop.
+     * @param dta the convolved images [N] X [8] X [26] X [26]
+     * @return a [N] X [8] X [13] X [13] array. the buffer is owned by the layer and
+     * reused by the next call to forward.
      */
-    public float[][][] backprop(float[][][] d_L_d_out) {
-        float[][][] d_L_d_input = new float[input.length][input[0].length][input[0][0].length];
-        for (int i = 0; i < output.length; i++) { // filter index 0 - 12 [13 values]
-            for (int j = 0; j < output[0].length; j++) { //pool row index 0 -12 [13 values]
-                for (int k = 0; k < output[0][0].length; k++) { //pool column index
-                    //get 2X2 image region.
-                    float[][] region = Mat.m_sub(input[i], j * 2, j * 2 + 1, k * 2, k * 2 + 1);
-                    //loop through image region to get row,column index of the maximum value.
-                    for (int m = 0; m < region.length; m++) {
-                        for (int n = 0; n < region[0].length; n++) {
-                            //if the current value in the 2X2 region is the maximum 
-                            //then assign the output gradient value to this index on the
-                            // [8]X[26]X[26] output gradient matrix.
-                            if (Math.abs(output[i][j][k] - region[m][n]) < 0.00000001) {
-                                //the index should be translated from local 3X3 to global
-                                //i.e. from [m][n] of the 3X3 matrix to [i*2+m][j*2+n] of the grad matrix
-                                d_L_d_input[i][j * 2 + m][k * 2 + n] = d_L_d_out[i][j][k];
+    public Tensor forward_batch(Tensor dta) {
+        int h = dta.shape[2], w = dta.shape[3], p_h = pooled(h), p_w = pooled(w);
+        //every [26] X [26] image of every sample is pooled independently.
+        int planes = dta.shape[0] * dta.shape[1];
+        input = dta.is_contiguous() ? dta : dta.copy();
+        output = Tensor.reserve(output, dta.shape[0], dta.shape[1], p_h, p_w);
+        if (argmax == null || argmax.length < output.size()) {
+            argmax = new int[output.size()];
+        }
+        float[] in = input.data, out = output.data;
+        int o = 0;
+        for (int k = 0; k < planes; k++) {
+            int plane = k * h * w;
+            for (int i = 0; i < p_h; i++) {
+                for (int j = 0; j < p_w; j++, o++) {
+                    //scan the (i,j)th window; the first of several equal maxima is kept.
+                    int corner = plane + i * stride * w + j * stride;
+                    int best = corner;
+                    float max = in[input.offset + best];
+                    for (int m = 0; m < size; m++) {
+                        int row = corner + m * w;
+                        for (int n = 0; n < size; n++) {
+                            float v = in[input.offset + row + n];
+                            if (v > max) {
+                                max = v;
+                                best = row + n;
                             }
                         }
                     }
+                    out[o] = max;
+                    argmax[o] = best;
                 }
             }
         }
+        return output;
+    }
+
+    /**
+     * performs the back-propagation phase of maximum pooling where
+     * @param d_L_d_out the input gradient matrix obtained from the softmax layer.
+     * @return an [8] X [26] X [26] array, a view of a buffer that is owned by
+     * the layer and reused by the next call to backprop.
+     */
+    public Tensor backprop(Tensor d_L_d_out) {
+        sample_grad = d_L_d_out.as_batch(sample_grad);
+        return sample_d_in = backprop_batch(sample_grad).slice(0, sample_d_in);
+    }
+
+    /**
+     * performs the back-propagation phase of maximum pooling for a batch: the
+     * gradient of every output element is passed to the input element that
+     * was its maximum (and summed where windows overlap).
+     * @param d_L_d_out the input gradient matrix obtained from the softmax layer.
+     * [N] X [8] X [13] X [13]
+     * @return an [N] X [8] X [26] X [26] array. the buffer is owned by the layer and
+     * reused by the next call to backprop.
+     */
+    public Tensor backprop_batch(Tensor d_L_d_out) {
+        d_L_d_input = Tensor.reserve(d_L_d_input, input.shape);
+        d_L_d_input.fill(0);
+        Tensor d_out = d_L_d_out.is_contiguous() ? d_L_d_out : d_L_d_out.copy();
+        float[] d_in = d_L_d_input.data, g = d_out.data;
+        for (int o = 0; o < output.size(); o++) {
+            d_in[argmax[o]] += g[d_out.offset + o];
+        }
         return d_L_d_input;
     }
 }
@@ -0,0 +1,451 @@
+/*
+ * Copyright (C) 2019 Elias Yilma
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cnn;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Constructor;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ *
+ * @author Elias Yilma
+ *
+ * Per-stage timers and sample counters of training, and a reporter that
+ * writes them out in a machine-readable format.
+ *
+ * Timing is switched on with -Dcnn.metrics=true. Every timed call then adds
+ * its duration, sample count and the bytes allocated by its thread to the
+ * counters of its stage, and emits a cnn.Stage JDK Flight Recorder event
+ * (recorded when JFR is running, e.g. -XX:StartFlightRecording). JFR is used
+ * through reflection, so the class still runs on a JVM without it. When
+ * timing is off, start and stop return right away on a constant, so the JIT
+ * removes them.
+ *
+ *      long t = Metrics.start();
+ *      out = conv.forward_batch(batch, filters);
+ *      Metrics.stop(Metrics.Stage.CONVOLUTION, t, n);
+ *
+ * The stages of the input pipeline run on the loader threads, in parallel
+ * with the training thread. Load and decode are timed by the datasets and
+ * never overlap: PngDataset times reading the PNG file as load and the
+ * conversion to pixels as decode, the binary datasets time everything as load.
+ * ParallelTrainer times the layer stages on its workers, so the shares of
+ * those stages add up over the workers and may exceed 1.
+ *
+ * Timed calls must not be nested on the same thread: start records the
+ * allocation counter of the thread in a single slot that stop reads.
+ *
+ */
+public class Metrics {
+
+    /**
+     * true if the stages are timed (-Dcnn.metrics=true).
+     */
+    public static final boolean ENABLED = Boolean.getBoolean("cnn.metrics");
+
+    /**
+     * the timed stages of a training step.
+     */
+    public enum Stage {
+        /** reading an image from the dataset (loader threads). */
+        LOAD,
+        /** converting a decoded image to normalized pixels (loader threads). */
+        DECODE,
+        /** shifting and rotating an image (loader threads). */
+        AUGMENT,
+        /** waiting for the next batch of the input pipeline. */
+        WAIT,
+        CONVOLUTION,
+        POOLING,
+        SOFTMAX,
+        SOFTMAX_BACKWARD,
+        POOLING_BACKWARD,
+        CONVOLUTION_BACKWARD;
+
+        /**
+         * the name of the stage in reports and events.
+         */
+        public final String label = name().toLowerCase(Locale.ROOT);
+
+        final LongAdder nanos = new LongAdder(), calls = new LongAdder(), samples = new LongAdder(),
+                bytes = new LongAdder();
+    }
+
+    /**
+     * the per-thread allocation counters of the JVM, or null if it has none.
+     */
+    private static final com.sun.management.ThreadMXBean THREADS = threads();
+
+    /**
+     * the allocation counter of the current thread at the last call to start.
+     */
+    private static final ThreadLocal<long[]> ALLOCATED = ThreadLocal.withInitial(() -> new long[1]);
+
+    private static com.sun.management.ThreadMXBean threads() {
+        if (!ENABLED || !(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean)) {
+            return null;
+        }
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        if (!threads.isThreadAllocatedMemorySupported()) {
+            return null;
+        }
+        threads.setThreadAllocatedMemoryEnabled(true);
+        return threads;
+    }
+
+    /**
+     * @return the bytes allocated so far by the current thread, or 0 if the
+     * JVM does not count them.
+     */
+    private static long allocated() {
+        return THREADS == null ? 0 : THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * the cnn.Stage JFR event, created through jdk.jfr.EventFactory so that
+     * this class compiles for Java 8 and does without events on a JVM that
+     * has no JFR.
+     */
+    private static final class StageEvent {
+
+        /**
+         * create an event, and test, set a field of and commit one. all are
+         * null if JFR is not available.
+         */
+        static final MethodHandle NEW, IS_ENABLED, SET, COMMIT;
+
+        static {
+            MethodHandle create = null, enabled = null, set = null, commit = null;
+            try {
+                Class<?> event = Class.forName("jdk.jfr.Event");
+                Class<?> factory = Class.forName("jdk.jfr.EventFactory");
+                Constructor<?> annotation = Class.forName("jdk.jfr.AnnotationElement")
+                        .getConstructor(Class.class, Object.class);
+                Constructor<?> field = Class.forName("jdk.jfr.ValueDescriptor")
+                        .getConstructor(Class.class, String.class, List.class);
+                List<Object> annotations = Arrays.asList(
+                        annotation.newInstance(Class.forName("jdk.jfr.Name"), "cnn.Stage"),
+                        annotation.newInstance(Class.forName("jdk.jfr.Label"), "CNN Stage"),
+                        annotation.newInstance(Class.forName("jdk.jfr.Category"), new String[]{"CNN"}),
+                        annotation.newInstance(Class.forName("jdk.jfr.Description"),
+                                "One call of a stage of the training step"));
+                //the fields in the order of the indices passed to set by stop.
+                List<Object> fields = Arrays.asList(
+                        field.newInstance(String.class, "stage", Arrays.asList(
+                                annotation.newInstance(Class.forName("jdk.jfr.Label"), "Stage"))),
+                        field.newInstance(int.class, "samples", Arrays.asList(
+                                annotation.newInstance(Class.forName("jdk.jfr.Label"), "Samples"))),
+                        field.newInstance(long.class, "nanos", Arrays.asList(
+                                annotation.newInstance(Class.forName("jdk.jfr.Label"), "Duration"),
+                                annotation.newInstance(Class.forName("jdk.jfr.Timespan"), "NANOSECONDS"))),
+                        field.newInstance(long.class, "bytes", Arrays.asList(
+                                annotation.newInstance(Class.forName("jdk.jfr.Label"), "Allocated"),
+                                annotation.newInstance(Class.forName("jdk.jfr.DataAmount"), "BYTES"))));
+                Object events = factory.getMethod("create", List.class, List.class).invoke(null, annotations, fields);
+                MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+                create = lookup.findVirtual(factory, "newEvent", MethodType.methodType(event)).bindTo(events)
+                        .asType(MethodType.methodType(Object.class));
+                enabled = lookup.findVirtual(event, "isEnabled", MethodType.methodType(boolean.class))
+                        .asType(MethodType.methodType(boolean.class, Object.class));
+                set = lookup.findVirtual(event, "set", MethodType.methodType(void.class, int.class, Object.class))
+                        .asType(MethodType.methodType(void.class, Object.class, int.class, Object.class));
+                commit = lookup.findVirtual(event, "commit", MethodType.methodType(void.class))
+                        .asType(MethodType.methodType(void.class, Object.class));
+            } catch (ReflectiveOperationException e) {
+                //no JFR: the counters are still kept.
+                create = enabled = set = commit = null;
+            }
+            NEW = create;
+            IS_ENABLED = enabled;
+            SET = set;
+            COMMIT = commit;
+        }
+
+        static void emit(Stage stage, int samples, long nanos, long bytes) {
+            try {
+                Object event = NEW.invokeExact();
+                if ((boolean) IS_ENABLED.invokeExact(event)) {
+                    SET.invokeExact(event, 0, (Object) stage.label);
+                    SET.invokeExact(event, 1, (Object) samples);
+                    SET.invokeExact(event, 2, (Object) nanos);
+                    SET.invokeExact(event, 3, (Object) bytes);
+                    COMMIT.invokeExact(event);
+                }
+            } catch (Throwable e) {
+                throw new IllegalStateException("cannot record a cnn.Stage event", e);
+            }
+        }
+    }
+
+    /**
+     * @return the start time of a timed call, to be passed to stop.
+     */
+    public static long start() {
+        if (!ENABLED) {
+            return 0;
+        }
+        ALLOCATED.get()[0] = allocated();
+        return System.nanoTime();
+    }
+
+    /**
+     * ends a timed call started with start.
+     * @param stage the stage of the call.
+     * @param start the value returned by start.
+     * @param samples the number of samples processed by the call.
+     */
+    public static void stop(Stage stage, long start, int samples) {
+        if (!ENABLED) {
+            return;
+        }
+        long nanos = System.nanoTime() - start;
+        long bytes = allocated() - ALLOCATED.get()[0];
+        stage.nanos.add(nanos);
+        stage.calls.increment();
+        stage.samples.add(samples);
+        stage.bytes.add(bytes);
+        if (StageEvent.NEW != null) {
+            StageEvent.emit(stage, samples, nanos, bytes);
+        }
+    }
+
+    /**
+     * @param stage a stage.
+     * @return the total time spent in the stage, in nanoseconds.
+     */
+    public static long nanos(Stage stage) {
+        return stage.nanos.sum();
+    }
+
+    /**
+     * @param stage a stage.
+     * @return the number of samples processed by the stage.
+     */
+    public static long samples(Stage stage) {
+        return stage.samples.sum();
+    }
+
+    /**
+     * @param stage a stage.
+     * @return the number of bytes allocated by the stage, or 0 if the JVM
+     * does not count the allocations of a thread.
+     */
+    public static long bytes(Stage stage) {
+        return stage.bytes.sum();
+    }
+
+    /**
+     * writes the throughput, loss, accuracy and (when timing is on) the
+     * per-stage counters of the training loop every time report is called.
+     *
+     * The format is chosen with -Dcnn.metrics.format:
+     *      json        (default) one JSON object per line, appended.
+     *      prometheus  the Prometheus text exposition format. when written to
+     *                  a file, the file is replaced on every report so that
+     *                  it always holds the latest values.
+     * The output is System.out, or the file named by -Dcnn.metrics.file.
+     */
+    public static class Reporter implements AutoCloseable {
+
+        private final boolean prometheus;
+        private final File file;
+        private final PrintStream out;
+        private long last_time = System.nanoTime(), last_samples;
+        private final long[] last_nanos = new long[Stage.values().length];
+
+        /**
+         * creates a reporter configured by the cnn.metrics.format and
+         * cnn.metrics.file system properties.
+         * @throws IOException if the file cannot be opened.
+         */
+        public Reporter() throws IOException {
+            this("prometheus".equals(System.getProperty("cnn.metrics.format")),
+                    System.getProperty("cnn.metrics.file") == null ? null
+                    : new File(System.getProperty("cnn.metrics.file")));
+        }
+
+        /**
+         * @param prometheus true for the Prometheus text format, false for JSON lines.
+         * @param file the output file, or null for System.out.
+         * @throws IOException if the file cannot be opened.
+         */
+        public Reporter(boolean prometheus, File file) throws IOException {
+            this.prometheus = prometheus;
+            this.file = file;
+            out = file == null ? System.out : prometheus ? null
+                    : new PrintStream(new FileOutputStream(file, true), true, "UTF-8");
+            for (Stage s : Stage.values()) {
+                last_nanos[s.ordinal()] = s.nanos.sum();
+            }
+        }
+
+        /**
+         * reports the progress since the previous report.
+         * @param step the index of the last sample trained on.
+         * @param samples the total number of samples trained on so far.
+         * @param loss the mean loss since the previous report.
+         * @param accuracy the fraction of correct predictions since the previous report.
+         * @param ready the number of batches ready in the input pipeline.
+         * @throws IOException if the report cannot be written.
+         */
+        public void report(long step, long samples, double loss, double accuracy, int ready) throws IOException {
+            long now = System.nanoTime(), elapsed = Math.max(1, now - last_time);
+            double rate = (samples - last_samples) * 1e9 / elapsed;
+            last_time = now;
+            last_samples = samples;
+            StringBuilder b = new StringBuilder();
+            double[] shares = new double[last_nanos.length];
+            if (ENABLED) {
+                for (Stage s : Stage.values()) {
+                    long nanos = s.nanos.sum();
+                    //the share of the wall-clock time since the previous report.
+                    shares[s.ordinal()] = (double) (nanos - last_nanos[s.ordinal()]) / elapsed;
+                    last_nanos[s.ordinal()] = nanos;
+                }
+            }
+            if (prometheus) {
+                metric(b, "cnn_step", "gauge", "the index of the last sample trained on.", step);
+                metric(b, "cnn_samples_total", "counter", "the number of samples trained on.", samples);
+                metric(b, "cnn_samples_per_second", "gauge", "the throughput since the previous report.", rate);
+                metric(b, "cnn_loss", "gauge", "the mean loss since the previous report.", loss);
+                metric(b, "cnn_accuracy", "gauge", "the fraction of correct predictions since the previous report.",
+                        accuracy);
+                metric(b, "cnn_ready_batches", "gauge", "the number of batches ready in the input pipeline.", ready);
+                if (ENABLED) {
+                    family(b, "cnn_stage_seconds_total", "counter", "the time spent in a stage.");
+                    for (Stage s : Stage.values()) {
+                        sample(b, "cnn_stage_seconds_total", s.label, s.nanos.sum() / 1e9);
+                    }
+                    family(b, "cnn_stage_calls_total", "counter", "the number of timed calls of a stage.");
+                    for (Stage s : Stage.values()) {
+                        sample(b, "cnn_stage_calls_total", s.label, s.calls.sum());
+                    }
+                    family(b, "cnn_stage_samples_total", "counter", "the number of samples processed by a stage.");
+                    for (Stage s : Stage.values()) {
+                        sample(b, "cnn_stage_samples_total", s.label, s.samples.sum());
+                    }
+                    family(b, "cnn_stage_allocated_bytes_total", "counter",
+                            "the bytes allocated by the threads of a stage while in it.");
+                    for (Stage s : Stage.values()) {
+                        sample(b, "cnn_stage_allocated_bytes_total", s.label, s.bytes.sum());
+                    }
+                    family(b, "cnn_stage_share", "gauge",
+                            "the share of the wall-clock time since the previous report spent in a stage.");
+                    for (Stage s : Stage.values()) {
+                        sample(b, "cnn_stage_share", s.label, shares[s.ordinal()]);
+                    }
+                }
+            } else {
+                b.append("{\"step\":").append(step).append(",\"samples\":").append(samples)
+                        .append(",\"samples_per_second\":").append(format(rate, false))
+                        .append(",\"loss\":").append(format(loss, false))
+                        .append(",\"accuracy\":").append(format(accuracy, false))
+                        .append(",\"ready_batches\":").append(ready);
+                if (ENABLED) {
+                    b.append(",\"stages\":{");
+                    for (Stage s : Stage.values()) {
+                        b.append(s.ordinal() == 0 ? "" : ",").append('"').append(s.label)
+                                .append("\":{\"nanos\":").append(s.nanos.sum())
+                                .append(",\"calls\":").append(s.calls.sum())
+                                .append(",\"samples\":").append(s.samples.sum())
+                                .append(",\"bytes\":").append(s.bytes.sum())
+                                .append(",\"share\":").append(format(shares[s.ordinal()], false)).append('}');
+                    }
+                    b.append('}');
+                }
+            }
+            if (!prometheus) {
+                out.println(b.append('}'));
+            } else if (file == null) {
+                out.print(b);
+            } else {
+                write(b.toString());
+            }
+        }
+
+        /**
+         * appends a metric without labels together with its HELP and TYPE lines.
+         */
+        private static void metric(StringBuilder b, String name, String type, String help, double value) {
+            family(b, name, type, help);
+            b.append(name).append(' ').append(format(value, true)).append('\n');
+        }
+
+        /**
+         * appends the HELP and TYPE lines that precede the samples of a metric.
+         */
+        private static void family(StringBuilder b, String name, String type, String help) {
+            b.append("# HELP ").append(name).append(' ').append(help).append('\n');
+            b.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        }
+
+        /**
+         * appends a sample of a per-stage metric.
+         */
+        private static void sample(StringBuilder b, String name, String stage, double value) {
+            b.append(name).append("{stage=\"").append(stage).append("\"} ").append(format(value, true)).append('\n');
+        }
+
+        /**
+         * formats a number for the report. NaN and the infinities, e.g. of a
+         * diverged loss, have no JSON form and are written as null; Prometheus
+         * spells them NaN, +Inf and -Inf.
+         */
+        private static String format(double value, boolean prometheus) {
+            if (Double.isNaN(value)) {
+                return prometheus ? "NaN" : "null";
+            }
+            if (Double.isInfinite(value)) {
+                return prometheus ? value > 0 ? "+Inf" : "-Inf" : "null";
+            }
+            return value == Math.rint(value) && Math.abs(value) < 1e15 ? String.valueOf((long) value)
+                    : String.format(Locale.ROOT, "%.6g", value);
+        }
+
+        /**
+         * replaces the Prometheus file, so a scraper never sees a partial one.
+         */
+        private void write(String text) throws IOException {
+            File tmp = new File(file.getPath() + ".tmp");
+            Files.write(tmp.toPath(), text.getBytes("UTF-8"));
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        /**
+         * closes the output file, if any.
+         */
+        @Override
+        public void close() {
+            if (out != null && out != System.out) {
+                out.close();
+            }
+        }
+    }
+}
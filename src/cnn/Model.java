@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2019 Elias Yilma
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cnn;
+
+import UTIL.Mat;
+import UTIL.Tensor;
+
+/**
+ *
+ * @author Elias Yilma
+ *
+ * A trained network for inference only.
+ *
+ * The parameters are copied when the model is created and never modified
+ * afterwards, and nothing is cached for back-propagation. Every thread gets
+ * its own scratch buffers (grown on demand and then reused), so a single
+ * model can serve any number of concurrent callers without locking and,
+ * once warm, without allocating.
+ *
+ * The forward pass is the fused convolution and maximum pooling of ConvPool
+ * followed by the softmax layer: [n] X [28] X [28] ---> [n] X [8] X [13] X [13] ---> [n] X [10].
+ *
+ */
+public class Model {
+
+    /**
+     * the row and column size of the input images and the number of classes.
+     */
+        public final int rows, columns, classes;
+
+    private final Tensor filters, weights, bias;
+    private final int pooled;
+
+    private final ThreadLocal<Scratch> scratch = ThreadLocal.withInitial(Scratch::new);
+
+    /**
+     * the per-thread buffers of predict.
+     */
+    private static final class Scratch {
+
+        float[] features, totals;
+    }
+
+    /**
+     * creates a model from a copy of trained parameters.
+     * @param filters the 3X3 convolution filters. [8] X [3] X [3]
+     * @param weights the weight matrix of the softmax layer. [8*13*13] X [10]
+     * @param bias the bias vector of the softmax layer. [1] X [10]
+     * @param rows the row size of the input images.
+     * @param columns the column size of the input images.
+     */
+    public Model(Tensor filters, Tensor weights, Tensor bias, int rows, int columns) {
+        this.filters = filters.copy();
+        this.weights = weights.copy();
+        this.bias = bias.copy();
+        this.rows = rows;
+        this.columns = columns;
+        classes = bias.shape[1];
+        pooled = filters.shape[0] * ((rows - 2) / 2) * ((columns - 2) / 2);
+        if (pooled != weights.shape[0]) {
+            throw new IllegalArgumentException("weights " + weights + " do not match "
+                    + filters + " and " + rows + "X" + columns + " images");
+        }
+    }
+
+    /**
+     * creates a model for 28X28 (MNIST) images from a copy of trained parameters.
+     * @param filters the 3X3 convolution filters. [8] X [3] X [3]
+     * @param weights the weight matrix of the softmax layer. [8*13*13] X [10]
+     * @param bias the bias vector of the softmax layer. [1] X [10]
+     */
+    public Model(Tensor filters, Tensor weights, Tensor bias) {
+        this(filters, weights, bias, 28, 28);
+    }
+
+    /**
+     * classifies a batch of images.
+     * @param batch n images with normalized pixel values, one after the other
+     * in row-major order. [n] X [28] X [28]
+     * @param n the number of images.
+     * @return the predicted label of every image.
+     */
+    public int[] predict(float[] batch, int n) {
+        int[] labels = new int[n];
+        predict(batch, n, labels, null);
+        return labels;
+    }
+
+    /**
+     * classifies a batch of images into caller-provided arrays.
+     * @param batch n images with normalized pixel values, one after the other
+     * in row-major order. [n] X [28] X [28]
+     * @param n the number of images.
+     * @param labels receives the predicted label of every image.
+     * @param probabilities receives the [n] X [10] softmax probabilities, or null
+     * if they are not needed.
+     */
+    public void predict(float[] batch, int n, int[] labels, float[] probabilities) {
+        if (batch.length < n * rows * columns) {
+            throw new IllegalArgumentException(batch.length + " values hold fewer than "
+                    + n + " images of " + rows + "X" + columns);
+        }
+        Scratch s = scratch.get();
+        if (s.features == null || s.features.length < n * pooled) {
+            s.features = new float[n * pooled];
+            s.totals = new float[n * classes];
+        }
+        //the first n rows of the scratch arrays, passed with n, so that no view is created.
+        float[] features = s.features, totals = s.totals;
+        ConvPool.conv_pool(batch, 0, n, rows, columns, filters.data, 0, filters.shape[0], features, null);
+        // [n] X [10] = [n] X [1352] * [1352] X [10] + [1] X [10]
+        Mat.gemm_nn(n, pooled, classes, features, 0, weights.data, 0, totals, 0);
+        for (int i = 0; i < n; i++) {
+            int row = i * classes;
+            Mat.axpy(classes, 1, bias.data, 0, totals, row);
+            float max = Mat.max(totals, row, classes);
+            int label = 0;
+            for (int c = 1; c < classes; c++) {
+                if (totals[row + c] > totals[row + label]) {
+                    label = c;
+                }
+            }
+            labels[i] = label;
+            if (probabilities != null) {
+                float sum = 0;
+                for (int c = 0; c < classes; c++) {
+                    float e = (float) Math.exp(totals[row + c] - max);
+                    probabilities[row + c] = e;
+                    sum += e;
+                }
+                for (int c = 0; c < classes; c++) {
+                    probabilities[row + c] /= sum;
+                }
+            }
+        }
+    }
+}
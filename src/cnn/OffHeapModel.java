@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2019 Elias Yilma
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cnn;
+
+import UTIL.Arena;
+import UTIL.Tensor;
+import java.io.File;
+import java.io.IOException;
+import java.nio.FloatBuffer;
+
+/**
+ *
+ * @author Elias Yilma
+ *
+ * A trained network for inference only, like Model, whose softmax weights
+ * and bias live off the Java heap.
+ *
+ * The weights are read in tiles of TILE rows: every tile is copied with one
+ * bulk get into a small per-thread heap array and then used for all images
+ * of the batch, so that the multiply-adds run on a heap array rather than
+ * calling FloatBuffer.get once each (see StorageBenchmark in bench/).
+ *
+ * The weights and the bias are copied into one Arena when the model is
+ * created and freed by close. Only the parameters are kept off the heap: the
+ * convolution runs the shared ConvPool.conv_pool kernel on the caller's
+ * images, which reads the filters (72 floats) from a heap copy and writes the
+ * pooled features into per-thread heap buffers that are grown on demand and
+ * then reused, as in Model. The training layers do not use arenas.
+ *
+ * The forward pass is the same as Model: [n] X [28] X [28] ---> [n] X [8] X [13] X [13] ---> [n] X [10].
+ *
+ */
+public class OffHeapModel implements AutoCloseable {
+
+    /**
+     * the row and column size of the input images and the number of classes.
+     */
+        public final int rows, columns, classes;
+
+    private final Arena parameters;
+    private final FloatBuffer weights, bias;
+    private final float[] filters;
+    private final int K, pooled;
+
+    /**
+     * the number of rows of the weight matrix per tile.
+     */
+    static final int TILE = 64;
+
+    private final ThreadLocal<Scratch> scratch = ThreadLocal.withInitial(Scratch::new);
+
+    /**
+     * the per-thread buffers of predict, and the view of the weights that the
+     * tiles are read through (its position is changed by every read).
+     */
+    private static final class Scratch {
+
+        float[] features, totals, tile;
+        FloatBuffer weights;
+    }
+
+    /**
+     * creates a model from a copy of trained parameters.
+     * @param filters the 3X3 convolution filters. [8] X [3] X [3]
+     * @param weights the weight matrix of the softmax layer. [8*13*13] X [10]
+     * @param bias the bias vector of the softmax layer. [1] X [10]
+     * @param rows the row size of the input images.
+     * @param columns the column size of the input images.
+     */
+    public OffHeapModel(Tensor filters, Tensor weights, Tensor bias, int rows, int columns) {
+        if (filters.shape[1] != 3 || filters.shape[2] != 3) {
+            throw new IllegalArgumentException("OffHeapModel needs 3X3 filters, got " + filters);
+        }
+        this.rows = rows;
+        this.columns = columns;
+        classes = bias.shape[1];
+        K = filters.shape[0];
+        pooled = K * ((rows - 2) / 2) * ((columns - 2) / 2);
+        if (pooled != weights.shape[0]) {
+            throw new IllegalArgumentException("weights " + weights + " do not match "
+                    + filters + " and " + rows + "X" + columns + " images");
+        }
+        this.filters = filters.copy().data;
+        parameters = new Arena(Arena.bytes_of(weights.size()) + Arena.bytes_of(bias.size()));
+        this.weights = parameters.allocate(weights);
+        this.bias = parameters.allocate(bias);
+    }
+
+    /**
+     * creates a model for 28X28 (MNIST) images from a copy of trained parameters.
+     * @param filters the 3X3 convolution filters. [8] X [3] X [3]
+     * @param weights the weight matrix of the softmax layer. [8*13*13] X [10]
+     * @param bias the bias vector of the softmax layer. [1] X [10]
+     */
+    public OffHeapModel(Tensor filters, Tensor weights, Tensor bias) {
+        this(filters, weights, bias, 28, 28);
+    }
+
+    /**
+     * loads the parameters of a checkpoint file off the heap.
+     * @param file the checkpoint file.
+     * @return the model.
+     * @throws IOException if the checkpoint cannot be read.
+     */
+    public static OffHeapModel load(File file) throws IOException {
+        Checkpoint c = Checkpoint.load(file);
+        return new OffHeapModel(c.filters, c.weights, c.bias);
+    }
+
+    /**
+     * classifies a batch of images.
+     * @param batch n images with normalized pixel values, one after the other
+     * in row-major order. [n] X [28] X [28]
+     * @param n the number of images.
+     * @return the predicted label of every image.
+     */
+    public int[] predict(float[] batch, int n) {
+        int[] labels = new int[n];
+        predict(batch, n, labels, null);
+        return labels;
+    }
+
+    /**
+     * classifies a batch of images into caller-provided arrays.
+     * @param batch n images with normalized pixel values, one after the other
+     * in row-major order. [n] X [28] X [28]
+     * @param n the number of images.
+     * @param labels receives the predicted label of every image.
+     * @param probabilities receives the [n] X [10] softmax probabilities, or null
+     * if they are not needed.
+     */
+    public void predict(float[] batch, int n, int[] labels, float[] probabilities) {
+        int size = rows * columns;
+        if (batch.length < n * size) {
+            throw new IllegalArgumentException(batch.length + " values hold fewer than "
+                    + n + " images of " + rows + "X" + columns);
+        }
+        Scratch s = scratch.get();
+        if (s.features == null || s.features.length < n * pooled) {
+            s.features = new float[n * pooled];
+            s.totals = new float[n * classes];
+        }
+        if (s.weights == null) {
+            s.weights = weights.duplicate();
+            s.tile = new float[TILE * classes];
+        }
+        float[] features = s.features, totals = s.totals;
+        ConvPool.conv_pool(batch, 0, n, rows, columns, filters, 0, K, features, null);
+        dense(features, n, totals, s);
+        for (int i = 0; i < n; i++) {
+            int row = i * classes, label = 0;
+            float max = totals[row];
+            for (int c = 1; c < classes; c++) {
+                if (totals[row + c] > max) {
+                    max = totals[row + c];
+                    label = c;
+                }
+            }
+            labels[i] = label;
+            if (probabilities != null) {
+                float sum = 0;
+                for (int c = 0; c < classes; c++) {
+                    float e = (float) Math.exp(totals[row + c] - max);
+                    probabilities[row + c] = e;
+                    sum += e;
+                }
+                for (int c = 0; c < classes; c++) {
+                    probabilities[row + c] /= sum;
+                }
+            }
+        }
+    }
+
+    /**
+     * the totals of the softmax layer from the off-heap weights and bias.
+     *      [n] X [10] = [n] X [1352] * [1352] X [10] + [1] X [10]
+     * @param features the pooled images. [n] X [1352]
+     * @param out receives the totals. [n] X [10]
+     * @param s the scratch of the calling thread.
+     */
+    private void dense(float[] features, int n, float[] out, Scratch s) {
+        float[] tile = s.tile;
+        for (int i = 0; i < n; i++) {
+            for (int c = 0; c < classes; c++) {
+                out[i * classes + c] = bias.get(c);
+            }
+        }
+        for (int j0 = 0; j0 < pooled; j0 += TILE) {
+            int tile_rows = Math.min(TILE, pooled - j0);
+            s.weights.position(j0 * classes);
+            s.weights.get(tile, 0, tile_rows * classes);
+            for (int i = 0; i < n; i++) {
+                int row = i * classes, x = i * pooled + j0;
+                for (int j = 0; j < tile_rows; j++) {
+                    float f = features[x + j];
+                    int w = j * classes;
+                    for (int c = 0; c < classes; c++) {
+                        out[row + c] += f * tile[w + c];
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * frees the off-heap parameters. the model must no longer be used, and no
+     * call to predict may still be running.
+     */
+    @Override
+    public void close() {
+        parameters.close();
+    }
+}
@@ -0,0 +1,424 @@
+/*
+ * Copyright (C) 2019 Elias Yilma
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cnn;
+
+import UTIL.Arena;
+import UTIL.Mat;
+import UTIL.Tensor;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+
+/**
+ *
+ * @author Elias Yilma
+ *
+ * Mini-batch gradient descent with the parameters, activations and gradients
+ * kept off the Java heap (the off-heap storage mode of CNN.train_off_heap).
+ *
+ * The filters, weights and bias live in one long-lived Arena that is
+ * allocated by the constructor and freed by close. The activations and
+ * gradients of a step (the pooled images with the positions of their maxima,
+ * the totals and their gradient, the gradient of the pooled images and of
+ * the filters) are allocated from a second arena, sized for the largest
+ * batch, that is reset at the start of every step: whatever a step leaves
+ * behind is simply overwritten by the next one. Only the images of the batch
+ * (owned by the caller) and a few small scratch arrays stay on the heap: as
+ * in OffHeapModel, the weights are read and written in tiles of
+ * OffHeapModel.TILE rows that are copied in bulk to and from a heap array,
+ * and so are the matching parts of the pooled images and their gradient.
+ *
+ * A step is the same computation as CNN.train with ConvPool: the fused 3X3
+ * convolution and 2X2 maximum pooling, the softmax layer and the
+ * cross-entropy loss, and one update of all parameters with the average
+ * gradient of the batch: [N] X [28] X [28] ---> [N] X [8] X [13] X [13] ---> [N] X [10].
+ *
+ * A trainer is not thread-safe.
+ *
+ */
+public class OffHeapTrainer implements AutoCloseable {
+
+    /**
+     * the summed cross-entropy loss and the number of correctly classified
+     * images of the last call to step.
+     */
+        public float loss;
+        public int correct;
+
+    /**
+     * the row and column size of the training images, the number of classes
+     * and the largest number of images per step.
+     */
+        public final int rows, columns, classes, batch;
+
+    private final Arena parameters, activations;
+    private final FloatBuffer filters, weights, bias;
+    private final int K, p_h, p_w, pooled;
+
+    /**
+     * the totals (or their gradient) of one image, a tile of the weights, and
+     * the part of the pooled images (or of their gradient) of one image that
+     * matches the tile.
+     */
+    private final float[] totals, tile, features_tile;
+
+    /**
+     * creates a trainer with randomly initialized parameters, initialized like
+     * those of CNN.train.
+     * @param batch the largest number of images per step.
+     * @param rows the row size of the training images.
+     * @param columns the column size of the training images.
+     */
+    public OffHeapTrainer(int batch, int rows, int columns) {
+        this(CNN.init_filters(8), null, null, batch, rows, columns);
+    }
+
+    /**
+     * creates a trainer that starts from a copy of existing parameters.
+     * @param filters the 3X3 convolution filters. [8] X [3] X [3]
+     * @param weights the weight matrix of the softmax layer, or null for random
+     * weights. [8*13*13] X [10]
+     * @param bias the bias vector of the softmax layer, or null for zeroes. [1] X [10]
+     * @param batch the largest number of images per step.
+     * @param rows the row size of the training images.
+     * @param columns the column size of the training images.
+     */
+    public OffHeapTrainer(Tensor filters, Tensor weights, Tensor bias, int batch, int rows, int columns) {
+        if (filters.shape[1] != 3 || filters.shape[2] != 3) {
+            throw new IllegalArgumentException("OffHeapTrainer needs 3X3 filters, got " + filters);
+        }
+        this.rows = rows;
+        this.columns = columns;
+        this.batch = batch;
+        K = filters.shape[0];
+        p_h = (rows - 2) / 2;
+        p_w = (columns - 2) / 2;
+        pooled = K * p_h * p_w;
+        if (weights == null) {
+            SoftMax softmax = new SoftMax(pooled, 10);
+            weights = softmax.weights;
+            bias = softmax.bias;
+        }
+        if (pooled != weights.shape[0]) {
+            throw new IllegalArgumentException("weights " + weights + " do not match "
+                    + filters + " and " + rows + "X" + columns + " images");
+        }
+        classes = bias.shape[1];
+        totals = new float[classes];
+        tile = new float[OffHeapModel.TILE * classes];
+        features_tile = new float[OffHeapModel.TILE];
+        parameters = new Arena(Arena.bytes_of(filters.size()) + Arena.bytes_of(weights.size())
+                + Arena.bytes_of(bias.size()));
+        this.filters = parameters.allocate(filters);
+        this.weights = parameters.allocate(weights);
+        this.bias = parameters.allocate(bias);
+        //the features, their maxima and their gradient, the totals and the filter gradient.
+        activations = new Arena(3 * Arena.bytes_of(batch * pooled) + Arena.bytes_of(batch * classes)
+                + Arena.bytes_of(K * 9));
+    }
+
+    /**
+     * performs one step of mini-batch gradient descent on a batch of images.
+     * @param images the input images. [N] X [28] X [28]
+     * @param labels the correct label of every image.
+     * @param learning_rate the learning rate of the neural network.
+     */
+    public void step(Tensor images, int[] labels, float learning_rate) {
+        int N = images.shape[0];
+        if (N > batch || images.shape[1] != rows || images.shape[2] != columns) {
+            throw new IllegalArgumentException("the trainer takes up to " + batch + " images of "
+                    + rows + "X" + columns + ", got " + images);
+        }
+        Tensor in = images.is_contiguous() ? images : images.copy();
+        activations.reset();
+        FloatBuffer features = activations.allocate(N * pooled);
+        IntBuffer argmax = activations.allocate_ints(N * pooled);
+        FloatBuffer d_features = activations.allocate(N * pooled);
+        FloatBuffer d_totals = activations.allocate(N * classes);
+        FloatBuffer d_filters = activations.allocate(K * 9);
+
+        //FORWARD PROPAGATION --- the pooling is timed with the convolution.
+        long t = Metrics.start();
+        conv_pool(in.data, in.offset, N, features, argmax);
+        Metrics.stop(Metrics.Stage.CONVOLUTION, t, N);
+        t = Metrics.start();
+        softmax(features, N, labels, d_totals);
+        Metrics.stop(Metrics.Stage.SOFTMAX, t, N);
+
+        //BACKWARD PROPAGATION --- the average gradient of the batch
+        float step = -learning_rate / N;
+        t = Metrics.start();
+        dense_backward(features, d_totals, N, step, d_features);
+        Metrics.stop(Metrics.Stage.SOFTMAX_BACKWARD, t, N);
+        t = Metrics.start();
+        conv_pool_backward(in.data, in.offset, N, argmax, d_features, d_filters);
+        for (int i = 0; i < K * 9; i++) {
+            filters.put(i, filters.get(i) + step * d_filters.get(i));
+        }
+        Metrics.stop(Metrics.Stage.CONVOLUTION_BACKWARD, t, N);
+    }
+
+    /**
+     * the fused convolution and 2X2 maximum pooling (as ConvPool.conv_pool)
+     * with the filters of the trainer.
+     * @param out receives the pooled images. [N] X [8] X [13] X [13]
+     * @param argmax receives the position (row * 26 + column) of every maximum.
+     */
+    private void conv_pool(float[] img, int img_off, int N, FloatBuffer out, IntBuffer argmax) {
+        int h = rows, w = columns, c_w = w - 2;
+        int o = 0;
+        for (int n = 0; n < N; n++) {
+            int base = img_off + n * h * w;
+            for (int k = 0; k < K; k++) {
+                int fo = k * 9;
+                float f0 = filters.get(fo), f1 = filters.get(fo + 1), f2 = filters.get(fo + 2);
+                float f3 = filters.get(fo + 3), f4 = filters.get(fo + 4), f5 = filters.get(fo + 5);
+                float f6 = filters.get(fo + 6), f7 = filters.get(fo + 7), f8 = filters.get(fo + 8);
+                for (int pi = 0; pi < p_h; pi++) {
+                    for (int pj = 0; pj < p_w; pj++, o++) {
+                        float max = Float.NEGATIVE_INFINITY;
+                        int best = 0;
+                        for (int u = 0; u < 2; u++) {
+                            for (int v = 0; v < 2; v++) {
+                                int r = 2 * pi + u, c = 2 * pj + v;
+                                int p = base + r * w + c;
+                                float s = f0 * img[p] + f1 * img[p + 1] + f2 * img[p + 2]
+                                        + f3 * img[p + w] + f4 * img[p + w + 1] + f5 * img[p + w + 2]
+                                        + f6 * img[p + 2 * w] + f7 * img[p + 2 * w + 1] + f8 * img[p + 2 * w + 2];
+                                if (s > max) {
+                                    max = s;
+                                    best = r * c_w + c;
+                                }
+                            }
+                        }
+                        out.put(o, max);
+                        argmax.put(o, best);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * the softmax layer and the cross-entropy loss. sets loss and correct.
+     *      [N] X [10] = [N] X [1352] * [1352] X [10] + [1] X [10]
+     * @param features the pooled images. [N] X [1352]
+     * @param d_totals receives the gradient of the loss w.r.t. the totals,
+     * p - onehot(label). [N] X [10]
+     */
+    private void softmax(FloatBuffer features, int N, int[] labels, FloatBuffer d_totals) {
+        //the totals are summed in d_totals, one tile of the weights at a time.
+        for (int n = 0; n < N; n++) {
+            for (int c = 0; c < classes; c++) {
+                d_totals.put(n * classes + c, bias.get(c));
+            }
+        }
+        for (int j0 = 0; j0 < pooled; j0 += OffHeapModel.TILE) {
+            int tile_rows = Math.min(OffHeapModel.TILE, pooled - j0);
+            weights.position(j0 * classes);
+            weights.get(tile, 0, tile_rows * classes);
+            for (int n = 0; n < N; n++) {
+                int row = n * classes;
+                features.position(n * pooled + j0);
+                features.get(features_tile, 0, tile_rows);
+                for (int c = 0; c < classes; c++) {
+                    totals[c] = d_totals.get(row + c);
+                }
+                for (int j = 0; j < tile_rows; j++) {
+                    float f = features_tile[j];
+                    int w = j * classes;
+                    for (int c = 0; c < classes; c++) {
+                        totals[c] += f * tile[w + c];
+                    }
+                }
+                for (int c = 0; c < classes; c++) {
+                    d_totals.put(row + c, totals[c]);
+                }
+            }
+        }
+        loss = 0;
+        correct = 0;
+        for (int n = 0; n < N; n++) {
+            int row = n * classes;
+            for (int c = 0; c < classes; c++) {
+                totals[c] = d_totals.get(row + c);
+            }
+            int label = Mat.argmax(totals, 0, classes);
+            float max = totals[label], sum = 0;
+            for (int c = 0; c < classes; c++) {
+                float e = (float) Math.exp(totals[c] - max);
+                d_totals.put(row + c, e);
+                sum += e;
+            }
+            for (int c = 0; c < classes; c++) {
+                d_totals.put(row + c, d_totals.get(row + c) / sum);
+            }
+            d_totals.put(row + labels[n], d_totals.get(row + labels[n]) - 1);
+            loss += max + (float) Math.log(sum) - totals[labels[n]];
+            correct += label == labels[n] ? 1 : 0;
+        }
+    }
+
+    /**
+     * computes the gradient of the loss w.r.t. the pooled images and then
+     * updates the weights and the bias.
+     * @param d_features receives the gradient w.r.t. the pooled images. [N] X [1352]
+     */
+    private void dense_backward(FloatBuffer features, FloatBuffer d_totals, int N, float step,
+            FloatBuffer d_features) {
+        for (int j0 = 0; j0 < pooled; j0 += OffHeapModel.TILE) {
+            int tile_rows = Math.min(OffHeapModel.TILE, pooled - j0);
+            weights.position(j0 * classes);
+            weights.get(tile, 0, tile_rows * classes);
+            //the input gradient must be computed with the weights before the update.
+            //   [N] X [1352] = [N] X [10] * [10] X [1352](transposed)
+            for (int n = 0; n < N; n++) {
+                int row = n * classes;
+                for (int c = 0; c < classes; c++) {
+                    totals[c] = d_totals.get(row + c);
+                }
+                for (int j = 0; j < tile_rows; j++) {
+                    int w = j * classes;
+                    float s = 0;
+                    for (int c = 0; c < classes; c++) {
+                        s += totals[c] * tile[w + c];
+                    }
+                    features_tile[j] = s;
+                }
+                d_features.position(n * pooled + j0);
+                d_features.put(features_tile, 0, tile_rows);
+            }
+            //   [1352] X [10] += -lr/N * [1352] X [N] * [N] X [10]
+            for (int n = 0; n < N; n++) {
+                int row = n * classes;
+                for (int c = 0; c < classes; c++) {
+                    totals[c] = step * d_totals.get(row + c);
+                }
+                features.position(n * pooled + j0);
+                features.get(features_tile, 0, tile_rows);
+                for (int j = 0; j < tile_rows; j++) {
+                    float f = features_tile[j];
+                    int w = j * classes;
+                    for (int c = 0; c < classes; c++) {
+                        tile[w + c] += f * totals[c];
+                    }
+                }
+            }
+            weights.position(j0 * classes);
+            weights.put(tile, 0, tile_rows * classes);
+        }
+        for (int n = 0; n < N; n++) {
+            for (int c = 0; c < classes; c++) {
+                bias.put(c, bias.get(c) + step * d_totals.get(n * classes + c));
+            }
+        }
+    }
+
+    /**
+     * computes the gradient of the loss w.r.t. the filters, summed over the
+     * batch. only the convolution outputs that were selected by the pooling
+     * contribute (as ConvPool.gradient_batch).
+     * @param d_filters receives the gradient. [8] X [3] X [3]
+     */
+    private void conv_pool_backward(float[] img, int img_off, int N, IntBuffer argmax, FloatBuffer d_features,
+            FloatBuffer d_filters) {
+        int h = rows, w = columns, c_w = w - 2, per_filter = p_h * p_w;
+        int o = 0;
+        for (int k = 0; k < K * 9; k++) {
+            d_filters.put(k, 0);
+        }
+        for (int n = 0; n < N; n++) {
+            int base = img_off + n * h * w;
+            for (int k = 0; k < K; k++) {
+                int go = k * 9;
+                float g0 = 0, g1 = 0, g2 = 0, g3 = 0, g4 = 0, g5 = 0, g6 = 0, g7 = 0, g8 = 0;
+                for (int q = 0; q < per_filter; q++, o++) {
+                    float grad = d_features.get(o);
+                    if (grad == 0) {
+                        continue;
+                    }
+                    int r = argmax.get(o) / c_w, c = argmax.get(o) % c_w;
+                    int p = base + r * w + c;
+                    g0 += grad * img[p];
+                    g1 += grad * img[p + 1];
+                    g2 += grad * img[p + 2];
+                    g3 += grad * img[p + w];
+                    g4 += grad * img[p + w + 1];
+                    g5 += grad * img[p + w + 2];
+                    g6 += grad * img[p + 2 * w];
+                    g7 += grad * img[p + 2 * w + 1];
+                    g8 += grad * img[p + 2 * w + 2];
+                }
+                d_filters.put(go, d_filters.get(go) + g0);
+                d_filters.put(go + 1, d_filters.get(go + 1) + g1);
+                d_filters.put(go + 2, d_filters.get(go + 2) + g2);
+                d_filters.put(go + 3, d_filters.get(go + 3) + g3);
+                d_filters.put(go + 4, d_filters.get(go + 4) + g4);
+                d_filters.put(go + 5, d_filters.get(go + 5) + g5);
+                d_filters.put(go + 6, d_filters.get(go + 6) + g6);
+                d_filters.put(go + 7, d_filters.get(go + 7) + g7);
+                d_filters.put(go + 8, d_filters.get(go + 8) + g8);
+            }
+        }
+    }
+
+    /**
+     * @return a heap copy of the current filters. [8] X [3] X [3]
+     */
+    public Tensor filters() {
+        return copy(filters, K, 3, 3);
+    }
+
+    /**
+     * @return a heap copy of the current weights. [8*13*13] X [10]
+     */
+    public Tensor weights() {
+        return copy(weights, pooled, classes);
+    }
+
+    /**
+     * @return a heap copy of the current bias. [1] X [10]
+     */
+    public Tensor bias() {
+        return copy(bias, 1, classes);
+    }
+
+    private static Tensor copy(FloatBuffer b, int... shape) {
+        Tensor t = new Tensor(shape);
+        //the tiles leave the position of the parameter buffers anywhere.
+        FloatBuffer d = b.duplicate();
+        d.rewind();
+        d.get(t.data, t.offset, t.size());
+        return t;
+    }
+
+    /**
+     * @return an inference-only copy of the current parameters.
+     */
+    public Model model() {
+        return new Model(filters(), weights(), bias(), rows, columns);
+    }
+
+    /**
+     * frees the off-heap parameters and activations. the trainer must no
+     * longer be used.
+     */
+    @Override
+    public void close() {
+        parameters.close();
+        activations.close();
+    }
+}
@@ -0,0 +1,285 @@
+/*
+ * Copyright (C) 2019 Elias Yilma
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cnn;
+
+import UTIL.Mat;
+import UTIL.Tensor;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ *
+ * @author Elias Yilma
+ *
+ * Data-parallel mini-batch training on a fixed pool of worker threads.
+ *
+ * Every mini-batch is split into one contiguous shard per worker. Each worker
+ * owns a complete set of layers (and therefore its own activation caches and
+ * gradient buffers) that share the same filters, weights and bias. Workers
+ * only read the parameters during the forward and backward passes; once all
+ * of them are done, the gradients are summed and the parameters updated.
+ * The reduction is striped: the filters, weights and bias are treated as one
+ * range of parameters, and every thread sums and applies one contiguous
+ * stripe of that range across all workers.
+ *
+ * The workers time the layer stages of their shards like CNN.train (see
+ * Metrics); the reduction is not part of any stage.
+ *
+ */
+public class ParallelTrainer {
+
+    /**
+     * the shared 3X3 convolution filters. [8] X [3] X [3]
+     */
+        public final Tensor filters;
+
+    /**
+     * the shared weight matrix and bias vector of the softmax layer.
+     */
+        public final Tensor weights, bias;
+
+    /**
+     * the summed cross-entropy loss and the number of correctly classified
+     * images of the last call to step.
+     */
+        public float loss;
+        public int correct;
+
+    /**
+     * the row and column size of the training images.
+     */
+        public final int rows, columns;
+
+    private final Worker[] workers;
+    private final ExecutorService executor;
+
+    /**
+     * creates a layer of a worker with a workspace for shards of up to batch
+     * images, e.g. Im2ColConvolution::new.
+     * @param <L> the type of the layer.
+     */
+    @FunctionalInterface
+    public interface LayerFactory<L> {
+
+        /**
+         * @param batch the largest number of images per shard.
+         * @param rows the row size of the input of the layer.
+         * @param columns the column size of the input of the layer.
+         * @param channels the number of filters of the convolution layer.
+         * @return a new layer.
+         */
+        L create(int batch, int rows, int columns, int channels);
+    }
+
+    /**
+     * creates a trainer with randomly initialized parameters. every worker
+     * gets its own layers from the factories, so all of them share the same
+     * configuration.
+     * @param threads the number of worker threads.
+     * @param batch the largest number of images per step. the layers of every
+     * worker are sized for its share of such a batch.
+     * @param rows the row size of the training images.
+     * @param columns the column size of the training images.
+     * @param conv_factory creates the convolution layer of every worker, e.g.
+     * Im2ColConvolution::new.
+     * @param pool_factory creates the maximum pooling layer of every worker. it
+     * must create 2X2 pools with a stride of 2, the only pooling that Model
+     * (and therefore model(), Checkpoint and the inference classes) supports.
+     * @throws IllegalArgumentException if the factory creates another pool.
+     */
+    public ParallelTrainer(int threads, int batch, int rows, int columns, LayerFactory<Convolution> conv_factory,
+            LayerFactory<MaxPool> pool_factory) {
+        this.rows = rows;
+        this.columns = columns;
+        filters = CNN.init_filters(8);
+        workers = new Worker[threads];
+        int c_rows = rows - 2, c_columns = columns - 2;
+        //step gives every worker at most this many images.
+        int shard = (batch + threads - 1) / threads;
+        Tensor w = null, b = null;
+        for (int t = 0; t < threads; t++) {
+            Convolution conv = conv_factory.create(shard, rows, columns, filters.shape[0]);
+            MaxPool pool = pool_factory.create(shard, c_rows, c_columns, filters.shape[0]);
+            if (pool.size != 2 || pool.stride != 2) {
+                throw new IllegalArgumentException("the trained model supports 2X2 pools with a stride of 2 only, got "
+                        + pool.size + "X" + pool.size + " with a stride of " + pool.stride);
+            }
+            if (t == 0) {
+                //the softmax input is the pooled output of the configured pool.
+                SoftMax softmax = new SoftMax(filters.shape[0] * pool.pooled(c_rows) * pool.pooled(c_columns), 10);
+                w = softmax.weights;
+                b = softmax.bias;
+            }
+            workers[t] = new Worker(conv, pool, new SoftMax(w, b, shard));
+        }
+        weights = w;
+        bias = b;
+        executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "cnn-trainer");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * @return an inference-only copy of the current parameters.
+     */
+    public Model model() {
+        return new Model(filters, weights, bias, rows, columns);
+    }
+
+    /**
+     * performs one step of mini-batch gradient descent on a batch of images.
+     * @param images the input images. [N] X [28] X [28]
+     * @param labels the correct label of every image.
+     * @param learning_rate the learning rate of the neural network.
+     */
+    public void step(Tensor images, int[] labels, float learning_rate) {
+        int N = images.shape[0];
+        int active = Math.min(workers.length, N);
+        //FORWARD AND BACKWARD PROPAGATION --- one shard per worker
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (int w = 0; w < active; w++) {
+            Worker worker = workers[w];
+            int start = w * N / active, end = (w + 1) * N / active;
+            tasks.add(() -> {
+                worker.run(images.slice(start, end), labels, start);
+                return null;
+            });
+        }
+        invoke(tasks);
+        loss = 0;
+        correct = 0;
+        for (int w = 0; w < active; w++) {
+            loss += workers[w].loss;
+            correct += workers[w].correct;
+        }
+
+        //REDUCTION AND UPDATE --- striped over all parameters
+        float step = -learning_rate / N;
+        Tensor[] parameters = {filters, weights, bias};
+        int size = filters.size() + weights.size() + bias.size();
+        tasks.clear();
+        for (int s = 0; s < active; s++) {
+            int start = s * size / active, end = (s + 1) * size / active;
+            tasks.add(() -> {
+                //the part of the stripe that falls within each parameter tensor.
+                for (int p = 0, base = 0; p < parameters.length; base += parameters[p].size(), p++) {
+                    int from = Math.max(start, base) - base, to = Math.min(end, base + parameters[p].size()) - base;
+                    for (int w = 0; w < active && from < to; w++) {
+                        Tensor g = workers[w].gradient(p);
+                        Mat.axpy(to - from, step, g.data, g.offset + from, parameters[p].data,
+                                parameters[p].offset + from);
+                    }
+                }
+                return null;
+            });
+        }
+        invoke(tasks);
+        for (Worker worker : workers) {
+            worker.conv.filters_changed();
+        }
+    }
+
+    /**
+     * stops the worker threads.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    private void invoke(List<Callable<Void>> tasks) {
+        try {
+            for (Future<Void> f : executor.invokeAll(tasks)) {
+                f.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("training step interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("training step failed", e.getCause());
+        }
+    }
+
+    /**
+     * the layers and buffers of one worker thread.
+     */
+    private final class Worker {
+
+        final Convolution conv;
+        final MaxPool pool;
+        final SoftMax softmax;
+        float loss;
+        int correct;
+
+        Worker(Convolution conv, MaxPool pool, SoftMax softmax) {
+            this.conv = conv;
+            this.pool = pool;
+            this.softmax = softmax;
+        }
+
+        /**
+         * @param p the index of a parameter: 0 filters, 1 weights, 2 bias.
+         * @return the gradient of the last shard w.r.t. the parameter.
+         */
+        Tensor gradient(int p) {
+            return p == 0 ? conv.d_L_d_filters : p == 1 ? softmax.d_L_d_w : softmax.d_L_d_b;
+        }
+
+        /**
+         * computes the gradients of a shard without updating the parameters.
+         * @param shard the images of this worker. [n] X [28] X [28]
+         * @param labels the labels of the whole batch.
+         * @param first the index of the first image of the shard within the batch.
+         */
+        void run(Tensor shard, int[] labels, int first) {
+            int n = shard.shape[0];
+            long t = Metrics.start();
+            Tensor out = conv.forward_batch(shard, filters);
+            Metrics.stop(Metrics.Stage.CONVOLUTION, t, n);
+            t = Metrics.start();
+            out = pool.forward_batch(out);
+            Metrics.stop(Metrics.Stage.POOLING, t, n);
+            t = Metrics.start();
+            Tensor out_l = softmax.forward_batch(out);
+            Metrics.stop(Metrics.Stage.SOFTMAX, t, n);
+
+            loss = 0;
+            correct = 0;
+            int classes = out_l.shape[1];
+            for (int b = 0; b < n; b++) {
+                int correct_label = labels[first + b];
+                loss += softmax.cross_entropy(b, correct_label);
+                correct += correct_label == Mat.argmax(out_l.data, out_l.offset + b * classes, classes) ? 1 : 0;
+            }
+            t = Metrics.start();
+            Tensor sm_gradient = softmax.gradient_labels(labels, first);
+            Metrics.stop(Metrics.Stage.SOFTMAX_BACKWARD, t, n);
+            t = Metrics.start();
+            Tensor mp_gradient = pool.backprop_batch(sm_gradient);
+            Metrics.stop(Metrics.Stage.POOLING_BACKWARD, t, n);
+            t = Metrics.start();
+            conv.gradient_batch(mp_gradient);
+            Metrics.stop(Metrics.Stage.CONVOLUTION_BACKWARD, t, n);
+        }
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2019 Elias Yilma
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cnn;
+
+import UTIL.Tensor;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ *
+ * @author Elias Yilma
+ *
+ * The MNIST database as a directory of PNG images with one sub-directory per
+ * digit, e.g. data/mnist_png/mnist_png/training/0 ... /9.
+ *
+ * The directories are listed once when the dataset is created; every image
+ * is decoded from its PNG file when it is requested. The image size is that
+ * of the first image, and every other image must have the same size.
+ *
+ */
+public class PngDataset implements Dataset {
+
+    private final File[] files;
+    private final int[] labels;
+    private final int rows, columns;
+
+    /**
+     * lists the images of the sub-directories 0 to 9 of a directory.
+     * @param dir the directory containing one sub-directory per digit.
+     * @throws IOException if a sub-directory cannot be listed, it contains no
+     * images, or the first image cannot be decoded.
+     */
+    public PngDataset(File dir) throws IOException {
+        List<File> all = new ArrayList<>();
+        List<Integer> all_labels = new ArrayList<>();
+        for (int label = 0; label <= 9; label++) {
+            File[] images = new File(dir, String.valueOf(label)).listFiles();
+            if (images == null) {
+                throw new IOException("cannot list " + new File(dir, String.valueOf(label)));
+            }
+            Arrays.sort(images);
+            for (File f : images) {
+                all.add(f);
+                all_labels.add(label);
+            }
+        }
+        files = all.toArray(new File[0]);
+        labels = new int[files.length];
+        for (int i = 0; i < labels.length; i++) {
+            labels[i] = all_labels.get(i);
+        }
+        if (files.length == 0) {
+            throw new IOException("no images in " + dir);
+        }
+        BufferedImage first = CNN.load_image(files[0].getPath());
+        rows = first.getHeight();
+        columns = first.getWidth();
+    }
+
+    @Override
+    public int size() {
+        return files.length;
+    }
+
+    @Override
+    public int rows() {
+        return rows;
+    }
+
+    @Override
+    public int columns() {
+        return columns;
+    }
+
+    @Override
+    public int label(int index) {
+        return labels[index];
+    }
+
+    /**
+     * reads and decodes the PNG file of an image (timed as LOAD) and converts
+     * it to normalized pixels (timed as DECODE).
+     * @throws IOException if the file cannot be decoded or its size differs
+     * from rows() X columns().
+     */
+    @Override
+    public void image(int index, Tensor dst) throws IOException {
+        long t = Metrics.start();
+        String path = files[index].getPath();
+        BufferedImage image = CNN.load_image(path);
+        Metrics.stop(Metrics.Stage.LOAD, t, 1);
+        if (image.getHeight() != rows || image.getWidth() != columns) {
+            throw new IOException(path + " is " + image.getHeight() + "X" + image.getWidth()
+                    + ", not " + rows + "X" + columns);
+        }
+        t = Metrics.start();
+        CNN.img_to_mat(image, dst);
+        Metrics.stop(Metrics.Stage.DECODE, t, 1);
+    }
+}
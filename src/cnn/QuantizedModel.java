@@ -0,0 +1,382 @@
+/*
+ * Copyright (C) 2019 Elias Yilma
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cnn;
+
+import UTIL.Tensor;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ *
+ * @author Elias Yilma
+ *
+ * A trained network quantized to 8-bit integers for inference only.
+ *
+ * The convolution filters and the softmax weights are stored as int8 with one
+ * symmetric scale per output channel (per filter and per class), a quarter of
+ * the size of the float model. Pixels are already 8-bit, so the images are
+ * fed to the convolution as unsigned bytes (value / 255).
+ *
+ * Every product is accumulated in 32-bit integers:
+ *      -convolution: [28] X [28] uint8 pixels * [3] X [3] int8 filter --> int32.
+ *       the maximum pooling is done on the int32 sums (the scale of a filter
+ *       is positive, so the maximum is the same), and the pooled values are
+ *       requantized to int8 with a single activation scale.
+ *      -softmax layer: [1352] int8 activations * [1352] X [10] int8 weights --> int32,
+ *       scaled back to float before the bias is added.
+ * Only the 10 totals of every image are computed in float.
+ *
+ * The activation scale is calibrated by running the float convolution over a
+ * sample of training images and taking the largest pooled magnitude.
+ *
+ * Like Model, a single instance may be used by any number of threads.
+ *
+ */
+public class QuantizedModel {
+
+    /**
+     * the row and column size of the input images and the number of classes.
+     */
+        public final int rows, columns, classes;
+
+    /*
+     * the quantized filters [8] X [3] X [3] and their per-filter scales.
+     */
+    private final byte[] filters;
+    private final float[] filter_scales;
+
+    /*
+     * the quantized weights, transposed to [10] X [1352] so that the inner
+     * product of every class is contiguous, and their per-class scales.
+     */
+    private final byte[] weights;
+    private final float[] weight_scales;
+
+    private final float[] bias;
+
+    /**
+     * the scale of the int8 activations fed to the softmax layer.
+     */
+    private final float activation_scale;
+
+    /*
+     * for every filter, the factor that requantizes its int32 convolution
+     * sums to int8 activations: (1/255) * filter_scale / activation_scale.
+     */
+    private final float[] requantize;
+
+    private final int K, pooled;
+
+    private final ThreadLocal<Scratch> scratch = ThreadLocal.withInitial(Scratch::new);
+
+    /**
+     * the per-thread buffers of predict.
+     */
+    private static final class Scratch {
+
+        byte[] pixels, features;
+        float[] totals;
+    }
+
+    /**
+     * quantizes trained parameters.
+     * @param filters the 3X3 convolution filters. [8] X [3] X [3]
+     * @param weights the weight matrix of the softmax layer. [8*13*13] X [10]
+     * @param bias the bias vector of the softmax layer. [1] X [10]
+     * @param calibration the images the activation scale is calibrated on.
+     * @param samples the number of randomly chosen calibration images.
+     * @throws IOException if a calibration image cannot be read.
+     */
+    public QuantizedModel(Tensor filters, Tensor weights, Tensor bias, Dataset calibration, int samples)
+            throws IOException {
+        rows = calibration.rows();
+        columns = calibration.columns();
+        classes = bias.shape[1];
+        K = filters.shape[0];
+        pooled = K * ((rows - 2) / 2) * ((columns - 2) / 2);
+        if (filters.shape[1] != 3 || filters.shape[2] != 3) {
+            throw new IllegalArgumentException("QuantizedModel needs 3X3 filters, got " + filters);
+        }
+        if (pooled != weights.shape[0]) {
+            throw new IllegalArgumentException("weights " + weights + " do not match "
+                    + filters + " and " + rows + "X" + columns + " images");
+        }
+        Tensor f = filters.copy(), w = weights.transpose().copy();
+        this.filters = new byte[f.size()];
+        filter_scales = quantize(f.data, K, 9, this.filters);
+        this.weights = new byte[w.size()];
+        weight_scales = quantize(w.data, classes, pooled, this.weights);
+        this.bias = bias.copy().data;
+
+        activation_scale = calibrate(f, calibration, samples) / 127;
+        requantize = new float[K];
+        for (int k = 0; k < K; k++) {
+            requantize[k] = filter_scales[k] / 255 / activation_scale;
+        }
+    }
+
+    /**
+     * quantizes the parameters of a checkpoint for 28X28 (MNIST) images.
+     * @param checkpoint the trained parameters.
+     * @param calibration the images the activation scale is calibrated on.
+     * @param samples the number of randomly chosen calibration images.
+     * @return the quantized model.
+     * @throws IOException if a calibration image cannot be read.
+     */
+    public static QuantizedModel of(Checkpoint checkpoint, Dataset calibration, int samples) throws IOException {
+        return new QuantizedModel(checkpoint.filters, checkpoint.weights, checkpoint.bias, calibration, samples);
+    }
+
+    /**
+     * symmetric per-channel quantization: every row of src is scaled so that
+     * its largest magnitude maps to 127.
+     * @param src the contiguous [channels] X [length] float values.
+     * @param dst receives the int8 values.
+     * @return the scale of every channel (float value = int8 value * scale).
+     */
+    private static float[] quantize(float[] src, int channels, int length, byte[] dst) {
+        float[] scales = new float[channels];
+        for (int c = 0; c < channels; c++) {
+            float max = 0;
+            for (int i = c * length; i < (c + 1) * length; i++) {
+                max = Math.max(max, Math.abs(src[i]));
+            }
+            scales[c] = max == 0 ? 1 : max / 127;
+            float inv = 1 / scales[c];
+            for (int i = c * length; i < (c + 1) * length; i++) {
+                dst[i] = (byte) Math.round(src[i] * inv);
+            }
+        }
+        return scales;
+    }
+
+    /**
+     * runs the float convolution and pooling over a random sample of images.
+     * @return the largest magnitude of the pooled activations.
+     */
+    private float calibrate(Tensor f, Dataset data, int samples) throws IOException {
+        int n = Math.min(samples, data.size());
+        Random random = new Random(1);
+        Tensor image = new Tensor(rows, columns);
+        float[] out = new float[pooled];
+        float max = 0;
+        for (int i = 0; i < n; i++) {
+            data.image(random.nextInt(data.size()), image);
+            ConvPool.conv_pool(image.data, 0, 1, rows, columns, f.data, 0, K, out, null);
+            for (float v : out) {
+                max = Math.max(max, Math.abs(v));
+            }
+        }
+        return max == 0 ? 1 : max;
+    }
+
+    /**
+     * @return the size of the quantized parameters in bytes.
+     */
+    public int bytes() {
+        return filters.length + weights.length + 4 * (filter_scales.length + weight_scales.length
+                + bias.length + 1);
+    }
+
+    /**
+     * classifies a batch of images.
+     * @param batch n images with normalized pixel values, one after the other
+     * in row-major order. [n] X [28] X [28]
+     * @param n the number of images.
+     * @return the predicted label of every image.
+     */
+    public int[] predict(float[] batch, int n) {
+        int[] labels = new int[n];
+        predict(batch, n, labels, null);
+        return labels;
+    }
+
+    /**
+     * classifies a batch of images into caller-provided arrays. the pixels are
+     * rounded to 8 bits first.
+     * @param batch n images with normalized pixel values, one after the other
+     * in row-major order. [n] X [28] X [28]
+     * @param n the number of images.
+     * @param labels receives the predicted label of every image.
+     * @param probabilities receives the [n] X [10] softmax probabilities, or null
+     * if they are not needed.
+     */
+    public void predict(float[] batch, int n, int[] labels, float[] probabilities) {
+        int size = n * rows * columns;
+        if (batch.length < size) {
+            throw new IllegalArgumentException(batch.length + " values hold fewer than "
+                    + n + " images of " + rows + "X" + columns);
+        }
+        Scratch s = scratch.get();
+        if (s.pixels == null || s.pixels.length < size) {
+            s.pixels = new byte[size];
+        }
+        for (int i = 0; i < size; i++) {
+            s.pixels[i] = (byte) Math.round(batch[i] * 255);
+        }
+        predict(s.pixels, n, labels, probabilities);
+    }
+
+    /**
+     * classifies a batch of 8-bit images into caller-provided arrays.
+     * @param pixels n images with unsigned pixel values (0-255), one after the
+     * other in row-major order. [n] X [28] X [28]
+     * @param n the number of images.
+     * @param labels receives the predicted label of every image.
+     * @param probabilities receives the [n] X [10] softmax probabilities, or null
+     * if they are not needed.
+     */
+    public void predict(byte[] pixels, int n, int[] labels, float[] probabilities) {
+        if (pixels.length < n * rows * columns) {
+            throw new IllegalArgumentException(pixels.length + " pixels hold fewer than "
+                    + n + " images of " + rows + "X" + columns);
+        }
+        Scratch s = scratch.get();
+        if (s.features == null || s.features.length < n * pooled) {
+            s.features = new byte[n * pooled];
+            s.totals = new float[classes];
+        }
+        conv_pool(pixels, n, s.features);
+        float[] totals = s.totals;
+        for (int i = 0; i < n; i++) {
+            int x = i * pooled;
+            int label = 0;
+            for (int c = 0; c < classes; c++) {
+                // int32 accumulation of [1352] int8 * [1352] int8
+                int acc = 0, w = c * pooled;
+                for (int j = 0; j < pooled; j++) {
+                    acc += s.features[x + j] * weights[w + j];
+                }
+                totals[c] = acc * activation_scale * weight_scales[c] + bias[c];
+                if (totals[c] > totals[label]) {
+                    label = c;
+                }
+            }
+            labels[i] = label;
+            if (probabilities != null) {
+                float max = totals[label], sum = 0;
+                int row = i * classes;
+                for (int c = 0; c < classes; c++) {
+                    float e = (float) Math.exp(totals[c] - max);
+                    probabilities[row + c] = e;
+                    sum += e;
+                }
+                for (int c = 0; c < classes; c++) {
+                    probabilities[row + c] /= sum;
+                }
+            }
+        }
+    }
+
+    /**
+     * the int8 counterpart of ConvPool.conv_pool: convolution of uint8 pixels
+     * with int8 filters into int32 sums, 2X2 maximum pooling of the sums and
+     * requantization of the maxima to int8.
+     * @param img the images. [n] X [h] X [w]
+     * @param out receives the pooled int8 activations. [n] X [K] X [(h-2)/2] X [(w-2)/2]
+     */
+    private void conv_pool(byte[] img, int n, byte[] out) {
+        int h = rows, w = columns, p_h = (h - 2) / 2, p_w = (w - 2) / 2;
+        int o = 0;
+        for (int b = 0; b < n; b++) {
+            int base = b * h * w;
+            for (int k = 0; k < K; k++) {
+                int fo = k * 9;
+                int f0 = filters[fo], f1 = filters[fo + 1], f2 = filters[fo + 2];
+                int f3 = filters[fo + 3], f4 = filters[fo + 4], f5 = filters[fo + 5];
+                int f6 = filters[fo + 6], f7 = filters[fo + 7], f8 = filters[fo + 8];
+                float scale = requantize[k];
+                for (int pi = 0; pi < p_h; pi++) {
+                    for (int pj = 0; pj < p_w; pj++, o++) {
+                        int max = Integer.MIN_VALUE;
+                        for (int u = 0; u < 2; u++) {
+                            for (int v = 0; v < 2; v++) {
+                                int p = base + (2 * pi + u) * w + 2 * pj + v;
+                                int s = f0 * (img[p] & 0xff) + f1 * (img[p + 1] & 0xff)
+                                        + f2 * (img[p + 2] & 0xff) + f3 * (img[p + w] & 0xff)
+                                        + f4 * (img[p + w + 1] & 0xff) + f5 * (img[p + w + 2] & 0xff)
+                                        + f6 * (img[p + 2 * w] & 0xff) + f7 * (img[p + 2 * w + 1] & 0xff)
+                                        + f8 * (img[p + 2 * w + 2] & 0xff);
+                                max = Math.max(max, s);
+                            }
+                        }
+                        int q = Math.round(max * scale);
+                        out[o] = (byte) Math.max(-127, Math.min(127, q));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * quantizes the model of a checkpoint and compares it with the float model
+     * on the MNIST testing set. the activation scale is calibrated on the
+     * training set, so no evaluated image is seen during calibration.
+     * prints the accuracy of both models, the accuracy delta, the size of
+     * the parameters and the throughput. if the checkpoint does not exist yet, a
+     * model is first trained on the MNIST training set and saved to it.
+     * @param args optionally the checkpoint file (model.ckpt by default), the
+     * number of calibration images (1000 by default) and the number of
+     * evaluated testing images (10000 by default).
+     * @throws IOException if the data or the checkpoint cannot be read.
+     */
+    public static void main(String[] args) throws IOException {
+        File file = new File(args.length > 0 ? args[0] : "model.ckpt");
+        int samples = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        int count = args.length > 2 ? Integer.parseInt(args[2]) : 10000;
+        Dataset training = CNN.training_data(), data = CNN.testing_data();
+        if (!file.exists()) {
+            CNN.train(training, 10000, 32, new Im2ColConvolution(), file);
+        }
+        Checkpoint checkpoint = Checkpoint.load(file);
+        Model model = checkpoint.model();
+        QuantizedModel quantized = of(checkpoint, training, samples);
+
+        int n = Math.min(count, data.size()), batch = 64;
+        Tensor images = new Tensor(batch, data.rows(), data.columns());
+        int[] expected = new int[batch], float_labels = new int[batch], int8_labels = new int[batch];
+        int float_correct = 0, int8_correct = 0, agree = 0;
+        long float_nanos = 0, int8_nanos = 0;
+        for (int i = 0; i < n; i += batch) {
+            int m = Math.min(batch, n - i);
+            for (int b = 0; b < m; b++) {
+                data.image(i + b, images.slice(b));
+                expected[b] = data.label(i + b);
+            }
+            long start = System.nanoTime();
+            model.predict(images.data, m, float_labels, null);
+            float_nanos += System.nanoTime() - start;
+            start = System.nanoTime();
+            quantized.predict(images.data, m, int8_labels, null);
+            int8_nanos += System.nanoTime() - start;
+            for (int b = 0; b < m; b++) {
+                float_correct += float_labels[b] == expected[b] ? 1 : 0;
+                int8_correct += int8_labels[b] == expected[b] ? 1 : 0;
+                agree += float_labels[b] == int8_labels[b] ? 1 : 0;
+            }
+        }
+        int float_bytes = 4 * (checkpoint.filters.size() + checkpoint.weights.size() + checkpoint.bias.size());
+        System.out.println("testing images: " + n + " calibration samples (training set): " + samples);
+        System.out.println("float accuracy: " + 100.0 * float_correct / n + "% int8 accuracy: "
+                + 100.0 * int8_correct / n + "% delta: " + 100.0 * (int8_correct - float_correct) / n
+                + "% agreement: " + 100.0 * agree / n + "%");
+        System.out.println("float bytes: " + float_bytes + " int8 bytes: " + quantized.bytes());
+        System.out.println("float images/s: " + (long) (n * 1e9 / float_nanos) + " int8 images/s: "
+                + (long) (n * 1e9 / int8_nanos));
+    }
+}
@@ -17,11 +17,18 @@
 package cnn;
 
 import UTIL.Mat;
+import UTIL.Tensor;
 
 /**
  *
  * @author user
  * 
+ * The activations (totals and probabilities) and the gradients of a batch
+ * are kept in buffers that are sized for the largest batch, by the
+ * constructor when it is given or by the first call otherwise, and reused
+ * by every later call. The tensors returned by forward and backprop are
+ * views of these buffers, valid until the next call.
+ * 
  */
 public class SoftMax {
     
@@ -29,25 +36,74 @@ public class SoftMax {
     /**
      * weight matrix between the softmax layer and the output layer
      */
-        public float[][] weights;
+        public Tensor weights;
     
 
     /**
-     * the flattened input array obtained from the max-pooling layer.
+     * the flattened input array obtained from the max-pooling layer, one row per sample.
      */
-        public float[][] input;
+        public Tensor input; // [N] X [1352]
     
 
     /**
      * the bias vector of the output layer
      */
-        public float[][] bias;
+        public Tensor bias;
     
 
     /**
-     * the output layer vector.
+     * the output layer vectors (the totals before the softmax is applied), one
+     * row per sample.
+     */
+        public Tensor output; // [N] X [10]
+
+    /**
+     * the softmax probabilities returned by forward. the buffer is reused by
+     * the next call to forward, so callers that need to keep it must copy it.
+     */
+        public Tensor probabilities; // [N] X [10]
+
+    /**
+     * the gradients of the loss w.r.t. the weights and the bias, summed over
+     * the last batch by gradient_batch. allocated by the first call to
+     * gradient_batch; backprop_batch updates the parameters directly and
+     * never uses them.
+     */
+        public Tensor d_L_d_w, d_L_d_b;
+
+    /*
+     * buffers reused by backprop.
+     */
+    private Tensor d_L_d_t, d_L_d_inputs;
+
+    /**
+     * the log of the sum of the exponentiated totals of every row, computed by
+     * forward and used by cross_entropy.
+     */
+    private float[] log_sum_exp;
+
+    /**
+     * the shape of the input before it was flattened, used to reshape the
+     * gradient returned by backprop.
+     */
+    private int[] input_shape;
+
+    /*
+     * views cached between calls, so that a training step with the same
+     * buffers creates no new tensors: the tensor last passed to forward and
+     * its flattened view and the transpose of that, the weights and their
+     * transpose, and the input gradient in the shape of the input together
+     * with the tensor it was shaped after.
      */
-        public float[][] output;
+    private Tensor last_input, input_t, weights_t, weights_t_of, d_L_d_in, d_L_d_in_of;
+
+    /*
+     * the batch view of the last single-sample input, the sample view of the
+     * input gradient, and the label of backprop_label, reused while the caller
+     * passes the same tensors (see Tensor.as_batch(view) and Tensor.slice(i, view)).
+     */
+    private Tensor sample_in, sample_d_in;
+    private final int[] sample_label = new int[1];
 
     /**
      * constructor for the softmax layer that initializes the weight matrix to
@@ -56,10 +112,55 @@ public class SoftMax {
      * @param output size of the output layer.
      */
     public SoftMax(int input, int output) {
-        weights = Mat.m_scale(Mat.m_random(input, output), 1.0f / input);
-        bias = Mat.v_zeros(10);
-        String s="aaa";
-        
+        this(Mat.m_scale(Tensor.random(input, output), 1.0f / input), new Tensor(1, output));
+    }
+
+    /**
+     * constructor for the softmax layer with random initial weights and
+     * buffers for batches of up to batch samples.
+     * @param input size of the input layer.
+     * @param output size of the output layer.
+     * @param batch the largest number of samples per batch.
+     */
+    public SoftMax(int input, int output, int batch) {
+        this(input, output);
+        reserve(batch);
+    }
+
+    /**
+     * constructor for a softmax layer that uses existing weight and bias
+     * tensors, e.g. to share the parameters of one layer between several
+     * threads that each need their own activation and gradient buffers.
+     * @param weights the [input] X [output] weight matrix.
+     * @param bias the [1] X [output] bias vector.
+     */
+    public SoftMax(Tensor weights, Tensor bias) {
+        this.weights = weights;
+        this.bias = bias;
+    }
+
+    /**
+     * constructor for a softmax layer that uses existing weight and bias
+     * tensors and has buffers for batches of up to batch samples.
+     * @param weights the [input] X [output] weight matrix.
+     * @param bias the [1] X [output] bias vector.
+     * @param batch the largest number of samples per batch.
+     */
+    public SoftMax(Tensor weights, Tensor bias, int batch) {
+        this(weights, bias);
+        reserve(batch);
+    }
+
+    /**
+     * allocates the activation buffers for batches of up to batch samples.
+     */
+    private void reserve(int batch) {
+        int n_in = weights.shape[0], n_out = bias.shape[1];
+        output = new Tensor(batch, n_out);
+        probabilities = new Tensor(batch, n_out);
+        log_sum_exp = new float[batch];
+        d_L_d_t = new Tensor(batch, n_out);
+        d_L_d_inputs = new Tensor(batch, n_in);
     }
 
     /**
@@ -67,19 +168,109 @@ public class SoftMax {
      * @param input a [8] X [13] X [13] 3D matrix obtained from the max-pooling layer.
      * @return a [1] X [10] vector of the softmax probabilities
      */
-    public float[][] forward(float[][][] input) {
-        //flattens the input to [8] X [13] X [13] to a [1] X [8*13*13] vector.
-        float[][] in = Mat.m_flatten(input);  //1X1342
-        output = new float[1][bias.length];    //1X10
+    public Tensor forward(Tensor input) {
+        //the input is flattened to a [1] X [8*13*13] vector by forward_batch (a view, no copy).
+        sample_in = input.as_batch(sample_in);
+        return forward_batch(sample_in);
+    }
+
+    /**
+     * performs the forward pass of the softmax layer for a batch.
+     * @param input a [N] X [8] X [13] X [13] matrix obtained from the max-pooling layer.
+     * @return a [N] X [10] matrix of the softmax probabilities of each sample
+     */
+    public Tensor forward_batch(Tensor input) {
+        int N = input.shape[0], n_out = bias.shape[1];
+        //flattens every sample to a row --> [N] X [8*13*13] (a view, no copy).
+        if (input != last_input) {
+            input_shape = input.shape;
+            this.input = input.reshape(N, input.size() / N);  //NX1352
+            input_t = this.input.transpose();
+            last_input = input;
+        }
+        Tensor in = this.input;
+        output = Tensor.reserve(output, N, n_out);
+        probabilities = Tensor.reserve(probabilities, N, n_out);
+        if (log_sum_exp == null || log_sum_exp.length < N) {
+            log_sum_exp = new float[N];
+        }
      // evaluate the total activation value --> t=[i][w]+[b] and cache the totals for backprop
-     // [1] X [10] =  [1] X [1342]  * [1342] X [10] + [1] X [10]
-        output = Mat.mm_add(Mat.mm_mult(in, weights), bias);
-        //compute softmax probabilities.
-        float[][] totals = Mat.v_exp(output);
-        float inv_activation_sum = 1 / Mat.v_sum(totals);
-        //cache input
-        this.input = in;
-        return Mat.v_scale(totals, inv_activation_sum);
+     // [N] X [10] =  [N] X [1352]  * [1352] X [10] + [1] X [10]
+        Mat.mm_mult_into(in, weights, output);
+        //add the bias and compute the softmax probabilities of every row. the
+        //largest total is subtracted before exponentiating (which leaves the
+        //probabilities unchanged) so that exp cannot overflow.
+        for (int n = 0; n < N; n++) {
+            int row = n * n_out;
+            Mat.axpy(n_out, 1, bias.data, bias.offset, output.data, row);
+            float max = Mat.max(output.data, row, n_out);
+            for (int i = 0; i < n_out; i++) {
+                probabilities.data[row + i] = (float) Math.exp(output.data[row + i] - max);
+            }
+            float activation_sum = Mat.sum(probabilities.data, row, n_out);
+            float inv_activation_sum = 1 / activation_sum;
+            for (int i = 0; i < n_out; i++) {
+                probabilities.data[row + i] *= inv_activation_sum;
+            }
+            log_sum_exp[n] = max + (float) Math.log(activation_sum);
+        }
+        return probabilities;
+    }
+
+    /**
+     * computes the cross-entropy loss of a sample of the last forward pass from
+     * the totals (log-sum-exp minus the total of the correct class), which
+     * stays finite even when the probability of the correct class rounds to 0.
+     * @param n the index of the sample within the batch.
+     * @param label the correct label of the sample.
+     * @return -log(p[label])
+     */
+    public float cross_entropy(int n, int label) {
+        return log_sum_exp[n] - output.get(n, label);
+    }
+
+    /**
+     * performs the back-propagation phase of the softmax layer combined with the
+     * cross-entropy loss for a batch. the gradient of the loss w.r.t. the
+     * totals is simply p - onehot(label), so the gradient w.r.t. the
+     * probabilities is never formed. the parameters are updated as in backprop_batch.
+     * @param labels the correct labels.
+     * @param first the index within labels of the label of the first sample.
+     * @param learning_rate the learning rate of the neural network.
+     * @return a gradient matrix with the shape [N] X [8] X [13] X [13] to be fed to the
+     * maxpooling layer. the buffer is owned by the layer and reused by the next
+     * call to backprop.
+     */
+    public Tensor backprop_labels(int[] labels, int first, float learning_rate) {
+        cross_entropy_gradient(labels, first);
+        return update(learning_rate);
+    }
+
+    /**
+     * backprop_labels for the single sample of the last call to forward.
+     * @param label the correct label.
+     * @param learning_rate the learning rate of the neural network.
+     * @return a gradient matrix with the shape [8] X [13] X [13] to be fed to the
+     * maxpooling layer. the buffer is owned by the layer and reused by the next
+     * call to backprop.
+     */
+    public Tensor backprop_label(int label, float learning_rate) {
+        sample_label[0] = label;
+        return sample_d_in = backprop_labels(sample_label, 0, learning_rate).slice(0, sample_d_in);
+    }
+
+    /**
+     * computes the gradients of the softmax layer combined with the
+     * cross-entropy loss into d_L_d_w and d_L_d_b without updating the parameters.
+     * @param labels the correct labels.
+     * @param first the index within labels of the label of the first sample.
+     * @return a gradient matrix with the shape [N] X [8] X [13] X [13] to be fed to the
+     * maxpooling layer. the buffer is owned by the layer and reused by the next
+     * call to backprop.
+     */
+    public Tensor gradient_labels(int[] labels, int first) {
+        cross_entropy_gradient(labels, first);
+        return accumulate();
     }
 
     /**
@@ -87,44 +278,140 @@ public class SoftMax {
      * @param d_L_d_out the gradient vector obtained from the cross-entropy loss vector.
      * @param learning_rate the learning rate of the neural network.
      * @return a gradient matrix with the shape [8] X [13] X [13] to be fed to the
-     * maxpooling layer.
-     */
-    public float[][][] backprop(float[][] d_L_d_out, float learning_rate) {
-        //gradient of loss w.r.t. the total probabilites of the softmax layer.
-        float[][] d_L_d_t = new float[1][d_L_d_out[0].length];
-        //repeat softmax probability computations (caching can be used to avoid this.)
-        float[][] t_exp = Mat.v_exp(output);
-        float S = Mat.v_sum(t_exp);
-        float[][] d_L_d_inputs=null;
-        
-        for (int i = 0; i < d_L_d_out[0].length; i++) {
-            float grad = d_L_d_out[0][i];
-            if (grad == 0) {
-                continue;
+     * maxpooling layer. the buffer is owned by the layer and reused by the next
+     * call to backprop.
+     */
+    public Tensor backprop(Tensor d_L_d_out, float learning_rate) {
+        return sample_d_in = backprop_batch(d_L_d_out, learning_rate).slice(0, sample_d_in);
+    }
+
+    /**
+     * performs the back-propagation phase of the softmax layer for a batch. the
+     * weights and bias are updated once with the average gradient of the batch,
+     * applied in place as a rank-N update (rank-1 for a single sample) without
+     * storing the weight gradient in d_L_d_w.
+     * @param d_L_d_out the gradient vectors obtained from the cross-entropy loss,
+     * one row per sample. [N] X [10]
+     * @param learning_rate the learning rate of the neural network.
+     * @return a gradient matrix with the shape [N] X [8] X [13] X [13] to be fed to the
+     * maxpooling layer. the buffer is owned by the layer and reused by the next
+     * call to backprop.
+     */
+    public Tensor backprop_batch(Tensor d_L_d_out, float learning_rate) {
+        totals_gradient(d_L_d_out);
+        return update(learning_rate);
+    }
+
+    /**
+     * derives the input gradient from d_L_d_t and then updates the parameters.
+     */
+    private Tensor update(float learning_rate) {
+        int N = d_L_d_t.shape[0], n_out = d_L_d_t.shape[1];
+        //the input gradient must be computed with the weights before the update.
+        Tensor d_L_d_in = inputs_gradient();
+        //update the weight and bias matrices in place with the average gradient.
+        //   [1352] X [10] += -lr/N * [1352] X [N] * [N] X [10]
+        float step = -learning_rate / N;
+        Mat.m_rank_update(step, input, d_L_d_t, weights);
+        for (int n = 0; n < N; n++) {
+            Mat.axpy(n_out, step, d_L_d_t.data, n * n_out, bias.data, bias.offset);
+        }
+        return d_L_d_in;
+    }
+
+    /**
+     * computes the gradients of the loss w.r.t. the weights and bias, summed over
+     * the batch, into d_L_d_w and d_L_d_b without updating the parameters.
+     * @param d_L_d_out the gradient vectors obtained from the cross-entropy loss,
+     * one row per sample. [N] X [10]
+     * @return a gradient matrix with the shape [N] X [8] X [13] X [13] to be fed to the
+     * maxpooling layer. the buffer is owned by the layer and reused by the next
+     * call to backprop.
+     */
+    public Tensor gradient_batch(Tensor d_L_d_out) {
+        totals_gradient(d_L_d_out);
+        return accumulate();
+    }
+
+    /**
+     * derives the input, weight and bias gradients from d_L_d_t.
+     */
+    private Tensor accumulate() {
+        int N = d_L_d_t.shape[0], n_out = d_L_d_t.shape[1];
+        Tensor d_L_d_in = inputs_gradient();
+        if (d_L_d_w == null) {
+            d_L_d_w = new Tensor(weights.shape);
+            d_L_d_b = new Tensor(bias.shape);
+        }
+        //gradient of Loss w.r.t. weights ---> chain rule, summed over the batch
+        //        [1352] X [10] = [1352] X [N] * [N] X [10]
+        Mat.mm_mult_into(input_t, d_L_d_t, d_L_d_w);
+        //gradient of loss w.r.t. bias is d_L_d_t, summed over the batch
+        d_L_d_b.fill(0);
+        for (int n = 0; n < N; n++) {
+            Mat.axpy(n_out, 1, d_L_d_t.data, n * n_out, d_L_d_b.data, d_L_d_b.offset);
+        }
+        return d_L_d_in;
+    }
+
+    /**
+     * computes the gradient of the loss w.r.t. the totals into d_L_d_t, i.e. the
+     * product of the softmax Jacobian and d_L_d_out, from the probabilities
+     * cached by forward:
+     *      d_L_d_t[j] = p[j] * (d_L_d_out[j] - sum_i(d_L_d_out[i] * p[i]))
+     * @param d_L_d_out the gradient w.r.t. the probabilities. [N] X [10]
+     */
+    private void totals_gradient(Tensor d_L_d_out) {
+        int N = d_L_d_out.shape[0], n_out = d_L_d_out.shape[1];
+        d_L_d_t = Tensor.reserve(d_L_d_t, N, n_out);
+        for (int n = 0; n < N; n++) {
+            int row = n * n_out;
+            float dot = 0;
+            for (int i = 0; i < n_out; i++) {
+                dot += d_L_d_out.get(n, i) * probabilities.data[row + i];
             }
-            //gradient of the output layer w.r.t. the totals [1] X [10]
-            float[][] d_out_d_t = Mat.v_scale(t_exp, -t_exp[0][i] / (S * S));
-            d_out_d_t[0][i] = t_exp[0][i] * (S - t_exp[0][i]) / (S * S);
-            
-            d_L_d_t = Mat.m_scale(d_out_d_t, grad); 
-            //gradient of totals w.r.t weights -- [1342] X [1]
-            float[][] d_t_d_weight = Mat.m_transpose(input);
-            //gradient of totals w.r.t inputs -- [1342] X [10] 
-            float[][] d_t_d_inputs = weights;
-            //gradient of Loss w.r.t. weights ---> chain rule 
-            //        [1342] X [10] = [1342] X [1] * [1] X [10]
-            float[][] d_L_d_w = Mat.mm_mult(d_t_d_weight, d_L_d_t);
-            //gradient of Loss w.r.t. inputs ---> chain rule
-            // [1342] X [1]      [1342] X [10]    *   [10] X [1](transposed)
-            d_L_d_inputs = Mat.mm_mult(d_t_d_inputs, Mat.m_transpose(d_L_d_t));
-            //gradient of loss w.r.t. bias
-            float[][] d_L_d_b = d_L_d_t;
-            //update the weight and bias matrices.
-            weights = Mat.mm_add(Mat.m_scale(d_L_d_w, -learning_rate), weights);
-            bias = Mat.mm_add(Mat.m_scale(d_L_d_b, -learning_rate), bias);
+            for (int j = 0; j < n_out; j++) {
+                d_L_d_t.data[row + j] = probabilities.data[row + j] * (d_L_d_out.get(n, j) - dot);
+            }
+        }
+    }
+
+    /**
+     * computes the gradient of the cross-entropy loss w.r.t. the totals into
+     * d_L_d_t, i.e. d_L_d_t = p - onehot(label).
+     * @param labels the correct labels.
+     * @param first the index within labels of the label of the first sample.
+     */
+    private void cross_entropy_gradient(int[] labels, int first) {
+        int N = probabilities.shape[0], n_out = probabilities.shape[1];
+        d_L_d_t = Tensor.reserve(d_L_d_t, N, n_out);
+        System.arraycopy(probabilities.data, 0, d_L_d_t.data, 0, N * n_out);
+        for (int n = 0; n < N; n++) {
+            d_L_d_t.data[n * n_out + labels[first + n]] -= 1;
         }
+    }
+
+    /**
+     * computes the gradient of the loss w.r.t. the inputs from d_L_d_t and the
+     * current weights.
+     * @return a gradient matrix with the shape [N] X [8] X [13] X [13].
+     */
+    private Tensor inputs_gradient() {
+        Tensor buffer = d_L_d_inputs;
+        d_L_d_inputs = Tensor.reserve(d_L_d_inputs, input.shape);
+        if (weights != weights_t_of) {
+            weights_t = weights.transpose();
+            weights_t_of = weights;
+        }
+        //gradient of Loss w.r.t. inputs ---> chain rule
+        // [N] X [1352]      [N] X [10]    *   [10] X [1352](transposed)
+        Mat.mm_mult_into(d_L_d_t, weights_t, d_L_d_inputs);
         // reshape the final gradient matrix to the input shape of the maxpooling layer.
-        // [1] X [1342](transposed) ----> [8] X [13] X [13]
-        return Mat.reshape(Mat.m_transpose(d_L_d_inputs),8,13,13);
+        // [N] X [1352] ----> [N] X [8] X [13] X [13]
+        if (d_L_d_inputs != buffer || d_L_d_in_of != last_input) {
+            d_L_d_in = d_L_d_inputs.reshape(input_shape);
+            d_L_d_in_of = last_input;
+        }
+        return d_L_d_in;
     }
 }
@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2019 Elias Yilma
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cnn;
+
+import UTIL.Tensor;
+
+/**
+ *
+ * @author Elias Yilma
+ *
+ * A 3X3 convolution layer whose forward pass uses Winograd minimal filtering
+ * F(2X2,3X3). Every 2X2 block of output pixels is computed from the 4X4 input
+ * tile that covers it as
+ *
+ *      Y = A^T [ (G g G^T) . (B^T d B) ] A
+ *
+ * where g is the 3X3 filter, d the 4X4 input tile and "." the element-wise
+ * product. That is 16 multiplications per 2X2 block instead of 36.
+ *
+ * The transformed filters U = G g G^T are cached between calls and are only
+ * recomputed after the filters change (see filters_changed). The
+ * back-propagation phase is inherited from Convolution.
+ *
+ */
+public class WinogradConvolution extends Convolution {
+
+    /**
+     * the transformed filters, one 4X4 matrix per filter stored as a row of 16.
+     */
+        public Tensor transformed; // shape --> [8] X [16]
+
+    /**
+     * the filter tensor that transformed was computed from, or null once the
+     * filters have been updated.
+     */
+    private Tensor transformed_from;
+
+    /**
+     * the transformed input tile B^T d B.
+     */
+    private final float[] v = new float[16];
+
+    /**
+     * G g of a single filter. [4] X [3]
+     */
+    private final float[] gg = new float[12];
+
+    /**
+     * creates a layer whose workspace is allocated by the first forward pass.
+     */
+    public WinogradConvolution() {
+    }
+
+    /**
+     * creates a layer with a workspace for batches of up to batch images.
+     * @param batch the largest number of images per batch.
+     * @param rows the row size of the images.
+     * @param columns the column size of the images.
+     * @param filters the number of 3X3 filters.
+     */
+    public WinogradConvolution(int batch, int rows, int columns, int filters) {
+        super(batch, rows, columns, filters);
+        transformed = new Tensor(filters, 16);
+    }
+
+    /**
+     * marks the cached transformed filters as stale.
+     */
+    @Override
+    public void filters_changed() {
+        transformed_from = null;
+    }
+
+    /**
+     * computes U = G g G^T for every filter, where
+     *      | 1    0    0  |
+     *  G = | 1/2  1/2  1/2|
+     *      | 1/2 -1/2  1/2|
+     *      | 0    0    1  |
+     * @param filter the [8] X [3] X [3] filters.
+     */
+    private void transform_filters(Tensor filter) {
+        transformed = Tensor.reserve(transformed, filter.shape[0], 16);
+        for (int k = 0; k < filter.shape[0]; k++) {
+            for (int c = 0; c < 3; c++) {
+                float g0 = filter.get(k, 0, c), g1 = filter.get(k, 1, c), g2 = filter.get(k, 2, c);
+                gg[c] = g0;
+                gg[3 + c] = 0.5f * (g0 + g1 + g2);
+                gg[6 + c] = 0.5f * (g0 - g1 + g2);
+                gg[9 + c] = g2;
+            }
+            int u = transformed.offset + k * transformed.stride[0];
+            for (int r = 0; r < 4; r++) {
+                float g0 = gg[r * 3], g1 = gg[r * 3 + 1], g2 = gg[r * 3 + 2];
+                transformed.data[u + r * 4] = g0;
+                transformed.data[u + r * 4 + 1] = 0.5f * (g0 + g1 + g2);
+                transformed.data[u + r * 4 + 2] = 0.5f * (g0 - g1 + g2);
+                transformed.data[u + r * 4 + 3] = g2;
+            }
+        }
+        transformed_from = filter;
+    }
+
+    /**
+     * computes V = B^T d B for the 4X4 input tile whose top left corner is at
+     * input.data[tile], in an image with w columns, where
+     *        | 1  0 -1  0 |
+     *  B^T = | 0  1  1  0 |
+     *        | 0 -1  1  0 |
+     *        | 0  1  0 -1 |
+     */
+    private void transform_tile(int tile, int w) {
+        float[] d = input.data;
+        for (int j = 0; j < 4; j++) {
+            float d0 = d[tile + j], d1 = d[tile + w + j];
+            float d2 = d[tile + 2 * w + j], d3 = d[tile + 3 * w + j];
+            v[j] = d0 - d2;
+            v[4 + j] = d1 + d2;
+            v[8 + j] = d2 - d1;
+            v[12 + j] = d1 - d3;
+        }
+        for (int i = 0; i < 16; i += 4) {
+            float t0 = v[i], t1 = v[i + 1], t2 = v[i + 2], t3 = v[i + 3];
+            v[i] = t0 - t2;
+            v[i + 1] = t1 + t2;
+            v[i + 2] = t2 - t1;
+            v[i + 3] = t1 - t3;
+        }
+    }
+
+    /**
+     * the forward convolution pass using Winograd F(2X2,3X3) for a batch of images.
+     * @param images the input images. [N] X [28] X [28]
+     * @param filter a 3D matrix containing an array of 3X3 filters ([8]X[3]X[3])
+     * @return the convolved images w.r.t. each filter. [N] X [8] X [26] X [26].
+     * the returned tensor is owned by the layer (see output).
+     * @throws IllegalArgumentException if the filters are not 3X3, the only
+     * size F(2X2,3X3) is defined for.
+     */
+    @Override
+    public Tensor forward_batch(Tensor images, Tensor filter) {
+        if (filter.rank() != 3 || filter.shape[1] != 3 || filter.shape[2] != 3) {
+            throw new IllegalArgumentException("WinogradConvolution needs 3X3 filters, got " + filter);
+        }
+        if (filter != transformed_from) {
+            transform_filters(filter);
+        }
+        return super.forward_batch(images, filter);
+    }
+
+    /**
+     * convolves the nth image of input with every filter. output rows or
+     * columns that do not fill a whole 2X2 block are computed directly.
+     * @param n the index of the image within the batch.
+     */
+    @Override
+    protected void forward_image(int n) {
+        int n_f = filters.shape[0];
+        int oh = output.shape[2], ow = output.shape[3], w = input.shape[2];
+        int image = input.offset + n * input.stride[0], result = output.offset + n * output.stride[0];
+        float[] u = transformed.data, y = output.data;
+        for (int i = 0; i + 1 < oh; i += 2) {
+            for (int j = 0; j + 1 < ow; j += 2) {
+                transform_tile(image + i * w + j, w);
+                for (int k = 0; k < n_f; k++) {
+                    int uk = transformed.offset + k * transformed.stride[0];
+                    int yk = result + (k * oh + i) * ow + j;
+                    // M = U . V, each of the 16 products computed once.
+                    float m0 = u[uk] * v[0], m1 = u[uk + 1] * v[1];
+                    float m2 = u[uk + 2] * v[2], m3 = u[uk + 3] * v[3];
+                    float m4 = u[uk + 4] * v[4], m5 = u[uk + 5] * v[5];
+                    float m6 = u[uk + 6] * v[6], m7 = u[uk + 7] * v[7];
+                    float m8 = u[uk + 8] * v[8], m9 = u[uk + 9] * v[9];
+                    float m10 = u[uk + 10] * v[10], m11 = u[uk + 11] * v[11];
+                    float m12 = u[uk + 12] * v[12], m13 = u[uk + 13] * v[13];
+                    float m14 = u[uk + 14] * v[14], m15 = u[uk + 15] * v[15];
+                    // T = A^T M, then Y = T A with A^T = | 1 1  1  0 |
+                    //                                   | 0 1 -1 -1 |
+                    float t0 = m0 + m4 + m8, t1 = m1 + m5 + m9;
+                    float t2 = m2 + m6 + m10, t3 = m3 + m7 + m11;
+                    float t4 = m4 - m8 - m12, t5 = m5 - m9 - m13;
+                    float t6 = m6 - m10 - m14, t7 = m7 - m11 - m15;
+                    y[yk] = t0 + t1 + t2;
+                    y[yk + 1] = t1 - t2 - t3;
+                    y[yk + ow] = t4 + t5 + t6;
+                    y[yk + ow + 1] = t5 - t6 - t7;
+                }
+            }
+        }
+        //left over last row and column when the output size is odd.
+        for (int k = 0; k < n_f && (oh % 2 == 1 || ow % 2 == 1); k++) {
+            for (int i = 0; i < oh; i++) {
+                for (int j = (i == oh - 1 && oh % 2 == 1) ? 0 : ow - ow % 2; j < ow; j++) {
+                    y[result + (k * oh + i) * ow + j] = window_elsum(n, k, i, j);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2019 Elias Yilma
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package UTIL;
+
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+import org.junit.Test;
+
+/**
+ *
+ * @author Elias Yilma
+ *
+ * Checks the slices handed out by an Arena, and that reset and close release
+ * them.
+ *
+ */
+public class ArenaTest {
+
+    @Test
+    public void slices_are_aligned_and_disjoint() {
+        try (Arena arena = new Arena(Arena.bytes_of(1) + Arena.bytes_of(17) + Arena.bytes_of(100))) {
+            FloatBuffer a = arena.allocate(1), b = arena.allocate(17);
+            IntBuffer c = arena.allocate_ints(100);
+            assertEquals(1, a.capacity());
+            assertEquals(17, b.capacity());
+            assertEquals(100, c.capacity());
+            assertEquals(Arena.bytes_of(1) + Arena.bytes_of(17) + Arena.bytes_of(100), arena.used());
+            assumeTrue("the address of a direct buffer cannot be read", Arena.address(a) >= 0);
+            for (java.nio.Buffer s : new java.nio.Buffer[]{a, b, c}) {
+                assertEquals(0, Arena.address(s) % Arena.ALIGNMENT);
+            }
+            //a slice ends before the next one starts.
+            assertTrue(Arena.address(a) + 4 <= Arena.address(b));
+            assertTrue(Arena.address(b) + 4 * 17 <= Arena.address(c));
+        }
+    }
+
+    @Test
+    public void slices_do_not_overlap() {
+        try (Arena arena = new Arena(2 * Arena.bytes_of(20))) {
+            FloatBuffer a = arena.allocate(20), b = arena.allocate(20);
+            for (int i = 0; i < 20; i++) {
+                a.put(i, i);
+                b.put(i, -i);
+            }
+            for (int i = 0; i < 20; i++) {
+                assertEquals(i, a.get(i), 0);
+                assertEquals(-i, b.get(i), 0);
+            }
+        }
+    }
+
+    @Test
+    public void allocate_copies_a_tensor_in_row_major_order() {
+        Tensor t = Tensor.random(3, 5);
+        //a transposed view is not contiguous.
+        Tensor v = t.transpose();
+        try (Arena arena = new Arena(2 * Arena.bytes_of(15))) {
+            FloatBuffer a = arena.allocate(t), b = arena.allocate(v);
+            assertEquals(0, a.position());
+            for (int i = 0; i < 3; i++) {
+                for (int j = 0; j < 5; j++) {
+                    assertEquals(t.get(i, j), a.get(i * 5 + j), 0);
+                    assertEquals(t.get(i, j), b.get(j * 3 + i), 0);
+                }
+            }
+        }
+    }
+
+    @Test(expected = OutOfMemoryError.class)
+    public void allocate_fails_when_the_arena_is_full() {
+        try (Arena arena = new Arena(Arena.bytes_of(16))) {
+            arena.allocate(16);
+            arena.allocate(1);
+        }
+    }
+
+    @Test
+    public void reset_reuses_the_memory() {
+        try (Arena arena = new Arena(Arena.bytes_of(16))) {
+            FloatBuffer a = arena.allocate(16);
+            a.put(3, 7);
+            arena.reset();
+            assertEquals(0, arena.used());
+            //the whole arena is available again, and holds the old values.
+            FloatBuffer b = arena.allocate(16);
+            assertEquals(7, b.get(3), 0);
+            if (Arena.address(a) >= 0) {
+                assertEquals(Arena.address(a), Arena.address(b));
+            }
+        }
+    }
+
+    @Test
+    public void close_frees_the_memory() {
+        BufferPoolMXBean direct = null;
+        for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            direct = "direct".equals(pool.getName()) ? pool : direct;
+        }
+        assumeTrue(direct != null);
+        int bytes = 1 << 24;
+        Arena arena = new Arena(bytes);
+        long used = direct.getMemoryUsed();
+        arena.close();
+        assertEquals(0, arena.capacity());
+        assertTrue("closing did not free the direct memory", direct.getMemoryUsed() <= used - bytes);
+        //closing twice has no effect.
+        arena.close();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void allocate_fails_after_close() {
+        Arena arena = new Arena(Arena.bytes_of(16));
+        arena.close();
+        arena.allocate(1);
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2019 Elias Yilma
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cnn;
+
+import UTIL.Tensor;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+/**
+ *
+ * @author Elias Yilma
+ *
+ * Checks that a failure on a loader thread reaches the trainer instead of
+ * leaving it waiting for a batch that never comes, and that close stops
+ * the loader threads before it returns.
+ *
+ */
+public class DataPipelineTest {
+
+    @Test(timeout = 10000)
+    public void take_rethrows_an_io_exception_of_a_loader() throws InterruptedException {
+        IOException error = new IOException("broken image");
+        try (DataPipeline pipeline = new DataPipeline(failing(error), 4, 2, 1, false, 1)) {
+            pipeline.take();
+            fail("take returned a batch");
+        } catch (IOException e) {
+            assertSame(error, e.getCause());
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void take_rethrows_a_runtime_exception_of_a_loader() throws IOException, InterruptedException {
+        RuntimeException error = new ArrayIndexOutOfBoundsException(784);
+        try (DataPipeline pipeline = new DataPipeline(failing(error), 4, 2, 1, true, 1)) {
+            pipeline.take();
+            fail("take returned a batch");
+        } catch (IllegalStateException e) {
+            assertSame(error, e.getCause());
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void close_waits_for_the_loader_threads() throws IOException, InterruptedException {
+        AtomicInteger reads = new AtomicInteger();
+        DataPipeline pipeline = new DataPipeline(slow(reads), 4, 2, 3, false, 1);
+        pipeline.release(pipeline.take());
+        pipeline.close();
+        int after_close = reads.get();
+        Thread.sleep(200);
+        assertEquals("a loader read an image after close returned", after_close, reads.get());
+        for (Thread t : Thread.getAllStackTraces().keySet()) {
+            assertFalse(t.getName() + " is still running", t.getName().startsWith("cnn-loader-"));
+        }
+    }
+
+    /**
+     * @return a dataset of 28X28 images that takes 5 ms per image and does not
+     * stop when interrupted, like a blocking read of a file.
+     */
+    private static Dataset slow(AtomicInteger reads) {
+        return new Dataset() {
+            @Override
+            public int size() {
+                return 64;
+            }
+
+            @Override
+            public int rows() {
+                return 28;
+            }
+
+            @Override
+            public int columns() {
+                return 28;
+            }
+
+            @Override
+            public int label(int index) {
+                return index % 10;
+            }
+
+            @Override
+            public void image(int index, Tensor dst) {
+                long end = System.nanoTime() + 5000000;
+                while (System.nanoTime() < end) {
+                    //busy, not sleeping, so that an interrupt does not end it early.
+                }
+                dst.fill(index);
+                reads.incrementAndGet();
+            }
+        };
+    }
+
+    /**
+     * @return a dataset of 28X28 images whose every image fails with error.
+     */
+    private static Dataset failing(Exception error) {
+        return new Dataset() {
+            @Override
+            public int size() {
+                return 16;
+            }
+
+            @Override
+            public int rows() {
+                return 28;
+            }
+
+            @Override
+            public int columns() {
+                return 28;
+            }
+
+            @Override
+            public int label(int index) {
+                return index % 10;
+            }
+
+            @Override
+            public void image(int index, Tensor dst) throws IOException {
+                if (error instanceof IOException) {
+                    throw (IOException) error;
+                }
+                throw (RuntimeException) error;
+            }
+        };
+    }
+}
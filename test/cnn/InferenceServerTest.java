@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2019 Elias Yilma
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cnn;
+
+import UTIL.Tensor;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ *
+ * @author Elias Yilma
+ *
+ * Starts the server on an ephemeral port and talks to it over HTTP.
+ *
+ */
+public class InferenceServerTest {
+
+    @Test(timeout = 30000)
+    public void predicts_and_counts_the_request() throws IOException {
+        InferenceServer server = new InferenceServer(model(), 0, 8, 1000, 2);
+        try {
+            Response r = post(server, new byte[2 * 28 * 28]);
+            assertEquals(200, r.status);
+            assertTrue(r.body, r.body.startsWith("{\"predictions\":[{\"label\":"));
+            assertEquals(r.body, 2, r.body.split("\"label\"").length - 1);
+
+            Response stats = get(server, "/stats");
+            assertEquals(200, stats.status);
+            assertTrue(stats.body, stats.body.contains("\"requests\":1,\"images\":2,\"batches\":1"));
+
+            assertEquals(400, post(server, new byte[100]).status);
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void rejects_a_request_that_is_too_large() throws IOException {
+        InferenceServer server = new InferenceServer(model(), 0, 8, 1000, 2);
+        try {
+            //16 images is the limit of a server with batches of 8.
+            byte[] body = new byte[17 * 28 * 28];
+            //rejected by its Content-Length, or while it is read.
+            assertEquals(413, post(server, body, false).status);
+            assertEquals(413, post(server, body, true).status);
+            assertEquals(200, post(server, new byte[28 * 28], true).status);
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void stop_fails_the_requests_that_wait_for_a_batch() throws Exception {
+        //the first request of a batch waits up to a minute for more requests.
+        InferenceServer server = new InferenceServer(model(), 0, 8, 60000000L, 2);
+        CompletableFuture<Response> waiting = CompletableFuture.supplyAsync(() -> {
+            try {
+                return post(server, new byte[28 * 28]);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        //let the request reach the batching thread.
+        Thread.sleep(500);
+        server.stop();
+        assertEquals(503, waiting.get(10, TimeUnit.SECONDS).status);
+    }
+
+    private static Model model() {
+        return new Model(CNN.init_filters(8), Tensor.random(13 * 13 * 8, 10), new Tensor(1, 10), 28, 28);
+    }
+
+    private static final class Response {
+
+        final int status;
+        final String body;
+
+        Response(int status, String body) {
+            this.status = status;
+            this.body = body;
+        }
+    }
+
+    private static Response post(InferenceServer server, byte[] body) throws IOException {
+        return post(server, body, false);
+    }
+
+    /**
+     * @param chunked true to send the body without a Content-Length.
+     */
+    private static Response post(InferenceServer server, byte[] body, boolean chunked) throws IOException {
+        HttpURLConnection c = open(server, "/predict");
+        c.setRequestMethod("POST");
+        c.setDoOutput(true);
+        if (chunked) {
+            c.setChunkedStreamingMode(4096);
+        }
+        try (OutputStream out = c.getOutputStream()) {
+            out.write(body);
+        }
+        return response(c);
+    }
+
+    private static Response get(InferenceServer server, String path) throws IOException {
+        return response(open(server, path));
+    }
+
+    private static HttpURLConnection open(InferenceServer server, String path) throws IOException {
+        return (HttpURLConnection) new URL("http://localhost:" + server.port() + path).openConnection();
+    }
+
+    private static Response response(HttpURLConnection c) throws IOException {
+        int status = c.getResponseCode();
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        try (InputStream in = status < 400 ? c.getInputStream() : c.getErrorStream()) {
+            byte[] buffer = new byte[8192];
+            for (int r; (r = in.read(buffer)) > 0;) {
+                body.write(buffer, 0, r);
+            }
+        }
+        return new Response(status, new String(body.toByteArray(), StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2019 Elias Yilma
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cnn;
+
+import UTIL.Tensor;
+import java.util.Random;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+
+/**
+ *
+ * @author Elias Yilma
+ *
+ * Compares the off-heap storage mode with the heap classes it mirrors:
+ * OffHeapModel with Model, and the steps of OffHeapTrainer with those of
+ * ConvPool and SoftMax.
+ *
+ */
+public class OffHeapModelTest {
+
+    private static final float TOLERANCE = 1e-5f;
+
+    @Test
+    public void predicts_like_model() {
+        Random random = new Random(1);
+        Tensor filters = random(random, 8, 3, 3), weights = random(random, 8 * 13 * 13, 10),
+                bias = random(random, 1, 10);
+        Tensor images = random(random, 50, 28, 28);
+        int[] labels = new int[50], off_heap_labels = new int[50];
+        float[] probabilities = new float[500], off_heap_probabilities = new float[500];
+        new Model(filters, weights, bias, 28, 28).predict(images.data, 50, labels, probabilities);
+        try (OffHeapModel model = new OffHeapModel(filters, weights, bias)) {
+            model.predict(images.data, 50, off_heap_labels, off_heap_probabilities);
+        }
+        assertArrayEquals(labels, off_heap_labels);
+        assertArrayEquals(probabilities, off_heap_probabilities, TOLERANCE);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejects_weights_of_other_images() {
+        new OffHeapModel(new Tensor(8, 3, 3), new Tensor(8 * 13 * 13, 10), new Tensor(1, 10), 27, 27);
+    }
+
+    @Test
+    public void trainer_steps_like_the_heap_layers() {
+        Random random = new Random(2);
+        int batch = 16;
+        Tensor filters = random(random, 8, 3, 3), weights = random(random, 8 * 13 * 13, 10),
+                bias = new Tensor(1, 10);
+        Tensor images = random(random, batch, 28, 28);
+        int[] labels = new int[batch];
+        for (int i = 0; i < batch; i++) {
+            labels[i] = random.nextInt(10);
+        }
+        ConvPool conv = new ConvPool(batch, 28, 28, 8);
+        SoftMax softmax = new SoftMax(weights.copy(), bias.copy(), batch);
+        Tensor heap_filters = filters.copy();
+        try (OffHeapTrainer trainer = new OffHeapTrainer(filters, weights, bias, batch, 28, 28)) {
+            //full batches and a smaller last batch, which reuse the reset activations.
+            for (int step = 0; step < 6; step++) {
+                Tensor shard = step < 5 ? images : images.slice(0, 5);
+                int n = shard.shape[0];
+                softmax.forward_batch(conv.forward_batch(shard, heap_filters));
+                float loss = 0;
+                for (int b = 0; b < n; b++) {
+                    loss += softmax.cross_entropy(b, labels[b]);
+                }
+                conv.backprop_batch(softmax.backprop_labels(labels, 0, 0.05f), 0.05f);
+                trainer.step(shard, labels, 0.05f);
+                assertEquals(loss, trainer.loss, 1e-3f * n);
+                assert_close(heap_filters, trainer.filters());
+                assert_close(softmax.weights, trainer.weights());
+                assert_close(softmax.bias, trainer.bias());
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void trainer_rejects_a_larger_batch() {
+        try (OffHeapTrainer trainer = new OffHeapTrainer(4, 28, 28)) {
+            trainer.step(new Tensor(5, 28, 28), new int[5], 0.005f);
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void trainer_cannot_step_after_close() {
+        OffHeapTrainer trainer = new OffHeapTrainer(4, 28, 28);
+        trainer.close();
+        trainer.step(new Tensor(4, 28, 28), new int[4], 0.005f);
+    }
+
+    private static void assert_close(Tensor expected, Tensor actual) {
+        assertArrayEquals(expected.shape, actual.shape);
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.data[expected.offset + i], actual.data[actual.offset + i], TOLERANCE);
+        }
+    }
+
+    private static Tensor random(Random random, int... shape) {
+        Tensor t = new Tensor(shape);
+        for (int i = 0; i < t.size(); i++) {
+            t.data[i] = random.nextFloat() - 0.5f;
+        }
+        return t;
+    }
+}
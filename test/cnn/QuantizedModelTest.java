@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2019 Elias Yilma
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cnn;
+
+import UTIL.Tensor;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ *
+ * @author Elias Yilma
+ *
+ * Trains a float model, quantizes it with a scale calibrated on the training
+ * images and checks that its accuracy on held-out images drops by no more
+ * than a bound.
+ *
+ */
+public class QuantizedModelTest {
+
+    /**
+     * the largest accepted accuracy drop, in percentage points.
+     */
+    private static final double MNIST_BOUND = 1, SYNTHETIC_BOUND = 2;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void int8_accuracy_stays_close_on_held_out_mnist() throws IOException {
+        assumeTrue("the MNIST testing set is not installed",
+                new File("data/mnist/t10k-images-idx3-ubyte").exists()
+                || new File("data/mnist_png/mnist_png/testing").isDirectory());
+        compare(CNN.training_data(), CNN.testing_data(), 10000, 60, MNIST_BOUND);
+    }
+
+    @Test
+    public void int8_accuracy_stays_close_on_held_out_synthetic_images() throws IOException {
+        //the held-out images are drawn from other seeds than the training images.
+        compare(new Bars(4000, 0), new Bars(1000, 1 << 20), 4000, 80, SYNTHETIC_BOUND);
+    }
+
+    /**
+     * trains on training, quantizes the saved checkpoint with calibration
+     * images from training and compares both models on testing.
+     * @param floor the lowest accepted accuracy of the float model, in %.
+     * @param bound the largest accepted accuracy drop, in percentage points.
+     */
+    private void compare(Dataset training, Dataset testing, int training_size, double floor, double bound)
+            throws IOException {
+        File file = new File(folder.getRoot(), "model.ckpt");
+        Model model = CNN.train(training, training_size, 32, new Im2ColConvolution(), file);
+        QuantizedModel quantized = QuantizedModel.of(Checkpoint.load(file), training, 1000);
+
+        Tensor images = new Tensor(Evaluation.CHUNK, testing.rows(), testing.columns());
+        int[] float_labels = new int[Evaluation.CHUNK], int8_labels = new int[Evaluation.CHUNK];
+        int n = testing.size(), float_correct = 0, int8_correct = 0;
+        for (int i = 0; i < n; i += Evaluation.CHUNK) {
+            int m = Math.min(Evaluation.CHUNK, n - i);
+            for (int b = 0; b < m; b++) {
+                testing.image(i + b, images.slice(b));
+            }
+            model.predict(images.data, m, float_labels, null);
+            quantized.predict(images.data, m, int8_labels, null);
+            for (int b = 0; b < m; b++) {
+                float_correct += float_labels[b] == testing.label(i + b) ? 1 : 0;
+                int8_correct += int8_labels[b] == testing.label(i + b) ? 1 : 0;
+            }
+        }
+        double float_accuracy = 100.0 * float_correct / n, int8_accuracy = 100.0 * int8_correct / n;
+        assertTrue("float accuracy " + float_accuracy + "% is below " + floor + "%", float_accuracy >= floor);
+        assertTrue("int8 accuracy " + int8_accuracy + "% is more than " + bound + " points below the float accuracy "
+                + float_accuracy + "%", int8_accuracy >= float_accuracy - bound);
+    }
+
+    /**
+     * 28X28 images of one of 10 bars (5 horizontal and 5 vertical) at a
+     * random offset over background noise. every image is generated from its
+     * own seed, and the pixels are multiples of 1/255 like those of MNIST.
+     */
+    private static final class Bars implements Dataset {
+
+        private final int size;
+        private final long seed;
+
+        Bars(int size, long seed) {
+            this.size = size;
+            this.seed = seed;
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public int rows() {
+            return 28;
+        }
+
+        @Override
+        public int columns() {
+            return 28;
+        }
+
+        @Override
+        public int label(int index) {
+            return index % 10;
+        }
+
+        @Override
+        public void image(int index, Tensor dst) {
+            Random random = new Random(seed + index);
+            int label = label(index);
+            int line = 4 + 4 * (label % 5) + random.nextInt(5) - 2;
+            int shift = random.nextInt(9) - 4;
+            for (int i = 0; i < 28; i++) {
+                for (int j = 0; j < 28; j++) {
+                    boolean bar = label < 5 ? Math.abs(i - line) <= 1 && Math.abs(j - 14 - shift) < 10
+                            : Math.abs(j - line) <= 1 && Math.abs(i - 14 - shift) < 10;
+                    int pixel = bar ? 200 + random.nextInt(56) : random.nextInt(60);
+                    dst.data[dst.offset + i * 28 + j] = pixel / 255f;
+                }
+            }
+        }
+    }
+}
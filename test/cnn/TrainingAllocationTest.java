@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2019 Elias Yilma
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cnn;
+
+import UTIL.Tensor;
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+import org.junit.Test;
+
+/**
+ *
+ * @author Elias Yilma
+ *
+ * Checks that a training step allocates nothing once the layers have sized
+ * their workspaces: the bytes allocated by the test thread, as counted by
+ * the JVM, do not grow over many steps after a warm-up.
+ *
+ */
+public class TrainingAllocationTest {
+
+    private static final int WARMUP = 2000, STEPS = 500;
+
+    @Test
+    public void convolution_step_does_not_allocate() {
+        assertEquals(0, allocated_per_step(new Convolution(8, 28, 28, 8), 8, false), 0);
+    }
+
+    @Test
+    public void im2col_step_does_not_allocate() {
+        assertEquals(0, allocated_per_step(new Im2ColConvolution(8, 28, 28, 8), 8, false), 0);
+    }
+
+    @Test
+    public void winograd_step_does_not_allocate() {
+        assertEquals(0, allocated_per_step(new WinogradConvolution(8, 28, 28, 8), 8, false), 0);
+    }
+
+    @Test
+    public void single_sample_step_does_not_allocate() {
+        assertEquals(0, allocated_per_step(new Convolution(1, 28, 28, 8), 1, false), 0);
+    }
+
+    @Test
+    public void per_sample_step_does_not_allocate() {
+        //the single-sample forward and backprop methods of HogwildTrainer.
+        assertEquals(0, allocated_per_step(new Convolution(1, 28, 28, 8), 1, true), 0);
+    }
+
+    /**
+     * runs the training step of CNN.train with the specified convolution layer.
+     * @param per_sample true for the per-sample step of HogwildTrainer (batch 1).
+     * @return the bytes allocated per step after the warm-up.
+     */
+    private static double allocated_per_step(Convolution conv, int batch, boolean per_sample) {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        assumeTrue(threads instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) threads;
+        assumeTrue(mx.isThreadAllocatedMemorySupported());
+        mx.setThreadAllocatedMemoryEnabled(true);
+
+        Random random = new Random(1);
+        Tensor images = new Tensor(batch, 28, 28);
+        for (int i = 0; i < images.size(); i++) {
+            images.data[i] = random.nextFloat();
+        }
+        int[] labels = new int[batch];
+        for (int i = 0; i < batch; i++) {
+            labels[i] = random.nextInt(10);
+        }
+        if (per_sample) {
+            images = images.slice(0);
+        }
+        Tensor filters = CNN.init_filters(8);
+        MaxPool pool = new MaxPool(2, 2, batch, 8, 26, 26);
+        SoftMax softmax = new SoftMax(13 * 13 * 8, 10, batch);
+
+        for (int i = 0; i < WARMUP / batch; i++) {
+            step(conv, pool, softmax, images, filters, labels, per_sample);
+        }
+        long id = Thread.currentThread().getId();
+        long before = mx.getThreadAllocatedBytes(id);
+        for (int i = 0; i < STEPS; i++) {
+            step(conv, pool, softmax, images, filters, labels, per_sample);
+        }
+        //getThreadAllocatedBytes itself allocates nothing on a warm JVM.
+        return (double) (mx.getThreadAllocatedBytes(id) - before) / STEPS;
+    }
+
+    private static float step(Convolution conv, MaxPool pool, SoftMax softmax, Tensor images,
+            Tensor filters, int[] labels, boolean per_sample) {
+        if (per_sample) {
+            //images is the single [28] X [28] image.
+            softmax.forward(pool.forward(conv.forward(images, filters)));
+            float loss = softmax.cross_entropy(0, labels[0]);
+            conv.backprop(pool.backprop(softmax.backprop_label(labels[0], 0.005f)), 0.005f);
+            return loss;
+        }
+        Tensor out = pool.forward_batch(conv.forward_batch(images, filters));
+        softmax.forward_batch(out);
+        float loss = 0;
+        for (int b = 0; b < labels.length; b++) {
+            loss += softmax.cross_entropy(b, labels[b]);
+        }
+        Tensor gradient = pool.backprop_batch(softmax.backprop_labels(labels, 0, 0.005f));
+        conv.backprop_batch(gradient, 0.005f);
+        return loss;
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2019 Elias Yilma
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package cnn;
+
+import UTIL.Tensor;
+import java.util.Random;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+
+/**
+ *
+ * @author Elias Yilma
+ *
+ * Compares the Winograd layer with the direct Convolution layer it replaces.
+ *
+ */
+public class WinogradConvolutionTest {
+
+    private static final float TOLERANCE = 1e-4f;
+
+    @Test
+    public void forward_matches_convolution_for_even_output() {
+        compare_forward(28, 28);
+    }
+
+    @Test
+    public void forward_matches_convolution_for_odd_output() {
+        //25 X 25 outputs leave a last row and a last column outside the 2X2 blocks.
+        compare_forward(27, 27);
+        //only a last row, or only a last column.
+        compare_forward(27, 28);
+        compare_forward(28, 27);
+    }
+
+    @Test
+    public void backprop_matches_convolution() {
+        Random random = new Random(2);
+        Tensor images = random(random, 4, 27, 28), d_L_d_out = random(random, 4, 8, 25, 26);
+        Tensor f_direct = random(random, 8, 3, 3), f_winograd = f_direct.copy();
+        Convolution direct = new Convolution();
+        WinogradConvolution winograd = new WinogradConvolution();
+        for (int step = 0; step < 3; step++) {
+            assert_close(direct.forward_batch(images, f_direct), winograd.forward_batch(images, f_winograd));
+            direct.backprop_batch(d_L_d_out, 0.1f);
+            winograd.backprop_batch(d_L_d_out, 0.1f);
+            assert_close(direct.d_L_d_filters, winograd.d_L_d_filters);
+            //backprop updated the filters, so the next forward pass must use the new ones.
+            assert_close(f_direct, f_winograd);
+        }
+    }
+
+    @Test
+    public void filters_changed_invalidates_the_transformed_filters() {
+        Random random = new Random(3);
+        Tensor images = random(random, 2, 28, 28), filters = random(random, 8, 3, 3);
+        Convolution direct = new Convolution();
+        WinogradConvolution winograd = new WinogradConvolution();
+        winograd.forward_batch(images, filters);
+        //an update by the caller, e.g. the parameter averaging of ParallelTrainer.
+        for (int i = 0; i < filters.size(); i++) {
+            filters.data[i] += random.nextFloat() - 0.5f;
+        }
+        winograd.filters_changed();
+        assert_close(direct.forward_batch(images, filters), winograd.forward_batch(images, filters));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejects_filters_that_are_not_3x3() {
+        Random random = new Random(4);
+        new WinogradConvolution().forward_batch(random(random, 1, 28, 28), random(random, 8, 5, 5));
+    }
+
+    private static void compare_forward(int rows, int columns) {
+        Random random = new Random(rows * 31 + columns);
+        Tensor images = random(random, 3, rows, columns), filters = random(random, 8, 3, 3);
+        Tensor expected = new Convolution().forward_batch(images, filters);
+        assert_close(expected, new WinogradConvolution(3, rows, columns, 8).forward_batch(images, filters));
+    }
+
+    private static void assert_close(Tensor expected, Tensor actual) {
+        assertArrayEquals(expected.shape, actual.shape);
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals("element " + i, expected.data[expected.index(i)], actual.data[actual.index(i)], TOLERANCE);
+        }
+    }
+
+    private static Tensor random(Random random, int... shape) {
+        Tensor t = new Tensor(shape);
+        for (int i = 0; i < t.size(); i++) {
+            t.data[i] = random.nextFloat() - 0.5f;
+        }
+        return t;
+    }
+}